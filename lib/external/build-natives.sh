@@ -19,7 +19,7 @@ export A2_DEST=$(realpath src/main/jniLibs/$A2_ABI)
 
 #(./build-c-ares.sh)
 
-#(./build-nghttp.sh)
+(./build-nghttp.sh)
 
 export PATH="$A2_TOOLCHAIN/bin:$PATH"
 
@@ -52,7 +52,7 @@ chmod +x configure
     --without-ca-bundle --without-ca-path --without-ca-fallback  --without-libidn2 --disable-cookies \
     --without-librtmp --without-zsh-functions-dir  --without-libssh2 --disable-libcurl-option \
     --without-ssl \
-    --without-nghttp2 \
+    --with-nghttp2="$A2_ROOT" \
     --with-mbedtls="$A2_ROOT" \
     --enable-threaded-resolver \
     --with-libz --with-libz-prefix="$A2_TOOLCHAIN" \
@@ -68,7 +68,6 @@ chmod +x configure
 
 #--without-mbedtls \
 #     --enable-ares="$A2_ROOT" \
-#     --with-nghttp2="$A2_ROOT" \
 #
 
 make clean && make && make install prefix="$A2_ROOT"
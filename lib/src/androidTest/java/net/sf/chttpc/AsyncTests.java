@@ -0,0 +1,198 @@
+package net.sf.chttpc;
+
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.sf.chttpc.test.BaseTestSuite;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class AsyncTests extends BaseTestSuite {
+    @BeforeClass
+    public static void setupCleaner() throws Exception {
+        baseSetup();
+    }
+
+    @AfterClass
+    public static void cleanup() throws Exception {
+        baseTeardown();
+    }
+
+    @Test
+    public void testSimpleAsyncGet() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("async").addHeader("X-Test", "value"));
+
+            CurlHttp curl = CurlHttp.create(queue);
+            curl.getUrl().append(server.url("/").toString());
+
+            Collector collector = new Collector();
+
+            curl.enqueue("GET", null, null, null, 0, 0, CurlProxy.NONE, CurlHttp.GET, true, collector);
+
+            assertThat(collector.done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(collector.error).isNull();
+            assertThat(collector.code).isEqualTo(200);
+            assertThat(collector.header).isEqualTo("value");
+            assertThat(collector.body.toString("UTF-8")).isEqualTo("async");
+        }
+    }
+
+    @Test
+    public void testManyRequestsInFlight() throws Exception {
+        final int count = 50;
+
+        try (MockWebServer server = new MockWebServer()) {
+            for (int i = 0; i < count; ++i) {
+                server.enqueue(new MockResponse().setBody("response").setBodyDelay(100, TimeUnit.MILLISECONDS));
+            }
+
+            Collector[] collectors = new Collector[count];
+
+            for (int i = 0; i < count; ++i) {
+                CurlHttp curl = CurlHttp.create(queue);
+                curl.getUrl().append(server.url("/" + i).toString());
+
+                collectors[i] = new Collector();
+
+                curl.enqueue("GET", null, null, null, 0, 0, CurlProxy.NONE, CurlHttp.GET, true, collectors[i]);
+            }
+
+            for (Collector collector : collectors) {
+                assertThat(collector.done.await(20, TimeUnit.SECONDS)).isTrue();
+                assertThat(collector.error).isNull();
+                assertThat(collector.body.toString("UTF-8")).isEqualTo("response");
+            }
+        }
+    }
+
+    @Test
+    public void testBodyLargerThanBuffer() throws Exception {
+        final int bufferSize = 16 * 1024;
+
+        // not a multiple of buffer size, so that the end of body wraps around the ring buffer
+        char[] chars = new char[bufferSize * 5 + 4321];
+
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char) ('a' + i % 26);
+        }
+
+        final String bigBody = new String(chars);
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody(bigBody));
+
+            CurlHttp curl = CurlHttp.create(queue);
+            curl.setReceiveBufferSize(bufferSize);
+            curl.getUrl().append(server.url("/").toString());
+
+            Collector collector = new Collector();
+
+            curl.enqueue("GET", null, null, null, 0, 0, CurlProxy.NONE, CurlHttp.GET, true, collector);
+
+            assertThat(collector.done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(collector.error).isNull();
+            assertThat(collector.body.toString("UTF-8")).isEqualTo(bigBody);
+        }
+    }
+
+    @Test
+    public void testAsyncFailure() throws Exception {
+        int port;
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+
+            port = server.getPort();
+        }
+
+        CurlHttp curl = CurlHttp.create(queue);
+        curl.getUrl().append("http://127.0.0.1:" + port + "/");
+
+        Collector collector = new Collector();
+
+        curl.enqueue("GET", null, null, null, 0, 0, CurlProxy.NONE, CurlHttp.GET, true, collector);
+
+        assertThat(collector.done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.error).isInstanceOf(ConnectException.class);
+    }
+
+    @Test
+    public void testAsyncCancel() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse()
+                    .setBody("never")
+                    .setBodyDelay(Long.MAX_VALUE, TimeUnit.MILLISECONDS));
+
+            CurlHttp curl = CurlHttp.create(queue);
+            curl.getUrl().append(server.url("/").toString());
+
+            Collector collector = new Collector();
+
+            curl.enqueue("GET", null, null, null, 0, 0, CurlProxy.NONE, CurlHttp.GET, true, collector);
+
+            server.takeRequest();
+
+            curl.cancel();
+
+            assertThat(collector.done.await(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(collector.error.getMessage()).isEqualTo("Canceled");
+        }
+    }
+
+    private static final class Collector implements CurlHttp.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        volatile int code;
+        volatile String header;
+        volatile IOException error;
+
+        @Override
+        public boolean onHeaders(@NonNull CurlHttp curl) {
+            code = curl.getResponseCode();
+            header = curl.getResponseHeader("X-Test");
+
+            return true;
+        }
+
+        @Override
+        public boolean onData(@NonNull CurlHttp curl, @NonNull ByteBuffer chunk) {
+            byte[] bytes = new byte[chunk.remaining()];
+
+            chunk.get(bytes);
+
+            body.write(bytes, 0, bytes.length);
+
+            return true;
+        }
+
+        @Override
+        public void onComplete(@NonNull CurlHttp curl) {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(@NonNull CurlHttp curl, @NonNull IOException error) {
+            this.error = error;
+
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.sf.chttpc;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.sf.chttpc.test.BaseTestSuite;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.net.UnknownHostException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class DnsTests extends BaseTestSuite {
+    private static Curl.CurlURLStreamHandlerFactory handlerFactory;
+
+    @BeforeClass
+    public static void setupCleaner() throws Exception {
+        baseSetup();
+
+        handlerFactory = new Curl.ConnectionBuilder(InstrumentationRegistry.getTargetContext())
+                .setQueue(queue)
+                .build();
+    }
+
+    @AfterClass
+    public static void cleanup() throws Exception {
+        baseTeardown();
+    }
+
+    @Test
+    public void testPrefetchedHost() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("prefetched"));
+
+            handlerFactory.prefetch(server.getHostName());
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.setUrlString(server.url("/").toString());
+
+            try (InputStream body = conn.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("prefetched");
+            }
+        }
+    }
+
+    @Test
+    public void testNoSuchHostRemembered() throws Exception {
+        for (int i = 0; i < 2; ++i) {
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.setUrlString("http://no-such-host.invalid/");
+
+            try {
+                conn.getInputStream();
+
+                fail("UnknownHostException expected");
+            } catch (UnknownHostException expected) {
+                assertThat(expected.getMessage()).contains("no-such-host.invalid");
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package net.sf.chttpc;
 import android.support.test.runner.AndroidJUnit4;
 
 import net.sf.chttpc.test.BaseTestSuite;
+import net.sf.xfd.Interruption;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -10,6 +11,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
@@ -23,7 +26,9 @@ import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.SocketPolicy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class FailureTests extends BaseTestSuite {
@@ -53,6 +58,78 @@ public class FailureTests extends BaseTestSuite {
         conn.getInputStream();
     }
 
+    @Test
+    public void testEventListenerReportsFailure() throws Exception {
+        int port;
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+
+            port = server.getPort();
+        }
+
+        GetTests.RecordingListener listener = new GetTests.RecordingListener();
+
+        CurlHttp curl = CurlHttp.create(queue);
+        curl.setEventListener(listener);
+        curl.getUrl().append("http://127.0.0.1:" + port + "/");
+
+        final Interruption i10n = Interruption.begin();
+        try {
+            curl.configure(i10n);
+
+            fail();
+        } catch (ConnectException expected) {
+            // ok
+        } finally {
+            Interruption.end();
+        }
+
+        assertEquals("callStart", listener.events.get(0));
+        assertEquals("callFailed", listener.events.get(listener.events.size() - 1));
+        assertFalse(listener.events.contains("connectEnd"));
+        assertFalse(listener.events.contains("requestHeadersSent"));
+    }
+
+    @Test
+    public void testTimingsOfCancelledRequest() throws Exception {
+        final long[] timings = new long[CurlHttp.TIMING_COUNT];
+
+        CurlHttp curl = CurlHttp.create(queue);
+
+        final Interruption i10n = Interruption.begin();
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+
+            curl.getUrl().append(server.url("/").toString());
+            curl.configure(i10n);
+
+            try (InputStream body = curl.newInputStream()) {
+                assertEquals("first", convertStreamToString(body));
+            }
+
+            assertEquals(CurlHttp.TIMING_COUNT, curl.getTimings(timings));
+
+            curl.reset();
+
+            curl.getUrl().append(server.url("/").toString());
+            curl.cancel();
+
+            try {
+                curl.configure(i10n);
+
+                fail();
+            } catch (IOException expected) {
+                assertEquals("Canceled", expected.getMessage());
+            }
+
+            // the failed request has never reached curl, there is nothing to report about it
+            assertEquals(0, curl.getTimings(timings));
+        } finally {
+            Interruption.end();
+        }
+    }
+
     @Test(expected = SSLException.class)
     public void testSslHandshakeFailure() throws Exception {
         try (MockWebServer server = new MockWebServer()) {
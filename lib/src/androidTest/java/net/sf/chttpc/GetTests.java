@@ -1,8 +1,11 @@
 package net.sf.chttpc;
 
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
 import android.support.test.runner.AndroidJUnit4;
 
 import net.sf.chttpc.test.BaseTestSuite;
+import net.sf.xfd.Interruption;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -10,10 +13,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
@@ -29,6 +38,7 @@ import okio.Buffer;
 import static com.google.common.truth.Truth.assertAbout;
 import static net.sf.chttpc.test.Streams.inputStream;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class GetTests extends BaseTestSuite {
@@ -313,6 +323,403 @@ public class GetTests extends BaseTestSuite {
         }
     }
 
+    @Test(timeout = 5000)
+    public void testBodyReceivedInBackground() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            char[] chars = new char[40000];
+            Arrays.fill(chars, 'b');
+
+            final String body = new String(chars);
+
+            server.enqueue(new MockResponse().setBody(body));
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.getCurl().setReceiveBufferSize(64 * 1024);
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            InputStream stream = conn.getInputStream();
+
+            while (stream.available() < body.length()) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(body, convertStreamToString(stream));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("all")
+    public void downloadDecentSizedFile() throws IOException {
+        File f = File.createTempFile("egwt6u", "324trh");
+
+        try (MockWebServer server = new MockWebServer()) {
+            Buffer body = randomBody(HUGE_BUFFER);
+
+            server.enqueue(new MockResponse()
+                    .setResponseCode(200)
+                    .setBody(body.clone()));
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            final int mode = ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_TRUNCATE;
+
+            try (ParcelFileDescriptor fd = ParcelFileDescriptor.open(f, mode)) {
+                assertEquals(HUGE_BUFFER, conn.getCurl().downloadTo(fd.getFd(), 0));
+            }
+
+            assertAbout(inputStream()).that(new FileInputStream(f)).hasSameContentsAs(body.inputStream());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testOptionsPersistBetweenRequests() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            final String target = server.url("/target").toString();
+
+            server.enqueue(new MockResponse().setResponseCode(302).addHeader("Location", target));
+            server.enqueue(new MockResponse().setBody("moved"));
+            server.enqueue(new MockResponse().setResponseCode(302).addHeader("Location", target));
+
+            CurlHttp curl = CurlHttp.create(queue);
+            curl.getOptions()
+                    .setMethod("GET", CurlHttp.GET)
+                    .setFollowRedirects(true);
+
+            final Interruption i10n = Interruption.begin();
+            try {
+                curl.getUrl().append(server.url("/").toString());
+                curl.configure(i10n);
+
+                assertEquals(200, curl.getResponseCode());
+
+                try (InputStream body = curl.newInputStream()) {
+                    assertEquals("moved", convertStreamToString(body));
+                }
+
+                curl.reset();
+
+                curl.getOptions().setFollowRedirects(false);
+
+                curl.getUrl().length = 0;
+                curl.getUrl().append(server.url("/").toString());
+                curl.configure(i10n);
+
+                assertEquals(302, curl.getResponseCode());
+            } finally {
+                Interruption.end();
+            }
+
+            assertEquals("/", server.takeRequest().getPath());
+            assertEquals("/target", server.takeRequest().getPath());
+            assertEquals("/", server.takeRequest().getPath());
+        }
+    }
+
+    @Test
+    public void testBatchReusesConnection() throws Exception {
+        final int count = 8;
+
+        try (MockWebServer server = new MockWebServer()) {
+            List<MutableUrl> urls = new ArrayList<>();
+
+            for (int i = 0; i < count; ++i) {
+                server.enqueue(new MockResponse().setBody("tile " + i));
+
+                MutableUrl url = new MutableUrl() {};
+                url.append(server.url("/tile/" + i).toString());
+
+                urls.add(url);
+            }
+
+            final String[] bodies = new String[count];
+
+            CurlHttp curl = CurlHttp.create(queue);
+
+            final Interruption i10n = Interruption.begin();
+            try {
+                int performed = curl.executeBatch(i10n, "GET", null, null, null, 0, 0,
+                        CurlProxy.NONE, CurlHttp.GET, true, urls, new CurlHttp.BatchConsumer() {
+                            @Override
+                            public boolean onResponse(@NonNull CurlHttp curl, int index) throws IOException {
+                                assertEquals(200, curl.getResponseCode());
+
+                                try (InputStream body = curl.newInputStream()) {
+                                    bodies[index] = convertStreamToString(body);
+                                }
+
+                                return true;
+                            }
+                        });
+
+                assertEquals(count, performed);
+            } finally {
+                Interruption.end();
+            }
+
+            for (int i = 0; i < count; ++i) {
+                assertEquals("tile " + i, bodies[i]);
+
+                RecordedRequest request = server.takeRequest();
+
+                assertEquals("/tile/" + i, request.getPath());
+                assertEquals(i, request.getSequenceNumber());
+            }
+        }
+    }
+
+    @Test
+    public void testTimings() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+            server.enqueue(new MockResponse().setBody("second"));
+
+            final long[] timings = new long[CurlHttp.TIMING_COUNT];
+
+            CurlHttp curl = CurlHttp.create(queue);
+
+            final Interruption i10n = Interruption.begin();
+            try {
+                for (String expected : new String[] { "first", "second" }) {
+                    curl.getUrl().length = 0;
+                    curl.getUrl().append(server.url("/").toString());
+                    curl.configure(i10n);
+
+                    try (InputStream body = curl.newInputStream()) {
+                        assertEquals(expected, convertStreamToString(body));
+                    }
+
+                    assertEquals(CurlHttp.TIMING_COUNT, curl.getTimings(timings));
+
+                    assertTrue(timings[CurlHttp.TIMING_TOTAL] > 0);
+                    assertTrue(timings[CurlHttp.TIMING_TOTAL] >= timings[CurlHttp.TIMING_FIRST_BYTE]);
+                    assertTrue(timings[CurlHttp.TIMING_BYTES_RECEIVED] > expected.length());
+                    assertTrue(timings[CurlHttp.TIMING_BYTES_SENT] > 0);
+
+                    curl.reset();
+                }
+            } finally {
+                Interruption.end();
+            }
+
+            assertEquals(1, timings[CurlHttp.TIMING_REUSED]);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final long[] before = new long[Curl.METRIC_COUNT];
+        final long[] after = new long[Curl.METRIC_COUNT];
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+            server.enqueue(new MockResponse().setBody("second"));
+
+            assertEquals(Curl.METRIC_COUNT, Curl.snapshotMetrics(before));
+
+            CurlHttp curl = CurlHttp.create(queue);
+
+            final Interruption i10n = Interruption.begin();
+            try {
+                for (int i = 0; i < 2; ++i) {
+                    curl.getUrl().length = 0;
+                    curl.getUrl().append(server.url("/").toString());
+                    curl.configure(i10n);
+
+                    try (InputStream body = curl.newInputStream()) {
+                        convertStreamToString(body);
+                    }
+
+                    curl.reset();
+                }
+            } finally {
+                Interruption.end();
+            }
+
+            assertEquals(Curl.METRIC_COUNT, Curl.snapshotMetrics(after));
+        }
+
+        assertTrue(after[Curl.METRIC_CONNECTIONS_OPENED] > before[Curl.METRIC_CONNECTIONS_OPENED]);
+        assertTrue(after[Curl.METRIC_CONNECTIONS_REUSED] > before[Curl.METRIC_CONNECTIONS_REUSED]);
+        assertTrue(after[Curl.METRIC_BYTES_SENT] > before[Curl.METRIC_BYTES_SENT]);
+        assertTrue(after[Curl.METRIC_BYTES_RECEIVED] - before[Curl.METRIC_BYTES_RECEIVED] > "firstsecond".length());
+        assertTrue(after[Curl.METRIC_LIVE_HANDLES] > 0);
+    }
+
+    @Test
+    public void testEventListener() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+            server.enqueue(new MockResponse().setBody("second"));
+
+            RecordingListener listener = new RecordingListener();
+
+            CurlHttp curl = CurlHttp.create(queue);
+            curl.setEventListener(listener);
+
+            final Interruption i10n = Interruption.begin();
+            try {
+                for (int i = 0; i < 2; ++i) {
+                    curl.getUrl().length = 0;
+                    curl.getUrl().append(server.url("/").toString());
+                    curl.configure(i10n);
+
+                    try (InputStream body = curl.newInputStream()) {
+                        convertStreamToString(body);
+                    }
+
+                    curl.reset();
+                }
+            } finally {
+                Interruption.end();
+            }
+
+            assertEquals(Arrays.asList(
+                    "callStart",
+                    "dnsStart",
+                    "dnsEnd",
+                    "connectStart",
+                    "connectEnd",
+                    "requestHeadersSent",
+                    "responseHeadersStart",
+                    "responseBodyEnd",
+                    "callStart",
+                    "requestHeadersSent",
+                    "responseHeadersStart",
+                    "responseBodyEnd"), listener.events);
+
+            long previous = 0;
+
+            for (long time : listener.times.subList(0, 7)) {
+                assertTrue(time >= previous);
+
+                previous = time;
+            }
+        }
+    }
+
+    static final class RecordingListener extends EventListener {
+        final List<String> events = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        private void record(String event, long time) {
+            events.add(event);
+            times.add(time);
+        }
+
+        @Override
+        public void callStart(@NonNull CurlHttp curl) {
+            record("callStart", 0);
+        }
+
+        @Override
+        public void dnsStart(@NonNull CurlHttp curl, long time) {
+            record("dnsStart", time);
+        }
+
+        @Override
+        public void dnsEnd(@NonNull CurlHttp curl, long time) {
+            record("dnsEnd", time);
+        }
+
+        @Override
+        public void connectStart(@NonNull CurlHttp curl, long time) {
+            record("connectStart", time);
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull CurlHttp curl, long time) {
+            record("secureConnectStart", time);
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull CurlHttp curl, long time) {
+            record("secureConnectEnd", time);
+        }
+
+        @Override
+        public void connectEnd(@NonNull CurlHttp curl, long time) {
+            record("connectEnd", time);
+        }
+
+        @Override
+        public void requestHeadersSent(@NonNull CurlHttp curl, long time) {
+            record("requestHeadersSent", time);
+        }
+
+        @Override
+        public void responseHeadersStart(@NonNull CurlHttp curl, long time) {
+            record("responseHeadersStart", time);
+        }
+
+        @Override
+        public void responseBodyEnd(@NonNull CurlHttp curl, long time) {
+            record("responseBodyEnd", time);
+        }
+
+        @Override
+        public void callFailed(@NonNull CurlHttp curl, @NonNull IOException error) {
+            record("callFailed", 0);
+        }
+    }
+
+    @Test
+    public void getDecentSizedFileDirect() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            Buffer body = randomBody(HUGE_BUFFER);
+
+            byte[] expected = body.clone().readByteArray();
+
+            server.enqueue(new MockResponse()
+                    .setResponseCode(200)
+                    .setBody(body));
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            ByteBuffer received = ByteBuffer.allocateDirect(expected.length + 1);
+
+            try (ReadableByteChannel channel = conn.getCurl().newReadableChannel()) {
+                while (channel.read(received) != -1) {
+                    // keep reading
+                }
+            }
+
+            received.flip();
+
+            assertEquals(ByteBuffer.wrap(expected), received);
+        }
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void readIntoReadOnlyDirectBuffer() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("Immutable"));
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            ByteBuffer readOnly = ByteBuffer.allocateDirect(64).asReadOnlyBuffer();
+
+            try (ReadableByteChannel channel = conn.getCurl().newReadableChannel()) {
+                channel.read(readOnly);
+            }
+        }
+    }
+
     @AfterClass
     public static void cleanup() throws IOException {
         baseTeardown();
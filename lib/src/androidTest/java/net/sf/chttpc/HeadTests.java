@@ -13,6 +13,7 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +25,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class HeadTests extends BaseTestSuite {
@@ -111,6 +113,41 @@ public class HeadTests extends BaseTestSuite {
         }
     }
 
+    @Test
+    public void testHeaderSet() throws Exception {
+        try (MockWebServer server = new MockWebServer();
+             HeaderSet headers = new HeaderSet.Builder()
+                     .addHeaderField("X-Foobar", "1")
+                     .addHeaderField("X-Client", "test")
+                     .setHeaderField("Accept", null)
+                     .build()) {
+            server.enqueue(new MockResponse().setResponseCode(201));
+            server.enqueue(new MockResponse().setResponseCode(201));
+
+            for (int i = 0; i < 2; ++i) {
+                CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+                conn.getCurl().setHeaderSet(headers);
+
+                conn.setRequestMethod("HEAD");
+                conn.setUrlString(server.url("/").toString());
+
+                if (i == 1) {
+                    conn.setRequestProperty("x-foobar", "2");
+                }
+
+                assertThat(conn.getRequestProperty("X-Client")).isEqualTo("test");
+                assertThat(conn.getResponseCode()).isEqualTo(201);
+
+                final RecordedRequest request = server.takeRequest();
+
+                assertThat(request.getHeaders().values("X-Foobar")).containsExactly(String.valueOf(i + 1));
+                assertThat(request.getHeader("X-Client")).isEqualTo("test");
+                assertThat(request.getHeader("Accept")).isNull();
+            }
+        }
+    }
+
     @Test
     public void testHeadAddEmptyClientHeader() throws Exception {
         try (MockWebServer server = new MockWebServer()) {
@@ -579,6 +616,103 @@ public class HeadTests extends BaseTestSuite {
             assertThat(actualMap.entrySet())
                     .comparingElementsUsing(EqualsIgnoreCase.INSTANCE)
                     .containsExactlyElementsIn(expectedMap.entrySet());
+
+            for (Map.Entry<String, List<String>> entry : actualMap.entrySet()) {
+                final List<String> values = entry.getValue();
+
+                assertEquals(entry.getKey().hashCode() ^ values.hashCode(), entry.hashCode());
+                assertEquals(new ArrayList<>(values), values);
+                assertEquals(new ArrayList<>(values).hashCode(), values.hashCode());
+            }
+        }
+    }
+
+    @Test
+    public void testResponseHeaderMapInvalidatedByReset() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+            server.enqueue(new MockResponse()
+                    .addHeader("ETag", "\"first\"")
+                    .addHeader("Vary", "Accept")
+                    .addHeader("vary", "Accept-Encoding"));
+
+            conn.setRequestMethod("HEAD");
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            Map<String, List<String>> map = conn.getHeaderFields();
+
+            assertThat(map.get("etag")).containsExactly("\"first\"");
+            assertThat(map.get("VARY")).containsExactly("Accept", "Accept-Encoding").inOrder();
+            assertNull(map.get("Oddduck"));
+
+            conn.reset();
+
+            try {
+                map.get("ETag");
+
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testCommonHeadersAreShared() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().addHeader("cache-control", "no-cache"));
+            server.enqueue(new MockResponse().addHeader("Cache-Control", "no-cache"));
+
+            String[] names = new String[2];
+            String[] values = new String[2];
+
+            for (int i = 0; i < 2; ++i) {
+                CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+                conn.setRequestMethod("HEAD");
+                conn.setUrlString(server.url("/").toString());
+
+                assertEquals(200, conn.getResponseCode());
+
+                for (Map.Entry<String, List<String>> entry : conn.getHeaderFields().entrySet()) {
+                    if ("Cache-Control".equalsIgnoreCase(entry.getKey())) {
+                        names[i] = entry.getKey();
+                        values[i] = entry.getValue().get(0);
+                    }
+                }
+            }
+
+            assertEquals("Cache-Control", names[0]);
+            assertThat(names[1]).isSameAs(names[0]);
+            assertEquals("no-cache", values[0]);
+            assertThat(values[1]).isSameAs(values[0]);
+        }
+    }
+
+    @Test
+    public void testHeaderFieldDate() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+
+            server.enqueue(new MockResponse()
+                    .addHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT")
+                    .addHeader("Last-Modified", "Sunday, 06-Nov-94 08:49:37 GMT")
+                    .addHeader("X-Asctime", "Sun Nov  6 08:49:37 1994")
+                    .addHeader("Expires", "0"));
+
+            conn.setRequestMethod("HEAD");
+            conn.setUrlString(server.url("/").toString());
+
+            assertEquals(200, conn.getResponseCode());
+
+            assertEquals(784111777000L, conn.getHeaderFieldDate("Date", -1));
+            assertEquals(784111777000L, conn.getHeaderFieldDate("last-modified", -1));
+            assertEquals(784111777000L, conn.getHeaderFieldDate("X-Asctime", -1));
+            assertEquals(-1, conn.getHeaderFieldDate("Expires", -1));
+            assertEquals(-1, conn.getHeaderFieldDate("X-Missing", -1));
         }
     }
 
@@ -90,6 +90,42 @@ public class InterruptionTests extends BaseTestSuite {
         t.join();
     }
 
+    @Test(timeout = 2000)
+    public void testCancelFromAnotherThread() throws Exception {
+        try (final MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse()
+                    .setResponseCode(200)
+                    .setBody("Hi!")
+                    .setBodyDelay(Long.MAX_VALUE, TimeUnit.MILLISECONDS));
+
+            final CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.setUrlString(server.url("/").toString());
+
+            FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    try (InputStream stream = conn.getInputStream()) {
+                        return stream.read();
+                    }
+                }
+            });
+
+            new Thread(task, "Cancellation Test").start();
+
+            server.takeRequest();
+
+            conn.getCurl().cancel();
+
+            try {
+                task.get();
+
+                fail("The request must be canceled");
+            } catch (ExecutionException e) {
+                assertEquals("Canceled", e.getCause().getMessage());
+            }
+        }
+    }
+
     @Test
     public void testReadInterruptionProgress() throws IOException, InterruptedException {
         final MockWebServer server = new MockWebServer();
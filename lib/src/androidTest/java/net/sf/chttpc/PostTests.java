@@ -1,5 +1,6 @@
 package net.sf.chttpc;
 
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.test.runner.AndroidJUnit4;
 
@@ -10,9 +11,13 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -22,6 +27,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import okhttp3.mockwebserver.SocketPolicy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class PostTests extends BaseTestSuite {
@@ -77,6 +83,108 @@ public class PostTests extends BaseTestSuite {
         }
     }
 
+    @Test(timeout = 2000)
+    public void testFixedLengthUploadDirect() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("Nice"));
+
+            final byte[] bigBody = new byte[100000];
+            Arrays.fill(bigBody, (byte) 'd');
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(bigBody.length);
+            direct.put(bigBody).flip();
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Expect", null);
+            conn.setFixedLengthStreamingMode(bigBody.length);
+            conn.setUrlString(server.url("/").toString());
+            conn.connect();
+
+            try (WritableByteChannel channel = conn.getCurl().newWritableChannel()) {
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+            }
+
+            RecordedRequest request = server.takeRequest();
+
+            assertEquals("Nice", convertStreamToString(conn.getInputStream()));
+            assertEquals(new String(bigBody, StandardCharsets.US_ASCII), request.getBody().readUtf8());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("all")
+    public void testUploadFromFile() throws Exception {
+        File f = File.createTempFile("fh74ja", "q8ls1k");
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("Nice"));
+
+            final byte[] bigBody = new byte[300000];
+            Arrays.fill(bigBody, (byte) 'f');
+
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write("skipped".getBytes(StandardCharsets.US_ASCII));
+                fos.write(bigBody);
+            }
+
+            try (ParcelFileDescriptor fd = ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Expect", null);
+                conn.setUrlString(server.url("/").toString());
+                conn.getCurl().uploadFrom(fd.getFd(), "skipped".length(), bigBody.length);
+                conn.connect();
+
+                RecordedRequest request = server.takeRequest();
+
+                assertEquals("Nice", convertStreamToString(conn.getInputStream()));
+                assertEquals(String.valueOf(bigBody.length), request.getHeader("Content-Length"));
+                assertEquals(new String(bigBody, StandardCharsets.US_ASCII), request.getBody().readUtf8());
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("all")
+    public void testUploadFromShortFile() throws Exception {
+        File f = File.createTempFile("fh74ja", "q8ls1k");
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("Nice"));
+
+            final byte[] body = new byte[1000];
+            Arrays.fill(body, (byte) 'f');
+
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write(body);
+            }
+
+            try (ParcelFileDescriptor fd = ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Expect", null);
+                conn.setUrlString(server.url("/").toString());
+                conn.getCurl().uploadFrom(fd.getFd(), 0, body.length * 2);
+
+                try {
+                    conn.connect();
+                    conn.getInputStream().close();
+
+                    fail();
+                } catch (IOException expected) {
+                    assertEquals("Upload source ended prematurely", expected.getMessage());
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
     @Test(timeout = 2000)
     public void testChunkedLengthUploadContinue() throws Exception {
         try (MockWebServer server = new MockWebServer()) {
@@ -140,6 +248,35 @@ public class PostTests extends BaseTestSuite {
         }
     }
 
+    @Test(timeout = 5000)
+    public void testChunkedUploadSmallWrites() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("Nice"));
+
+            final byte[] piece = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+            final int count = 20000;
+
+            CurlConnection conn = new CurlConnection(CurlHttp.create(queue), config);
+            conn.getCurl().setSendBufferSize(16 * 1024);
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Expect", null);
+            conn.setUrlString(server.url("/").toString());
+
+            try (OutputStream stream = conn.getOutputStream()) {
+                for (int i = 0; i < count; ++i) {
+                    stream.write(piece);
+                }
+            }
+
+            assertEquals("Nice", convertStreamToString(conn.getInputStream()));
+
+            RecordedRequest request = server.takeRequest();
+
+            assertEquals(piece.length * count, request.getBodySize());
+        }
+    }
+
     @Test(timeout = 2000)
     public void testChunkedLengthUploadNoExpect() throws Exception {
         try (MockWebServer server = new MockWebServer()) {
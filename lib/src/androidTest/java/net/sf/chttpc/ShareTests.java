@@ -0,0 +1,175 @@
+package net.sf.chttpc;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.sf.chttpc.test.BaseTestSuite;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ShareTests extends BaseTestSuite {
+    @BeforeClass
+    public static void setupCleaner() throws Exception {
+        baseSetup();
+    }
+
+    @AfterClass
+    public static void cleanup() throws Exception {
+        baseTeardown();
+    }
+
+    @Test
+    public void testConnectionReusedAcrossHandles() throws Exception {
+        final CurlShare share = CurlShare.create(4);
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+            server.enqueue(new MockResponse().setBody("second"));
+
+            CurlConnection first = new CurlConnection(CurlHttp.create(queue, share), config);
+            first.setUrlString(server.url("/").toString());
+
+            try (InputStream body = first.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("first");
+            }
+
+            CurlConnection second = new CurlConnection(CurlHttp.create(queue, share), config);
+            second.setUrlString(server.url("/").toString());
+
+            try (InputStream body = second.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("second");
+            }
+
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(1);
+            assertThat(server.getRequestCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testConnectionNotReusedAcrossShares() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setBody("first"));
+            server.enqueue(new MockResponse().setBody("second"));
+
+            CurlConnection first = new CurlConnection(CurlHttp.create(queue, CurlShare.create(4)), config);
+            first.setUrlString(server.url("/").toString());
+
+            try (InputStream body = first.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("first");
+            }
+
+            CurlConnection second = new CurlConnection(CurlHttp.create(queue, CurlShare.create(4)), config);
+            second.setUrlString(server.url("/").toString());
+
+            try (InputStream body = second.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("second");
+            }
+
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testTlsSessionResumed() throws Exception {
+        final CurlShare share = CurlShare.create(4, 4);
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.useHttps(factory, false);
+
+            // force new connection for each request
+            server.enqueue(new MockResponse().setBody("first").setHeader("Connection", "close"));
+            server.enqueue(new MockResponse().setBody("second").setHeader("Connection", "close"));
+
+            CurlConnection first = new CurlConnection(CurlHttp.create(queue, share), config);
+            first.setUrlString(server.url("/").toString());
+
+            try (InputStream body = first.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("first");
+            }
+
+            assertThat(share.getTlsSessionMisses()).isEqualTo(1);
+            assertThat(share.getTlsSessionHits()).isEqualTo(0);
+            assertThat(share.getTlsSessionCount()).isEqualTo(1);
+
+            CurlConnection second = new CurlConnection(CurlHttp.create(queue, share), config);
+            second.setUrlString(server.url("/").toString());
+
+            try (InputStream body = second.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("second");
+            }
+
+            assertThat(share.getTlsSessionMisses()).isEqualTo(1);
+            assertThat(share.getTlsSessionHits()).isEqualTo(1);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testTlsSessionsSurviveRestart() throws Exception {
+        final File store = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "tls-sessions");
+
+        //noinspection ResultOfMethodCallIgnored
+        store.delete();
+
+        try (MockWebServer server = new MockWebServer()) {
+            server.useHttps(factory, false);
+
+            server.enqueue(new MockResponse().setBody("first").setHeader("Connection", "close"));
+            server.enqueue(new MockResponse().setBody("second").setHeader("Connection", "close"));
+
+            final CurlShare before = CurlShare.create(4, 4);
+
+            CurlConnection first = new CurlConnection(CurlHttp.create(queue, before), config);
+            first.setUrlString(server.url("/").toString());
+
+            try (InputStream body = first.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("first");
+            }
+
+            before.saveTlsSessions(store);
+
+            final CurlShare after = CurlShare.create(4, 4);
+
+            // 0 if mbedTLS is too old to serialize sessions
+            final int loaded = after.loadTlsSessions(store);
+
+            assertThat(loaded).isAtMost(1);
+            assertThat(after.getTlsSessionCount()).isEqualTo(loaded);
+
+            CurlConnection second = new CurlConnection(CurlHttp.create(queue, after), config);
+            second.setUrlString(server.url("/").toString());
+
+            try (InputStream body = second.getInputStream()) {
+                assertThat(convertStreamToString(body)).isEqualTo("second");
+            }
+
+            assertThat(after.getTlsSessionHits()).isEqualTo(loaded);
+            assertThat(after.getTlsSessionHits() + after.getTlsSessionMisses()).isEqualTo(1);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            store.delete();
+        }
+    }
+
+    @Test
+    public void testMissingTlsSessionStore() throws Exception {
+        final File store = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "no-such-store");
+
+        assertThat(CurlShare.create(4, 4).loadTlsSessions(store)).isEqualTo(0);
+    }
+}
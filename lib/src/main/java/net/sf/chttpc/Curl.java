@@ -2,20 +2,25 @@ package net.sf.chttpc;
 
 import android.Manifest.permission;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.RequiresPermission;
+import android.util.Log;
 
 import net.sf.xfd.UsedByJni;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.net.BindException;
@@ -33,6 +38,7 @@ import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
 import java.net.UnknownHostException;
 import java.net.UnknownServiceException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import javax.net.ssl.SSLException;
@@ -40,8 +46,28 @@ import javax.net.ssl.SSLException;
 public final class Curl {
     private Curl() {}
 
+    private static final String TAG = "chttpc";
+
     private static volatile boolean initialized;
 
+    // keep in sync with METRICS in metrics.h
+    public static final int METRIC_CONNECTIONS_OPENED = 0;
+    public static final int METRIC_CONNECTIONS_REUSED = 1;
+    public static final int METRIC_CONNECTIONS_CLOSED = 2;
+    public static final int METRIC_DNS_LOOKUPS = 3;
+    public static final int METRIC_TLS_FULL_HANDSHAKES = 4;
+    public static final int METRIC_TLS_RESUMED_HANDSHAKES = 5;
+    public static final int METRIC_BYTES_SENT = 6;
+    public static final int METRIC_BYTES_RECEIVED = 7;
+    public static final int METRIC_SEND_PAUSES = 8;
+    public static final int METRIC_SEND_RESUMES = 9;
+    public static final int METRIC_RECV_PAUSES = 10;
+    public static final int METRIC_RECV_RESUMES = 11;
+    public static final int METRIC_TIMEOUTS = 12;
+    public static final int METRIC_LIVE_HANDLES = 13;
+
+    public static final int METRIC_COUNT = 14;
+
     /**
      * Initialize and set up chttpc to use in place of system builtin {@link HttpURLConnection}
      * implementation.
@@ -68,6 +94,27 @@ public final class Curl {
         URL.setURLStreamHandlerFactory(factory);
     }
 
+    /**
+     * Copies current values of process-wide metrics into provided array, indexed by
+     * {@code METRIC_*} constants. All metrics except {@link #METRIC_LIVE_HANDLES} are counters,
+     * that only grow since the library was loaded, so rates are obtained by subtracting
+     * subsequent snapshots. The metrics are updated concurrently and are not captured atomically
+     * as a whole.
+     *
+     * <p/>
+     *
+     * Connections are counted when curl opens or closes a socket, reused connections and bytes
+     * (including headers) when a request completes. DNS lookups only include ones, that have
+     * missed the DNS cache.
+     *
+     * @return number of values written, at most {@link #METRIC_COUNT}
+     */
+    public static int snapshotMetrics(@NonNull long[] out) {
+        CurlHttp.loadLibrary();
+
+        return getMetrics(out);
+    }
+
     public interface DnsSource {
         @Nullable
         String getDnsServer();
@@ -91,6 +138,9 @@ public final class Curl {
         private InterfaceSource ifSource;
         private ReferenceQueue<Object> refQueue;
         private ProxySource proxySource;
+        private CurlShare share;
+        private File tlsSessionStore;
+        private EventListener eventListener;
 
         public ConnectionBuilder(Context context) {
             this.context = context.getApplicationContext();
@@ -120,6 +170,42 @@ public final class Curl {
             return this;
         }
 
+        /**
+         * Set the pool of connections, used by created {@link CurlConnection} instances. By default
+         * all connections are kept in {@link CurlShare#getDefault() the default pool}.
+         */
+        public ConnectionBuilder setShare(@NonNull CurlShare share) {
+            this.share = share;
+
+            return this;
+        }
+
+        /**
+         * Persist TLS sessions of the share in the file, so that the first connections after
+         * process restart can use abbreviated handshake. The sessions are loaded, when {@link #build}
+         * is called, and saved in background each time the application UI is hidden.
+         *
+         * <p/>
+         *
+         * The file contains secret keys, see {@link CurlShare#saveTlsSessions}. Disabled by default.
+         */
+        public ConnectionBuilder setTlsSessionStore(@NonNull File file) {
+            this.tlsSessionStore = file;
+
+            return this;
+        }
+
+        /**
+         * Set the listener, that is notified about phases of requests, performed by created
+         * {@link CurlConnection} instances. The listener is shared by all connections and must be
+         * thread-safe. By default no listener is installed.
+         */
+        public ConnectionBuilder setEventListener(@NonNull EventListener eventListener) {
+            this.eventListener = eventListener;
+
+            return this;
+        }
+
         private static NougatNetworkDetector modernNetworkDetector;
 
         @SuppressWarnings({"NewApi", "MissingPermission"})
@@ -159,7 +245,55 @@ public final class Curl {
                 reaper.start();
             }
 
-            return new CurlURLStreamHandlerFactory(refQueue, ifSource, dnsSource, proxySource);
+            if (share == null) {
+                share = CurlShare.getDefault();
+            }
+
+            if (tlsSessionStore != null) {
+                try {
+                    share.loadTlsSessions(tlsSessionStore);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to load TLS sessions", e);
+                }
+
+                context.registerComponentCallbacks(new SessionSaver(share, tlsSessionStore));
+            }
+
+            return new CurlURLStreamHandlerFactory(refQueue, ifSource, dnsSource, proxySource, share, eventListener);
+        }
+    }
+
+    private static final class SessionSaver implements ComponentCallbacks2, Runnable {
+        private final CurlShare share;
+        private final File file;
+
+        SessionSaver(CurlShare share, File file) {
+            this.share = share;
+            this.file = file;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                share.saveTlsSessionsIfChanged(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save TLS sessions", e);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
         }
     }
 
@@ -195,10 +329,27 @@ public final class Curl {
                                            InterfaceSource interfaceSource,
                                            DnsSource dnsSource,
                                            ProxySource proxySource) {
+            this(queue, interfaceSource, dnsSource, proxySource, CurlShare.getDefault());
+        }
+
+        public CurlURLStreamHandlerFactory(ReferenceQueue<Object> queue,
+                                           InterfaceSource interfaceSource,
+                                           DnsSource dnsSource,
+                                           ProxySource proxySource,
+                                           CurlShare share) {
+            this(queue, interfaceSource, dnsSource, proxySource, share, null);
+        }
+
+        public CurlURLStreamHandlerFactory(ReferenceQueue<Object> queue,
+                                           InterfaceSource interfaceSource,
+                                           DnsSource dnsSource,
+                                           ProxySource proxySource,
+                                           CurlShare share,
+                                           EventListener eventListener) {
             this.dnsSource = dnsSource;
             this.proxySource = proxySource;
             this.interfaceSource = interfaceSource;
-            this.handler = new CurlURLStreamHandler(queue, this);
+            this.handler = new CurlURLStreamHandler(queue, this, share, eventListener);
         }
 
         @Override
@@ -217,6 +368,21 @@ public final class Curl {
             return dnsSource == null ? null : dnsSource.getDnsServer();
         }
 
+        /**
+         * Resolve the host in background and place the result in process-wide DNS cache, so that
+         * the subsequent connections to the host don't have to wait for DNS lookup.
+         */
+        public void prefetch(@NonNull final String host) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CurlHttp.loadLibrary();
+
+                    Curl.prefetch(host, getDnsServers(), true);
+                }
+            });
+        }
+
         @Override
         public String getNetworkInterface(@NonNull MutableUrl url) {
             return interfaceSource == null ? null : interfaceSource.getNetworkInterface(url);
@@ -232,15 +398,21 @@ public final class Curl {
     public static final class CurlURLStreamHandler extends URLStreamHandler {
         private final ReferenceQueue<Object> refQueue;
         private final CurlConnection.Config config;
+        private final CurlShare share;
+        private final EventListener eventListener;
 
-        private CurlURLStreamHandler(ReferenceQueue<Object> refQueue, CurlConnection.Config config) {
+        private CurlURLStreamHandler(ReferenceQueue<Object> refQueue, CurlConnection.Config config, CurlShare share,
+                                     EventListener eventListener) {
             this.refQueue = refQueue;
             this.config = config;
+            this.share = share;
+            this.eventListener = eventListener;
         }
 
         @Override
         public CurlConnection openConnection(URL url) throws IOException {
-            final CurlHttp curl = CurlHttp.create(refQueue);
+            final CurlHttp curl = CurlHttp.create(refQueue, share);
+            curl.setEventListener(eventListener);
             final CurlConnection connection = new CurlConnection(curl, config);
             connection.setUrlString(url.toString());
             connection.setProxy(config.getProxy(curl.url));
@@ -250,7 +422,9 @@ public final class Curl {
 
         @Override
         public CurlConnection openConnection(URL url, Proxy proxy) throws IOException {
-            final CurlConnection connection = new CurlConnection(CurlHttp.create(refQueue), config);
+            final CurlHttp curl = CurlHttp.create(refQueue, share);
+            curl.setEventListener(eventListener);
+            final CurlConnection connection = new CurlConnection(curl, config);
             connection.setUrlString(url.toString());
             connection.setProxy(proxy);
             connection.setRequestProperty("Expect", null);
@@ -286,16 +460,29 @@ public final class Curl {
         @Override
         public void onLost(Network network) {
             dnsServer = null;
+
+            flushDns();
         }
 
         @Override
         public void onAvailable(Network network) {
             updateLinkCfg(netMgr.getLinkProperties(network));
+
+            flushDns();
         }
 
         @Override
         public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
             updateLinkCfg(linkProperties);
+
+            flushDns();
+        }
+
+        private static void flushDns() {
+            // addresses, resolved on previous network, may be unreachable or suboptimal now
+            CurlHttp.loadLibrary();
+
+            Curl.flushDnsCache();
         }
 
         private void updateLinkCfg(LinkProperties linkProperties) {
@@ -331,6 +518,7 @@ public final class Curl {
     private static final int ERROR_ILLEGAL_STATE = 13;
     private static final int ERROR_INTERRUPTED = 14;
     private static final int ERROR_CLOSED = 15;
+    private static final int ERROR_CANCELLED = 16;
 
     @UsedByJni
     @SuppressWarnings("unused")
@@ -358,6 +546,8 @@ public final class Curl {
                 throw new OutOfMemoryError();
             case ERROR_CLOSED:
                 throw new IOException("Already closed");
+            case ERROR_CANCELLED:
+                throw new IOException("Canceled");
             case ERROR_SOCKET_CONNECT_TIMEOUT:
                 throw new SocketTimeoutException("Socket connect timeout reached");
             case ERROR_SOCKET_READ_TIMEOUT:
@@ -378,10 +568,22 @@ public final class Curl {
 
     static native void nativeInit();
 
-    static native long nativeCreate(int flags);
+    static native long nativeCreate(int flags, long sharePtr);
+
+    static native long nativeCreateShare(int maxConnections, int maxTlsSessions);
+
+    static native void getTlsCacheStats(long sharePtr, long[] stats);
+
+    static native int getMetrics(long[] out);
+
+    static native byte[] exportTlsSessions(long sharePtr);
+
+    static native int importTlsSessions(long sharePtr, byte[] data, int length);
 
     static native void setOptionInt(long curlPtr, long value, int option);
 
+    static native int available(long curlPtr);
+
     static native char[] nativeConfigure(
             long curlPtr,
             long i10nPtr,
@@ -399,16 +601,36 @@ public final class Curl {
             int chunkSize,
             boolean followRedirects,
             boolean doInput,
-            boolean doOutput) throws IOException;
+            boolean doOutput,
+            int dirtyOptions,
+            CurlHttp asyncTarget) throws IOException;
+
+    static native void nativeRestart(long curlPtr, long i10nPtr, char[] url, int urlLength) throws IOException;
 
     static native int read(long curlPtr, long i10nPtr, Object buf, int off, int count) throws IOException;
 
     static native int write(long curlPtr, long i10nPtr, Object buf, int off, int count) throws IOException;
 
+    static native int readDirect(long curlPtr, long i10nPtr, ByteBuffer buf, int off, int count) throws IOException;
+
+    static native int writeDirect(long curlPtr, long i10nPtr, ByteBuffer buf, int off, int count) throws IOException;
+
+    static native long downloadTo(long curlPtr, long i10nPtr, int fd, long offset) throws IOException;
+
+    static native void uploadFrom(long curlPtr, int fd, long offset, long length);
+
     static native void closeOutput(long curlPtr, long i10nPtr) throws IOException;
 
+    static native void cancel(long curlPtr);
+
     static native void clearHeaders(long curlPtr);
 
+    static native long nativeCreateHeaderSet(String[] pairs, int count);
+
+    static native void releaseHeaderSet(long setPtr);
+
+    static native void setHeaderSet(long curlPtr, long setPtr);
+
     static native String[] getHeaders(long curlPtr, boolean b);
 
     static native void setHeader(long curlPtr, String key, String value, int keyLen, int valueLen);
@@ -419,8 +641,24 @@ public final class Curl {
 
     static native long intHeader(long curlPtr, long defVal, String key, int l);
 
+    static native long dateHeader(long curlPtr, long defVal, String key, int l);
+
     static native String outHeader(long curlPtr, String key, int l);
 
+    static native int headerCount(long curlPtr);
+
+    static native int headerSlot(long curlPtr, String key, int l);
+
+    static native int nextHeaderSlot(long curlPtr, int from);
+
+    static native String headerKey(long curlPtr, int slot);
+
+    static native int headerValueCount(long curlPtr, int slot);
+
+    static native String headerValue(long curlPtr, int slot, int n);
+
+    static native int getTimings(long curlPtr, long[] out);
+
     static native void getLastFd(long curlPtr, int fd) throws IOException;
 
     static native void reset(long curlPtr);
@@ -428,4 +666,8 @@ public final class Curl {
     static native void dispose(long curlPtr);
 
     static native String getDnsCompat();
+
+    static native void prefetch(String host, String dns, boolean ipv6);
+
+    static native void flushDnsCache();
 }
@@ -17,7 +17,6 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
-import java.sql.Date;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -30,8 +29,6 @@ public class CurlConnection extends HttpURLConnection {
     private final CurlHttp curl;
     private final Config config;
 
-    private HeaderMap headerMap;
-
     protected Proxy proxy;
 
     protected CurlConnection(@NonNull CurlHttp curl, @NonNull Config config) {
@@ -57,6 +54,15 @@ public class CurlConnection extends HttpURLConnection {
         this.proxy = proxy;
     }
 
+    /**
+     * Set the listener, that is notified about phases of the request.
+     *
+     * @see CurlHttp#setEventListener
+     */
+    public void setEventListener(@Nullable EventListener listener) {
+        curl.setEventListener(listener);
+    }
+
     @NonNull
     @CheckResult
     public CurlHttp getCurl() {
@@ -130,56 +136,19 @@ public class CurlConnection extends HttpURLConnection {
     @Override
     @AnyThread
     @CheckResult
-    @SuppressWarnings("deprecation")
     public long getHeaderFieldDate(@NonNull String name, long Default) {
-        final String value = getHeaderField(name);
-
-        if (value == null) {
-            return Default;
-        }
+        assertConnected();
 
-        return Date.parse(value.contains("GMT") ? value : value + " GMT");
+        return curl.getResponseHeaderDate(name, Default);
     }
 
     @Override
     @AnyThread
     @CheckResult
-    @SuppressWarnings("unchecked")
     public @NonNull Map<String, List<String>> getHeaderFields() {
         assertConnected();
 
-        HeaderMap headerMap = this.headerMap;
-
-        if (headerMap != null) {
-            return (Map) headerMap;
-        }
-
-        final String[] cachedHeaders = curl.getResponseHeaders();
-
-        if (cachedHeaders == null || cachedHeaders.length == 0) {
-            return Collections.emptyMap();
-        }
-
-        headerMap = HeaderMap.create(cachedHeaders.length);
-
-        for (int i = 0; i < cachedHeaders.length; ++i) {
-            final String headerName = cachedHeaders[i];
-
-            if (headerName == null) {
-                break;
-            }
-
-            int j = i + 2;
-            while (j < cachedHeaders.length && cachedHeaders[j] != null) {
-                ++j;
-            }
-
-            headerMap.append(headerName, cachedHeaders, i + 1, j);
-
-            i = j;
-        }
-
-        return (Map) (this.headerMap = headerMap);
+        return curl.getResponseHeaderMap();
     }
 
     @Override
@@ -8,6 +8,7 @@ import android.system.Os;
 
 import net.sf.xfd.Interruption;
 import net.sf.xfd.NativePeer;
+import net.sf.xfd.UsedByJni;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,7 +18,14 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.ReferenceQueue;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 @NativePeer
@@ -34,6 +42,9 @@ public class CurlHttp {
         debug = Boolean.valueOf(System.getProperty(DEBUG));
     }
 
+    // does nothing, but ensures that the native library is loaded
+    static void loadLibrary() {}
+
     public static final int GET = 0;
     public static final int POST = 1;
     public static final int PUT = 2;
@@ -71,14 +82,47 @@ public class CurlHttp {
     @Flags
     public static final int DEFAULT_FLAGS = FLAG_USE_IPV6 | FLAG_TCP_NODELAY;
 
+    // keep in sync with TIMINGS in native-lib.c
+    public static final int TIMING_DNS = 0;
+    public static final int TIMING_CONNECT = 1;
+    public static final int TIMING_TLS = 2;
+    public static final int TIMING_PRETRANSFER = 3;
+    public static final int TIMING_FIRST_BYTE = 4;
+    public static final int TIMING_TOTAL = 5;
+    public static final int TIMING_REDIRECT = 6;
+    public static final int TIMING_BYTES_SENT = 7;
+    public static final int TIMING_BYTES_RECEIVED = 8;
+    public static final int TIMING_REUSED = 9;
+
+    public static final int TIMING_COUNT = 10;
+
     private static final int OPTION_TCP_KEEPALIVE_PERIOD  = 0;
     private static final int OPTION_100_CONTINUE_TIMEOUT  = 1;
     private static final int OPTION_CONNECTIONS_IN_CACHE  = 2;
     private static final int OPTION_MAX_REDIRECT_COUNT  = 3;
+    private static final int OPTION_RECV_BUFFER_SIZE  = 4;
+    private static final int OPTION_SEND_BUFFER_SIZE  = 5;
+
+    // phases of the current request, that have been reported to the event listener
+    private static final int STAGE_IDLE = 0;
+    private static final int STAGE_STARTED = 1;
+    private static final int STAGE_CONNECTED = 2;
+    private static final int STAGE_SENT = 3;
+    private static final int STAGE_RESPONDING = 4;
 
     protected final MutableUrl url;
     protected final long curlPtr;
 
+    private final RequestOptions options = new RequestOptions();
+
+    private Callback callback;
+    private ResponseHeaders responseHeaders;
+    private RuntimeException callbackFailure;
+
+    private EventListener eventListener;
+    private long[] eventTimings;
+    private int stage;
+
     /**
      * Creates and initializes a new curl handle. The native handles, created by this constructor,
      * do not get garbage-collected automatically, — you must ensure, that associated
@@ -91,23 +135,39 @@ public class CurlHttp {
      * {@link #configure}.
      */
     protected CurlHttp(MutableUrl url, @Flags int flags) {
+        this(url, flags, CurlShare.getDefault());
+    }
+
+    /**
+     * Same as {@link #CurlHttp(MutableUrl, int)}, but allows to specify the pool of connections,
+     * used by created handle.
+     */
+    protected CurlHttp(MutableUrl url, @Flags int flags, @NonNull CurlShare share) {
         this.url = url;
 
-        this.curlPtr = Curl.nativeCreate(flags);
+        this.curlPtr = Curl.nativeCreate(flags, share.getNativePtr());
     }
 
     protected static CurlHttp create(@NonNull ReferenceQueue<Object> refQueue) {
+        return create(refQueue, CurlShare.getDefault());
+    }
+
+    protected static CurlHttp create(@NonNull ReferenceQueue<Object> refQueue, @NonNull CurlShare share) {
         int flags = DEFAULT_FLAGS;
 
         if (debug) {
             flags |= FLAG_ENABLE_DEBUG;
         }
 
-        return create(refQueue, flags);
+        return create(refQueue, flags, share);
     }
 
     protected static CurlHttp create(@NonNull ReferenceQueue<Object> refQueue, int flags) {
-        final CurlHttp curl = new CurlHttp(new MutableUrl(), flags);
+        return create(refQueue, flags, CurlShare.getDefault());
+    }
+
+    protected static CurlHttp create(@NonNull ReferenceQueue<Object> refQueue, int flags, @NonNull CurlShare share) {
+        final CurlHttp curl = new CurlHttp(new MutableUrl(), flags, share);
 
         CleanerRef.create(curl, curl.curlPtr, refQueue);
 
@@ -145,8 +205,9 @@ public class CurlHttp {
     }
 
     /**
-     * Change size of internal cache, used for storing connections for reuse. The caches are local
-     * to each {@link CurlHttp} instance.
+     * Change size of internal cache, used for storing connections for reuse. The cached connections
+     * belong to the {@link CurlShare}, used to create this instance, and can be reused by other
+     * {@link CurlHttp} instances, created with the same share.
      */
     public void setConnectionCacheSize(int size) {
         Curl.setOptionInt(curlPtr, size, OPTION_CONNECTIONS_IN_CACHE);
@@ -160,6 +221,45 @@ public class CurlHttp {
         Curl.setOptionInt(curlPtr, count, OPTION_MAX_REDIRECT_COUNT);
     }
 
+    /**
+     * Set size of native buffer for received data. The response body is received in background
+     * until the buffer is full, even when nobody is reading it. The size is rounded up to power
+     * of two, and can not be smaller than 16Kb. Default: 64Kb.
+     *
+     * <p/>
+     *
+     * This method can not be called while a request is in progress, — call it before {@link #configure}
+     * or after {@link #reset}.
+     */
+    public void setReceiveBufferSize(int size) {
+        Curl.setOptionInt(curlPtr, size, OPTION_RECV_BUFFER_SIZE);
+    }
+
+    /**
+     * Set size of native buffer for request body. Writes to the stream, returned by
+     * {@link #newOutputStream}, copy data to the buffer and return immediately, while the data
+     * is sent in background. The writes only block when the buffer is full. As consequence,
+     * failures to send the data might be reported by subsequent writes or by closing the stream.
+     * The size is rounded up to power of two, and can not be smaller than 16Kb. Default: 64Kb.
+     *
+     * <p/>
+     *
+     * This method can not be called while a request is in progress, — call it before {@link #configure}
+     * or after {@link #reset}.
+     */
+    public void setSendBufferSize(int size) {
+        Curl.setOptionInt(curlPtr, size, OPTION_SEND_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns number of response body bytes, that have been received in background and can be read
+     * without blocking.
+     */
+    @CheckResult
+    public int available() {
+        return Curl.available(curlPtr);
+    }
+
     /**
      * Set the header with specified name to specified value. This method does not perform any
      * validation of provided header.
@@ -187,12 +287,26 @@ public class CurlHttp {
     /**
      * Remove all previously set request headers. If you reuse curl instance without calling this
      * method, all previously set headers will be submitted with following requests. This method
-     * is independent from {@link #reset}.
+     * is independent from {@link #reset}. The attached {@link HeaderSet} is not affected.
      */
     public void clearHeaders() {
         Curl.clearHeaders(curlPtr);
     }
 
+    /**
+     * Use headers from specified set in following requests, in addition to headers, that are
+     * set on this instance. The set can not be changed during transfer.
+     *
+     * @param headerSet the set of headers or {@code null} to detach the current set
+     */
+    public void setHeaderSet(@Nullable HeaderSet headerSet) {
+        if (headerSet == null) {
+            Curl.setHeaderSet(curlPtr, 0);
+        } else {
+            headerSet.attachTo(curlPtr);
+        }
+    }
+
     /**
      * Returns value of previously set request header. If multiple headers with specified name
      * were added via {@link #addHeaderField}, only value of the last one will be returned.
@@ -250,6 +364,42 @@ public class CurlHttp {
         return Curl.getHeaders(curlPtr, true);
     }
 
+    /**
+     * Returns response headers as a multimap with case-insensitive keys. Unlike
+     * {@link #getResponseHeaders}, this method does not copy anything: the names and values
+     * are read from native memory on first access to each of them, so looking up a few headers
+     * is almost as cheap as calling {@link #getResponseHeader(String)}.
+     *
+     * <p/>
+     *
+     * The returned map is read-only and can be used until {@link #reset} is called, after that
+     * it's methods throw {@link IllegalStateException}. Trailers, received after the response
+     * body, are not included in the map.
+     *
+     * @return map of response headers, empty if none has arrived yet
+     */
+    @NonNull
+    @CheckResult
+    public Map<String, List<String>> getResponseHeaderMap() {
+        ResponseHeaders headers = responseHeaders;
+
+        if (headers == null) {
+            responseHeaders = headers = new ResponseHeaders(this);
+        }
+
+        return headers;
+    }
+
+    private void dropResponseHeaders() {
+        final ResponseHeaders headers = responseHeaders;
+
+        if (headers != null) {
+            responseHeaders = null;
+
+            headers.invalidate();
+        }
+    }
+
     /**
      * Returns value of response header at specified position. Position 0 can be used to access
      * HTTP status line. Unlike order of elements, returned by {@link #getRequestHeaders},
@@ -315,23 +465,175 @@ public class CurlHttp {
         return Curl.intHeader(curlPtr, defaultValue, key, key.length());
     }
 
+    /**
+     * Returns value of response header, parsed as HTTP date. All three formats, permitted by
+     * RFC 7231, are accepted.
+     *
+     * @param key header name, case-insensitive
+     * @param defaultValue value to return if the header does not exist or can not be parsed
+     *
+     * @return milliseconds since epoch
+     */
+    @CheckResult
+    public long getResponseHeaderDate(@NonNull String key, long defaultValue) {
+        return Curl.dateHeader(curlPtr, defaultValue, key, key.length());
+    }
+
     @CheckResult
     public int getResponseCode() {
         return (int) Curl.intHeader(curlPtr, 0, null, 0);
     }
 
     /**
-     * Set various parameters, that affect processing of request by curl.
+     * Copies timing breakdown of the last request into provided array, indexed by {@code TIMING_*}
+     * constants. Times are in microseconds since the start of the request (including lookup
+     * in DNS cache), byte counts include headers, {@link #TIMING_REUSED} is 1 if no new connection
+     * had to be opened. Nothing is allocated, so the same array can be reused for all requests.
      *
-     * <p/>
+     * @return number of values written, at most {@link #TIMING_COUNT}, or 0 if the last request
+     * has failed before reaching the network
+     */
+    public int getTimings(@NonNull long[] out) {
+        return Curl.getTimings(curlPtr, out);
+    }
+
+    /**
+     * Set the listener, that is notified about phases of following requests.
      *
-     * You must call this method exactly once before examining response headers or using streams,
-     * returned by {@link #newInputStream} and {@link #newOutputStream}.
+     * @param listener the listener or {@code null} to stop reporting
+     */
+    public void setEventListener(@Nullable EventListener listener) {
+        this.eventListener = listener;
+    }
+
+    private void callStart() {
+        final EventListener listener = eventListener;
+
+        if (listener != null) {
+            stage = STAGE_STARTED;
+
+            listener.callStart(this);
+        }
+    }
+
+    // report phases, that have completed since the last call
+    private void reportProgress(EventListener listener, boolean finished) {
+        long[] timings = eventTimings;
+
+        if (timings == null) {
+            eventTimings = timings = new long[TIMING_COUNT];
+        }
+
+        if (Curl.getTimings(curlPtr, timings) < TIMING_COUNT) {
+            return;
+        }
+
+        final long sent = timings[TIMING_PRETRANSFER];
+        final long received = timings[TIMING_FIRST_BYTE];
+
+        if (stage == STAGE_STARTED) {
+            if (sent != 0) {
+                if (timings[TIMING_REUSED] == 0) {
+                    reportConnect(listener, timings, true);
+                }
+
+                stage = STAGE_CONNECTED;
+            } else if (finished) {
+                reportConnect(listener, timings, false);
+            }
+        }
+
+        if (stage == STAGE_CONNECTED && sent != 0) {
+            stage = STAGE_SENT;
+
+            listener.requestHeadersSent(this, sent);
+        }
+
+        if (stage == STAGE_SENT && received != 0) {
+            stage = STAGE_RESPONDING;
+
+            listener.responseHeadersStart(this, received);
+        }
+    }
+
+    private void reportConnect(EventListener listener, long[] timings, boolean connected) {
+        final long dns = timings[TIMING_DNS];
+        final long connect = timings[TIMING_CONNECT];
+        final long tls = timings[TIMING_TLS];
+
+        listener.dnsStart(this, 0);
+
+        if (dns == 0 && connect == 0) {
+            return;
+        }
+
+        listener.dnsEnd(this, dns);
+        listener.connectStart(this, dns);
+
+        if (connect == 0) {
+            return;
+        }
+
+        if (tls != 0) {
+            listener.secureConnectStart(this, connect);
+            listener.secureConnectEnd(this, tls);
+        }
+
+        if (connected) {
+            listener.connectEnd(this, Math.max(connect, tls));
+        }
+    }
+
+    private void reportProgress() {
+        final EventListener listener = eventListener;
+
+        if (listener != null && stage != STAGE_IDLE) {
+            reportProgress(listener, false);
+        }
+    }
+
+    private void bodyEnd() {
+        final EventListener listener = eventListener;
+
+        if (listener != null && stage != STAGE_IDLE) {
+            reportProgress(listener, true);
+
+            stage = STAGE_IDLE;
+
+            listener.responseBodyEnd(this, eventTimings[TIMING_TOTAL]);
+        }
+    }
+
+    private IOException callFailed(IOException error) {
+        final EventListener listener = eventListener;
+
+        if (listener != null && stage != STAGE_IDLE) {
+            reportProgress(listener, true);
+
+            stage = STAGE_IDLE;
+
+            listener.callFailed(this, error);
+        }
+
+        return error;
+    }
+
+    /**
+     * Returns options of requests, performed by this instance. The options persist between
+     * requests, and only the ones, changed since the previous request, are applied again.
+     */
+    @NonNull
+    @CheckResult
+    public RequestOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Set various parameters, that affect processing of request by curl.
      *
      * <p/>
      *
-     * Before calling this method again, you have to call {@link #reset} and, optionally,
-     * {@link #clearHeaders}.
+     * This is a shortcut for updating {@link #getOptions options} and calling {@link #configure(Interruption)}.
      */
     public void configure(
             @NonNull Interruption i,
@@ -348,6 +650,31 @@ public class CurlHttp {
             boolean followRedirects,
             boolean doInput,
             boolean doOutput) throws IOException {
+        options.setMethod(method, requestMethod)
+                .setProxy(proxy, proxyType)
+                .setDnsServers(dns)
+                .setNetworkInterface(ifName)
+                .setTimeouts(readTimeout, connectTimeout)
+                .setFollowRedirects(followRedirects)
+                .setBody(doInput, doOutput, contentLength, chunkSize);
+
+        configure(i);
+    }
+
+    /**
+     * Start the request, using current {@link #getOptions options}.
+     *
+     * <p/>
+     *
+     * You must call this method exactly once before examining response headers or using streams,
+     * returned by {@link #newInputStream} and {@link #newOutputStream}.
+     *
+     * <p/>
+     *
+     * Before calling this method again, you have to call {@link #reset} and, optionally,
+     * {@link #clearHeaders}.
+     */
+    public void configure(@NonNull Interruption i) throws IOException {
         final char[] urlBuffer = url.buffer;
         final int urlLength = url.length;
 
@@ -355,27 +682,264 @@ public class CurlHttp {
             throw new IndexOutOfBoundsException();
         }
 
-        char[] newUrl = Curl.nativeConfigure(
+        final RequestOptions options = this.options;
+
+        callStart();
+
+        final char[] newUrl;
+        try {
+            newUrl = nativeConfigure(
+                    i.toNative(),
+                    urlBuffer,
+                    urlLength,
+                    options.contentLength,
+                    options.chunkSize,
+                    options.doInput,
+                    options.doOutput,
+                    null);
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
+
+        reportProgress();
+
+        if (options.followRedirects && newUrl != null) {
+            updateUrl(newUrl);
+        }
+    }
+
+    private char[] nativeConfigure(
+            long i10nPtr,
+            char[] urlBuffer,
+            int urlLength,
+            long contentLength,
+            int chunkSize,
+            boolean doInput,
+            boolean doOutput,
+            CurlHttp asyncTarget) throws IOException {
+        final RequestOptions options = this.options;
+
+        final char[] newUrl = Curl.nativeConfigure(
                 curlPtr,
-                i.toNative(),
+                i10nPtr,
                 contentLength,
                 urlBuffer,
-                method,
-                proxy,
-                dns,
-                ifName,
+                options.method,
+                options.proxy,
+                options.dns,
+                options.ifName,
                 urlLength,
-                readTimeout,
-                connectTimeout,
-                proxyType,
-                requestMethod,
+                options.readTimeout,
+                options.connectTimeout,
+                options.proxyType,
+                options.requestMethod,
                 chunkSize,
-                followRedirects,
+                options.followRedirects,
                 doInput,
-                doOutput);
+                doOutput,
+                options.dirty,
+                asyncTarget);
 
-        if (followRedirects && newUrl != null) {
-            updateUrl(newUrl);
+        // the call above applies all options before it may return early (for example, after an
+        // interrupted DNS lookup); if it has thrown, the options are applied again with the next request
+        options.dirty = 0;
+
+        return newUrl;
+    }
+
+    /**
+     * Perform a series of requests without body back-to-back, reusing the same connection,
+     * if the server allows that. Only the first request is fully {@link #configure configured},
+     * each following one merely replaces the URL of the previous one, so the requests are
+     * expected to go to the same origin. The {@link #getUrl URL} of this instance is not used.
+     *
+     * <p/>
+     *
+     * The response of each request is passed to the consumer after receiving response headers.
+     * Read the whole response body there (for example, using {@link #newInputStream} or
+     * {@link #downloadTo}), otherwise the connection is closed instead of being reused for the
+     * next request. Failures are thrown to the caller, stopping the batch. The consumer may change
+     * request headers, the changes apply to the following requests. After {@link #cancel} the rest
+     * of the batch is not performed.
+     *
+     * <p/>
+     *
+     * Before calling this method again, you have to call {@link #reset} and, optionally,
+     * {@link #clearHeaders}.
+     *
+     * @param urls the URLs of requests, can be reused after this method returns
+     *
+     * @return number of performed requests
+     */
+    public int executeBatch(
+            @NonNull Interruption i,
+            @NonNull String method,
+            @Nullable String proxy,
+            @Nullable String dns,
+            @Nullable String ifName,
+            int readTimeout,
+            int connectTimeout,
+            @CurlProxy.ProxyType int proxyType,
+            @Method int requestMethod,
+            boolean followRedirects,
+            @NonNull List<? extends MutableUrl> urls,
+            @NonNull BatchConsumer consumer) throws IOException {
+        final int count = urls.size();
+
+        for (int n = 0; n < count; ++n) {
+            final MutableUrl itemUrl = urls.get(n);
+
+            final char[] urlBuffer = itemUrl.buffer;
+            final int urlLength = itemUrl.length;
+
+            if (urlLength < 0 || urlLength > urlBuffer.length) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            callStart();
+
+            try {
+                if (n == 0) {
+                    options.setMethod(method, requestMethod)
+                            .setProxy(proxy, proxyType)
+                            .setDnsServers(dns)
+                            .setNetworkInterface(ifName)
+                            .setTimeouts(readTimeout, connectTimeout)
+                            .setFollowRedirects(followRedirects);
+
+                    nativeConfigure(i.toNative(), urlBuffer, urlLength, 0, 0, true, false, null);
+                } else {
+                    dropResponseHeaders();
+
+                    Curl.nativeRestart(curlPtr, i.toNative(), urlBuffer, urlLength);
+                }
+            } catch (IOException e) {
+                throw callFailed(e);
+            }
+
+            reportProgress();
+
+            if (!consumer.onResponse(this, n)) {
+                return n + 1;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Start the request without blocking the calling thread. The request is driven by the shared
+     * event loop thread, which also invokes methods of supplied callback. This allows to have many
+     * requests in flight without dedicating a thread to each of them.
+     *
+     * <p/>
+     *
+     * Only requests without body are supported. The DNS lookup is performed by curl on the event
+     * loop, unless the host is already present in DNS cache. The redirects are followed according
+     * to {@code followRedirects}, but unlike {@link #configure} this method does not update the
+     * {@link #getUrl URL}.
+     *
+     * <p/>
+     *
+     * Before calling this method again, you have to call {@link #reset} (which also cancels
+     * the request, if it is still in progress) and, optionally, {@link #clearHeaders}. Streams,
+     * returned by {@link #newInputStream} and {@link #newOutputStream}, must not be used with
+     * asynchronous requests.
+     *
+     * @throws IOException if the request can not be started (e.g. when the host is known to not exist)
+     */
+    public void enqueue(
+            @NonNull String method,
+            @Nullable String proxy,
+            @Nullable String dns,
+            @Nullable String ifName,
+            int readTimeout,
+            int connectTimeout,
+            @CurlProxy.ProxyType int proxyType,
+            @Method int requestMethod,
+            boolean followRedirects,
+            @NonNull Callback callback) throws IOException {
+        final char[] urlBuffer = url.buffer;
+        final int urlLength = url.length;
+
+        if (urlLength < 0 || urlLength > urlBuffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        this.callback = callback;
+
+        options.setMethod(method, requestMethod)
+                .setProxy(proxy, proxyType)
+                .setDnsServers(dns)
+                .setNetworkInterface(ifName)
+                .setTimeouts(readTimeout, connectTimeout)
+                .setFollowRedirects(followRedirects);
+
+        callStart();
+
+        boolean started = false;
+        try {
+            nativeConfigure(0, urlBuffer, urlLength, 0, 0, true, false, this);
+
+            started = true;
+        } catch (IOException e) {
+            throw callFailed(e);
+        } finally {
+            if (!started) {
+                this.callback = null;
+            }
+        }
+    }
+
+    @UsedByJni
+    @SuppressWarnings("unused")
+    private boolean onAsyncHeaders() {
+        try {
+            reportProgress();
+
+            return callback.onHeaders(this);
+        } catch (RuntimeException e) {
+            callbackFailure = e;
+
+            return false;
+        }
+    }
+
+    @UsedByJni
+    @SuppressWarnings("unused")
+    private boolean onAsyncData(ByteBuffer buffer, int offset, int length) {
+        buffer.limit(offset + length);
+        buffer.position(offset);
+
+        try {
+            return callback.onData(this, buffer);
+        } catch (RuntimeException e) {
+            callbackFailure = e;
+
+            return false;
+        }
+    }
+
+    @UsedByJni
+    @SuppressWarnings("unused")
+    private void onAsyncDone(Throwable error) {
+        final Callback callback = this.callback;
+        final RuntimeException failure = callbackFailure;
+
+        // the callback might start a new request
+        this.callback = null;
+        this.callbackFailure = null;
+
+        if (failure != null) {
+            callback.onFailure(this, callFailed(new IOException("The callback has thrown an exception", failure)));
+        } else if (error == null) {
+            bodyEnd();
+
+            callback.onComplete(this);
+        } else if (error instanceof IOException) {
+            callback.onFailure(this, callFailed((IOException) error));
+        } else {
+            callback.onFailure(this, callFailed(new IOException(error)));
         }
     }
 
@@ -395,9 +959,24 @@ public class CurlHttp {
     }
 
     public void reset() {
+        dropResponseHeaders();
+
+        stage = STAGE_IDLE;
+
         Curl.reset(curlPtr);
     }
 
+    /**
+     * Abort the request in progress. Unlike other methods of this class, this one can be called
+     * from any thread. The transfer is torn down by the event loop as soon as possible, and the
+     * thread, blocked in a call on this instance, is woken up right away without waiting for
+     * Interruption signals or timeouts. All subsequent calls, as well as {@link Callback#onFailure}
+     * of asynchronous requests, fail with {@link IOException}, until the instance is {@link #reset}.
+     */
+    public void cancel() {
+        Curl.cancel(curlPtr);
+    }
+
     @NonNull
     public OutputStream newOutputStream() {
         return new CurlOutputStream();
@@ -408,6 +987,160 @@ public class CurlHttp {
         return new CurlInputStream();
     }
 
+    /**
+     * Same as {@link #newInputStream}, but allows to receive data into {@link ByteBuffer}.
+     * When reading into direct buffer, the data is copied straight into it's memory, without
+     * going through Java heap.
+     */
+    @NonNull
+    public ReadableByteChannel newReadableChannel() {
+        return new CurlReadableChannel();
+    }
+
+    /**
+     * Same as {@link #newOutputStream}, but allows to send data from {@link ByteBuffer}.
+     * When writing from direct buffer, the data is copied straight from it's memory, without
+     * going through Java heap. Closing the channel completes the request body.
+     */
+    @NonNull
+    public WritableByteChannel newWritableChannel() {
+        return new CurlWritableChannel();
+    }
+
+    /**
+     * Read the response body into the buffer, advancing it's position by number of read bytes.
+     * This method blocks until at least one byte is read, or the end of response is reached.
+     *
+     * @return number of read bytes or -1, if the whole response has been read
+     */
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        final int position = dst.position();
+        final int remaining = dst.limit() - position;
+
+        if (remaining == 0) {
+            return 0;
+        }
+
+        final Interruption helper = Interruption.begin();
+        try {
+            i10nCheck(helper, 0);
+
+            int read = httpRead(helper, dst, position, remaining);
+
+            if (read > 0) {
+                dst.position(position + read);
+            }
+
+            i10nCheck(helper, read);
+
+            return read;
+        } finally {
+            Interruption.end();
+        }
+    }
+
+    /**
+     * Write the rest of response body to the file descriptor, starting at current position
+     * of the descriptor.
+     *
+     * @see #downloadTo(int, long)
+     */
+    public long downloadTo(int fd) throws IOException {
+        return downloadTo(fd, -1);
+    }
+
+    /**
+     * Write the rest of response body to the file descriptor. The data is written from native
+     * buffer straight to the descriptor, without going through Java heap. This method blocks
+     * until the whole response is received. It can be interrupted and respects the read timeout
+     * in the same way as reading from {@link #newInputStream}.
+     *
+     * @param fd the descriptor, opened for writing, for example via
+     *           {@link android.os.ParcelFileDescriptor#getFd}
+     * @param offset position in file to start writing from, or -1 to write at current position
+     *               of the descriptor (e.g. for pipes and sockets)
+     *
+     * @return number of written bytes
+     */
+    public long downloadTo(int fd, long offset) throws IOException {
+        final Interruption helper = Interruption.begin();
+        try {
+            i10nCheck(helper, 0);
+
+            final long written;
+            try {
+                written = Curl.downloadTo(curlPtr, helper.toNative(), fd, offset);
+            } catch (IOException e) {
+                throw callFailed(e);
+            }
+
+            bodyEnd();
+
+            i10nCheck(helper, (int) Math.min(written, Integer.MAX_VALUE));
+
+            return written;
+        } finally {
+            Interruption.end();
+        }
+    }
+
+    /**
+     * Use the part of file as request body. The data is read by native code straight from the
+     * descriptor into curl's send buffer, without going through Java heap. This method must be
+     * called before {@link #configure}, which sets {@code Content-Length} to {@code length}
+     * and sends the body before returning (the {@code contentLength} and {@code doOutput}
+     * arguments of {@code configure} are ignored). The streams, returned by
+     * {@link #newOutputStream}, must not be used.
+     *
+     * <p/>
+     *
+     * The descriptor is read with {@code pread} by the event loop thread, so it must refer to
+     * a regular local file. It is not closed by this class and must remain open until the request
+     * is {@link #reset}.
+     *
+     * @param fd the descriptor, opened for reading, for example via
+     *           {@link android.os.ParcelFileDescriptor#getFd}
+     * @param offset position in file, where the request body starts
+     * @param length size of request body
+     */
+    public void uploadFrom(int fd, long offset, long length) {
+        if (fd < 0 || offset < 0 || length < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        Curl.uploadFrom(curlPtr, fd, offset, length);
+    }
+
+    /**
+     * Send contents of the buffer as part of request body, advancing it's position by number of
+     * written bytes.
+     *
+     * @return number of written bytes
+     */
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        final int position = src.position();
+        final int remaining = src.limit() - position;
+
+        if (remaining == 0) {
+            return 0;
+        }
+
+        final Interruption helper = Interruption.begin();
+        try {
+            i10nCheck(helper, 0);
+
+            int written = httpWrite(helper, src, position, remaining);
+
+            src.position(position + written);
+
+            i10nCheck(helper, written);
+
+            return written;
+        } finally {
+            Interruption.end();
+        }
+    }
+
     /**
      * Obtain the file descriptor of socket, used for the last in-progress transfer.
      * Calling this method before the response code is retrieved can produce
@@ -444,15 +1177,72 @@ public class CurlHttp {
     }
 
     protected int httpRead(Interruption i, byte[] buffer, int off, int count) throws IOException {
-        return Curl.read(curlPtr, i.toNative(), buffer, off, count);
+        try {
+            return readDone(Curl.read(curlPtr, i.toNative(), buffer, off, count));
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
     }
 
     protected int httpWrite(Interruption i, byte[] buffer, int off, int count) throws IOException {
-        return Curl.write(curlPtr, i.toNative(), buffer, off, count);
+        try {
+            return Curl.write(curlPtr, i.toNative(), buffer, off, count);
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
+    }
+
+    protected int httpRead(Interruption i, ByteBuffer buffer, int off, int count) throws IOException {
+        if (buffer.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        try {
+            if (buffer.isDirect()) {
+                return readDone(Curl.readDirect(curlPtr, i.toNative(), buffer, off, count));
+            }
+
+            return readDone(Curl.read(curlPtr, i.toNative(), buffer.array(), buffer.arrayOffset() + off, count));
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
+    }
+
+    protected int httpWrite(Interruption i, ByteBuffer buffer, int off, int count) throws IOException {
+        try {
+            if (buffer.isDirect()) {
+                return Curl.writeDirect(curlPtr, i.toNative(), buffer, off, count);
+            }
+
+            if (buffer.hasArray()) {
+                return Curl.write(curlPtr, i.toNative(), buffer.array(), buffer.arrayOffset() + off, count);
+            }
+
+            // read-only heap buffer, the array is not accessible
+            final byte[] copy = new byte[count];
+
+            buffer.duplicate().get(copy);
+
+            return Curl.write(curlPtr, i.toNative(), copy, 0, count);
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
     }
 
     protected void httpWriteEnd(Interruption i) throws IOException {
-        Curl.closeOutput(curlPtr, i.toNative());
+        try {
+            Curl.closeOutput(curlPtr, i.toNative());
+        } catch (IOException e) {
+            throw callFailed(e);
+        }
+    }
+
+    private int readDone(int read) {
+        if (read == -1) {
+            bodyEnd();
+        }
+
+        return read;
     }
 
     private static void i10nCheck(Interruption i10n, int transferred) throws InterruptedIOException {
@@ -467,6 +1257,62 @@ public class CurlHttp {
         throw exception;
     }
 
+    /**
+     * Receives results of asynchronous requests, started with {@link #enqueue}. All methods are
+     * called on the event loop thread, shared by every {@link CurlHttp} instance, — they
+     * must not block and must not use streams. The methods of {@link CurlHttp} instance, passed
+     * to callback, (such as {@link #getResponseCode} and {@link #getResponseHeader}) can be safely
+     * called from the callback.
+     *
+     * <p/>
+     *
+     * Exactly one of {@link #onComplete} and {@link #onFailure} is called for each request,
+     * unless it is cancelled by calling {@link #reset}.
+     */
+    public interface Callback {
+        /**
+         * Called once, after response headers have arrived.
+         *
+         * @return {@code false} to cancel the request
+         */
+        boolean onHeaders(@NonNull CurlHttp curl);
+
+        /**
+         * Called for each received chunk of response body. The buffer is reused, and its contents
+         * are only valid until this method returns. Subsequent chunks are not received until
+         * this method returns.
+         *
+         * @return {@code false} to cancel the request
+         */
+        boolean onData(@NonNull CurlHttp curl, @NonNull ByteBuffer chunk);
+
+        /**
+         * Called after the whole response has been received.
+         */
+        void onComplete(@NonNull CurlHttp curl);
+
+        /**
+         * Called when the request fails, times out or is cancelled by callback.
+         */
+        void onFailure(@NonNull CurlHttp curl, @NonNull IOException error);
+    }
+
+    /**
+     * Receives responses of requests, performed by {@link #executeBatch}. Unlike
+     * {@link Callback}, it is called on the thread, that executes the batch, and can block.
+     */
+    public interface BatchConsumer {
+        /**
+         * Called after response headers of request have arrived. The response body can be read
+         * from the passed instance until this method returns.
+         *
+         * @param index position of request in the batch
+         *
+         * @return {@code false} to stop the batch without performing the rest of requests
+         */
+        boolean onResponse(@NonNull CurlHttp curl, int index) throws IOException;
+    }
+
     private final class CurlInputStream extends InputStream {
         private boolean closed;
 
@@ -483,6 +1329,15 @@ public class CurlHttp {
             return doRead(b, 0, b.length);
         }
 
+        @Override
+        public int available() throws IOException {
+            if (closed) {
+                throw new IOException("Already closed");
+            }
+
+            return CurlHttp.this.available();
+        }
+
         @Override
         public int read(@NonNull byte[] b, int off, int len) throws IOException {
             if (off < 0 || len < 0 || len > b.length - off) {
@@ -575,4 +1430,69 @@ public class CurlHttp {
             }
         }
     }
+
+    private final class CurlReadableChannel implements ReadableByteChannel {
+        private boolean closed;
+
+        CurlReadableChannel() {
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            return CurlHttp.this.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final class CurlWritableChannel implements WritableByteChannel {
+        private boolean closed;
+
+        CurlWritableChannel() {
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            return CurlHttp.this.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+
+            closed = true;
+
+            final Interruption helper = Interruption.begin();
+            try {
+                i10nCheck(helper, 0);
+
+                httpWriteEnd(helper);
+
+                i10nCheck(helper, 0);
+            } finally {
+                Interruption.end();
+            }
+        }
+    }
 }
@@ -0,0 +1,235 @@
+package net.sf.chttpc;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A pool of live connections and TLS sessions, shared between {@link CurlHttp} instances.
+ * Connections, kept alive after completing a request, are returned to the pool and can be picked
+ * by any other handle, created with the same share, without going through DNS lookup, TCP
+ * handshake and TLS negotiation again. When a new connection has to be opened, the TLS session
+ * of earlier connection to the same host and port is resumed with abbreviated handshake.
+ *
+ * Shares are meant to be few and long-lived (usually one per {@link Curl.ConnectionBuilder}).
+ * The native resources of a share are never released.
+ */
+public final class CurlShare {
+    /**
+     * Default number of TLS sessions, remembered by each share.
+     */
+    public static final int DEFAULT_TLS_SESSIONS = 32;
+
+    private static final int STAT_TLS_HITS = 0;
+    private static final int STAT_TLS_MISSES = 1;
+    private static final int STAT_TLS_EVICTIONS = 2;
+    private static final int STAT_TLS_SIZE = 3;
+    private static final int STAT_TLS_GENERATION = 4;
+
+    private static CurlShare defaultShare;
+
+    private final int maxConnections;
+    private final int maxTlsSessions;
+
+    private volatile long nativePtr;
+
+    private long savedGeneration = -1;
+
+    private CurlShare(int maxConnections, int maxTlsSessions) {
+        this.maxConnections = maxConnections;
+        this.maxTlsSessions = maxTlsSessions;
+    }
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param maxConnections maximum number of idle connections, kept by each handle of the share,
+     *                       or 0 to use curl default
+     */
+    public static CurlShare create(int maxConnections) {
+        return create(maxConnections, DEFAULT_TLS_SESSIONS);
+    }
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param maxConnections maximum number of idle connections, kept by each handle of the share,
+     *                       or 0 to use curl default
+     * @param maxTlsSessions maximum number of TLS sessions, kept for resumption (one per host and
+     *                       port, least recently used sessions are evicted first), or 0 to disable
+     *                       session resumption
+     */
+    public static CurlShare create(int maxConnections, int maxTlsSessions) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("Negative connection count: " + maxConnections);
+        }
+
+        if (maxTlsSessions < 0) {
+            throw new IllegalArgumentException("Negative TLS session count: " + maxTlsSessions);
+        }
+
+        return new CurlShare(maxConnections, maxTlsSessions);
+    }
+
+    /**
+     * @return the connection pool, used by default by all {@link CurlHttp} instances
+     */
+    @NonNull
+    public static synchronized CurlShare getDefault() {
+        if (defaultShare == null) {
+            defaultShare = new CurlShare(0, DEFAULT_TLS_SESSIONS);
+        }
+
+        return defaultShare;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxTlsSessions() {
+        return maxTlsSessions;
+    }
+
+    /**
+     * @return number of new TLS connections, that were offered a cached session for resumption
+     */
+    public long getTlsSessionHits() {
+        return getTlsStat(STAT_TLS_HITS);
+    }
+
+    /**
+     * @return number of new TLS connections, that had to perform full handshake, because
+     * no cached session was available
+     */
+    public long getTlsSessionMisses() {
+        return getTlsStat(STAT_TLS_MISSES);
+    }
+
+    /**
+     * @return number of TLS sessions, dropped from the cache to make place for newer ones
+     */
+    public long getTlsSessionEvictions() {
+        return getTlsStat(STAT_TLS_EVICTIONS);
+    }
+
+    /**
+     * @return number of TLS sessions, currently in the cache
+     */
+    public int getTlsSessionCount() {
+        return (int) getTlsStat(STAT_TLS_SIZE);
+    }
+
+    /**
+     * Load TLS sessions, previously written by {@link #saveTlsSessions}. Expired sessions are
+     * skipped. Missing file is not considered an error.
+     *
+     * @return number of loaded sessions
+     */
+    public synchronized int loadTlsSessions(@NonNull File file) throws IOException {
+        final byte[] data;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            final long length = in.getChannel().size();
+
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("TLS session store is too big: " + file);
+            }
+
+            data = new byte[(int) length];
+
+            int total = 0;
+
+            while (total < data.length) {
+                final int read = in.read(data, total, data.length - total);
+
+                if (read == -1) {
+                    break;
+                }
+
+                total += read;
+            }
+        } catch (FileNotFoundException noFile) {
+            return 0;
+        }
+
+        final int loaded = Curl.importTlsSessions(getNativePtr(), data, data.length);
+
+        if (loaded < 0) {
+            throw new IOException("Corrupted TLS session store: " + file);
+        }
+
+        savedGeneration = getTlsStat(STAT_TLS_GENERATION);
+
+        return loaded;
+    }
+
+    /**
+     * Save current TLS sessions to the file, so that they can be resumed after process restart.
+     * The file is replaced atomically.
+     *
+     * <p/>
+     *
+     * The sessions include secret keys, which can be used to decrypt the traffic, sent over
+     * resumed connections, — the file must be kept in private storage of the application
+     * (preferably the one, excluded from backups, see {@link android.content.Context#getNoBackupFilesDir}).
+     */
+    public synchronized void saveTlsSessions(@NonNull File file) throws IOException {
+        final long generation = getTlsStat(STAT_TLS_GENERATION);
+
+        final byte[] data = Curl.exportTlsSessions(getNativePtr());
+
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+
+            throw new IOException("Failed to replace " + file);
+        }
+
+        savedGeneration = generation;
+    }
+
+    synchronized void saveTlsSessionsIfChanged(@NonNull File file) throws IOException {
+        if (getTlsStat(STAT_TLS_GENERATION) != savedGeneration) {
+            saveTlsSessions(file);
+        }
+    }
+
+    private long getTlsStat(int stat) {
+        final long[] stats = new long[STAT_TLS_GENERATION + 1];
+
+        Curl.getTlsCacheStats(getNativePtr(), stats);
+
+        return stats[stat];
+    }
+
+    // created lazily, because the native library is loaded by CurlHttp
+    long getNativePtr() {
+        long ptr = nativePtr;
+
+        if (ptr == 0) {
+            synchronized (this) {
+                ptr = nativePtr;
+
+                if (ptr == 0) {
+                    CurlHttp.loadLibrary();
+
+                    nativePtr = ptr = Curl.nativeCreateShare(maxConnections, maxTlsSessions);
+                }
+            }
+        }
+
+        return ptr;
+    }
+}
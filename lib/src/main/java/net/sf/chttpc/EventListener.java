@@ -0,0 +1,90 @@
+package net.sf.chttpc;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Receives notifications about phases of requests, performed by {@link CurlHttp}, for example
+ * to find out, which of them takes the most time. Install the listener via
+ * {@link CurlHttp#setEventListener}, {@link CurlConnection#setEventListener} or
+ * {@link Curl.ConnectionBuilder#setEventListener}. The same listener can be shared by many
+ * handles, so it must be thread-safe. All methods do nothing by default.
+ *
+ * <p/>
+ *
+ * The network activity is driven by the shared event loop thread, which must not be blocked
+ * by listeners, so the phases up to the first byte of response are not reported at the exact
+ * moment, when they happen. Instead they are reported, when the thread, which performs the
+ * request, regains control (after receiving response headers, or after failure), with times,
+ * measured by curl. Methods of asynchronous requests are called on the event loop thread,
+ * right before {@link CurlHttp.Callback} methods.
+ *
+ * <p/>
+ *
+ * All times are in microseconds since {@link #callStart}. The DNS lookup and connection phases
+ * are not reported, when the request reuses an existing connection.
+ *
+ * <p/>
+ *
+ * When the handle has no listener, the request proceeds exactly as if this class did not
+ * exist: nothing is measured or reported.
+ */
+public abstract class EventListener {
+    /**
+     * Called before the request is started. Nothing else is reported for the request, if the
+     * listener is installed afterwards.
+     */
+    public void callStart(@NonNull CurlHttp curl) {
+    }
+
+    public void dnsStart(@NonNull CurlHttp curl, long time) {
+    }
+
+    public void dnsEnd(@NonNull CurlHttp curl, long time) {
+    }
+
+    public void connectStart(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called after {@link #connectStart}, if the connection uses TLS.
+     */
+    public void secureConnectStart(@NonNull CurlHttp curl, long time) {
+    }
+
+    public void secureConnectEnd(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called after the connection is established, including TLS handshake.
+     */
+    public void connectEnd(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called when curl starts sending the request.
+     */
+    public void requestHeadersSent(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called when the first byte of response has been received.
+     */
+    public void responseHeadersStart(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called after the whole response body has been read. Not called, if the response body is
+     * not read until the end.
+     */
+    public void responseBodyEnd(@NonNull CurlHttp curl, long time) {
+    }
+
+    /**
+     * Called once, when the request fails. The phases, that have been completed before the
+     * failure, are reported before this method.
+     */
+    public void callFailed(@NonNull CurlHttp curl, @NonNull IOException error) {
+    }
+}
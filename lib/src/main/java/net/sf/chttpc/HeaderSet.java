@@ -0,0 +1,110 @@
+package net.sf.chttpc;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+
+/**
+ * An immutable list of request headers, that can be attached to any number of {@link CurlHttp}
+ * instances via {@link CurlHttp#setHeaderSet}. The headers are encoded and stored in native
+ * memory once, when the set is built, so attaching the set costs a single native call
+ * regardless of number of headers in it.
+ *
+ * <p/>
+ *
+ * Headers, set on the handle itself via {@link CurlHttp#setHeaderField} and
+ * {@link CurlHttp#addHeaderField}, are sent before headers of the set and replace set headers
+ * with the same name.
+ *
+ * <p/>
+ *
+ * Header sets are meant to be long-lived. Call {@link #close} to release the native memory
+ * once the set is no longer needed: handles, that still use the set, keep it alive until they
+ * are given another set or disposed.
+ */
+public final class HeaderSet implements Closeable {
+    private final int size;
+
+    private long nativePtr;
+
+    private HeaderSet(long nativePtr, int size) {
+        this.nativePtr = nativePtr;
+        this.size = size;
+    }
+
+    /**
+     * @return number of headers in the set
+     */
+    public int size() {
+        return size;
+    }
+
+    synchronized void attachTo(long curlPtr) {
+        if (nativePtr == 0) {
+            throw new IllegalStateException("The header set is closed");
+        }
+
+        Curl.setHeaderSet(curlPtr, nativePtr);
+    }
+
+    @Override
+    public synchronized void close() {
+        final long ptr = nativePtr;
+
+        if (ptr != 0) {
+            nativePtr = 0;
+
+            Curl.releaseHeaderSet(ptr);
+        }
+    }
+
+    public static final class Builder {
+        private final ArrayList<String> pairs = new ArrayList<>();
+
+        /**
+         * Add a header with specified name and value. This method does not perform any
+         * validation of provided header.
+         */
+        @NonNull
+        public Builder addHeaderField(@NonNull String key, @NonNull String value) {
+            pairs.add(key);
+            pairs.add(value);
+
+            return this;
+        }
+
+        /**
+         * Replace all previously added headers with specified name by a single one.
+         *
+         * If you pass {@code null} to the second parameter, the header with specified name
+         * will not be sent at all, even if curl adds it by default (e.g. "Accept").
+         */
+        @NonNull
+        public Builder setHeaderField(@NonNull String key, @Nullable String value) {
+            for (int i = pairs.size() - 2; i >= 0; i -= 2) {
+                if (key.equalsIgnoreCase(pairs.get(i))) {
+                    pairs.remove(i + 1);
+                    pairs.remove(i);
+                }
+            }
+
+            pairs.add(key);
+            pairs.add(value);
+
+            return this;
+        }
+
+        @NonNull
+        public HeaderSet build() {
+            CurlHttp.loadLibrary();
+
+            final String[] array = pairs.toArray(new String[pairs.size()]);
+
+            final int size = array.length / 2;
+
+            return new HeaderSet(Curl.nativeCreateHeaderSet(array, size), size);
+        }
+    }
+}
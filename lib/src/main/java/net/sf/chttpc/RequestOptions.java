@@ -0,0 +1,146 @@
+package net.sf.chttpc;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Options of requests, performed by {@link CurlHttp}. Each instance of {@link CurlHttp} has it's
+ * own options, which persist between requests, see {@link CurlHttp#getOptions}.
+ *
+ * <p/>
+ *
+ * The options remember, which of them have changed since the last request, so that
+ * only those are applied to the native handle again. Setting an option to the value,
+ * it already has, is cheap and does not cause it to be re-applied.
+ */
+public final class RequestOptions {
+    // keep in sync with OPTION_DIRTY_* in native-lib.c
+    static final int DIRTY_METHOD = 1;
+    static final int DIRTY_PROXY = 1 << 1;
+    static final int DIRTY_DNS = 1 << 2;
+    static final int DIRTY_INTERFACE = 1 << 3;
+    static final int DIRTY_REDIRECTS = 1 << 4;
+
+    static final int DIRTY_ALL = DIRTY_METHOD | DIRTY_PROXY | DIRTY_DNS | DIRTY_INTERFACE | DIRTY_REDIRECTS;
+
+    int dirty = DIRTY_ALL;
+
+    String method = "GET";
+    int requestMethod = CurlHttp.GET;
+
+    String proxy;
+    int proxyType = CurlProxy.NONE;
+
+    String dns;
+    String ifName;
+
+    boolean followRedirects = true;
+
+    long contentLength;
+    int readTimeout;
+    int connectTimeout;
+    int chunkSize;
+    boolean doInput = true;
+    boolean doOutput;
+
+    RequestOptions() {
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @param method name of HTTP method, used when {@code requestMethod} is {@link CurlHttp#CUSTOM}
+     */
+    @NonNull
+    public RequestOptions setMethod(@NonNull String method, @CurlHttp.Method int requestMethod) {
+        if (requestMethod != this.requestMethod || !method.equals(this.method)) {
+            this.method = method;
+            this.requestMethod = requestMethod;
+
+            dirty |= DIRTY_METHOD;
+        }
+
+        return this;
+    }
+
+    @NonNull
+    public RequestOptions setProxy(@Nullable String proxy, @CurlProxy.ProxyType int proxyType) {
+        if (proxyType != this.proxyType || !same(proxy, this.proxy)) {
+            this.proxy = proxy;
+            this.proxyType = proxyType;
+
+            dirty |= DIRTY_PROXY;
+        }
+
+        return this;
+    }
+
+    /**
+     * @param dns comma-separated list of DNS server addresses or {@code null} to use system resolver
+     */
+    @NonNull
+    public RequestOptions setDnsServers(@Nullable String dns) {
+        if (!same(dns, this.dns)) {
+            this.dns = dns;
+
+            dirty |= DIRTY_DNS;
+        }
+
+        return this;
+    }
+
+    /**
+     * @param ifName name of network interface to bind the socket to or {@code null} to let the system decide
+     */
+    @NonNull
+    public RequestOptions setNetworkInterface(@Nullable String ifName) {
+        if (!same(ifName, this.ifName)) {
+            this.ifName = ifName;
+
+            dirty |= DIRTY_INTERFACE;
+        }
+
+        return this;
+    }
+
+    @NonNull
+    public RequestOptions setFollowRedirects(boolean followRedirects) {
+        if (followRedirects != this.followRedirects) {
+            this.followRedirects = followRedirects;
+
+            dirty |= DIRTY_REDIRECTS;
+        }
+
+        return this;
+    }
+
+    /**
+     * @param readTimeout read timeout in milliseconds, 0 for no timeout
+     * @param connectTimeout connection timeout in milliseconds, 0 for no timeout
+     */
+    @NonNull
+    public RequestOptions setTimeouts(int readTimeout, int connectTimeout) {
+        this.readTimeout = readTimeout;
+        this.connectTimeout = connectTimeout;
+
+        return this;
+    }
+
+    /**
+     * @param doInput whether the response body is going to be read
+     * @param doOutput whether the request has a body
+     * @param contentLength length of request body, or 0 if it is not known beforehand
+     * @param chunkSize size of chunks for request body of unknown length
+     */
+    @NonNull
+    public RequestOptions setBody(boolean doInput, boolean doOutput, long contentLength, int chunkSize) {
+        this.doInput = doInput;
+        this.doOutput = doOutput;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+
+        return this;
+    }
+}
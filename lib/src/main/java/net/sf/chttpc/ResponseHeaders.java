@@ -0,0 +1,193 @@
+package net.sf.chttpc;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only view of response headers, stored in native memory of {@link CurlHttp}. Keys are
+ * case-insensitive. Nothing is copied to Java heap until a specific header name or value is
+ * accessed for the first time, so looking up a couple of headers does not require decoding
+ * the rest of them.
+ *
+ * <p/>
+ *
+ * The view is tied to the current response and stops working after {@link CurlHttp#reset}.
+ */
+final class ResponseHeaders extends AbstractMap<String, List<String>> {
+    private static final Values[] EMPTY = new Values[0];
+
+    private final CurlHttp curl;
+
+    private Values[] cache = EMPTY;
+
+    private boolean valid = true;
+
+    private int size = -1;
+
+    private Set<Entry<String, List<String>>> entrySet;
+
+    ResponseHeaders(CurlHttp curl) {
+        this.curl = curl;
+    }
+
+    void invalidate() {
+        valid = false;
+    }
+
+    private long curlPtr() {
+        if (!valid) {
+            throw new IllegalStateException("The response headers are no longer available");
+        }
+
+        return curl.curlPtr;
+    }
+
+    private Values valuesAt(int slot) {
+        Values[] cache = this.cache;
+
+        if (slot >= cache.length) {
+            this.cache = cache = Arrays.copyOf(cache, Math.max(slot + 1, cache.length * 2));
+        }
+
+        Values values = cache[slot];
+
+        if (values == null) {
+            cache[slot] = values = new Values(slot);
+        }
+
+        return values;
+    }
+
+    @Override
+    public int size() {
+        if (size == -1) {
+            size = Curl.headerCount(curlPtr());
+        }
+
+        return size;
+    }
+
+    @Override
+    public List<String> get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        final String name = (String) key;
+
+        final int slot = Curl.headerSlot(curlPtr(), name, name.length());
+
+        return slot < 0 ? null : valuesAt(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Entry<String, List<String>>> entrySet() {
+        if (entrySet != null) {
+            return entrySet;
+        }
+
+        return entrySet = new AbstractSet<Entry<String, List<String>>>() {
+            @Override
+            public Iterator<Entry<String, List<String>>> iterator() {
+                return new Iterator<Entry<String, List<String>>>() {
+                    int next = Curl.nextHeaderSlot(curlPtr(), 0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return next >= 0;
+                    }
+
+                    @Override
+                    public Entry<String, List<String>> next() {
+                        if (next < 0) {
+                            throw new NoSuchElementException();
+                        }
+
+                        final Values current = valuesAt(next);
+
+                        next = Curl.nextHeaderSlot(curlPtr(), next + 1);
+
+                        return new SimpleImmutableEntry<String, List<String>>(current.key(), current);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ResponseHeaders.this.size();
+            }
+        };
+    }
+
+    private final class Values extends AbstractList<String> {
+        private final int slot;
+
+        private String key;
+
+        private String[] decoded = new String[1];
+
+        private int size = -1;
+
+        Values(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            String[] decoded = this.decoded;
+
+            if (index < decoded.length && decoded[index] != null) {
+                return decoded[index];
+            }
+
+            final String value = Curl.headerValue(curlPtr(), slot, index);
+
+            if (value == null) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            if (index >= decoded.length) {
+                this.decoded = decoded = Arrays.copyOf(decoded, Math.max(index + 1, size()));
+            }
+
+            return decoded[index] = value;
+        }
+
+        @Override
+        public int size() {
+            if (size == -1) {
+                size = Curl.headerValueCount(curlPtr(), slot);
+            }
+
+            return size;
+        }
+
+        String key() {
+            if (key == null) {
+                key = Curl.headerKey(curlPtr(), slot);
+            }
+
+            return key;
+        }
+    }
+}
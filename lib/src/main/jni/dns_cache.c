@@ -0,0 +1,729 @@
+#include "dns_cache.h"
+#include "metrics.h"
+#include <errno.h>
+#include <netdb.h>
+#include <stdio.h>
+#include <poll.h>
+#include <pthread.h>
+#include <string.h>
+#include <strings.h>
+#include <time.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+
+#define DNS_CACHE_SIZE 64
+
+#define DNS_PORT 53
+#define DNS_TYPE_A 1
+#define DNS_TYPE_AAAA 28
+#define DNS_CLASS_IN 1
+#define DNS_RCODE_NXDOMAIN 3
+
+#define DNS_QUERY_TIMEOUT 5000
+#define DNS_RESEND_INTERVAL 1000
+// how often to check the cancellation flag, which, unlike interruption, does not come with a signal
+#define DNS_CANCEL_CHECK_INTERVAL 100
+
+// UDP messages without EDNS0 are limited to 512 bytes
+#define DNS_MESSAGE_MAX 512
+
+struct DnsEntry {
+    char host[DNS_HOST_MAX];
+    int64_t expires;
+    int64_t lastUsed;
+    uint32_t epoch;
+    int count;
+    bool resolving;
+    bool ipv6;
+    DnsAddress addrs[DNS_MAX_ADDRESSES];
+};
+
+typedef struct DnsEntry DnsEntry;
+
+struct DnsQuery {
+    uint16_t id;
+    uint16_t type;
+    bool answered;
+    int rcode;
+};
+
+static pthread_mutex_t dnsLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t dnsCond = PTHREAD_COND_INITIALIZER;
+
+static DnsEntry dnsEntries[DNS_CACHE_SIZE];
+
+// incremented by each flush, lookups, started before the flush, are not cached
+static uint32_t dnsEpoch;
+
+static int64_t nowMillis() {
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+static inline void lowercase(char* dest, const char* src, size_t length) {
+    for (size_t i = 0; i < length; ++i) {
+        char c = src[i];
+
+        dest[i] = (c >= 'A' && c <= 'Z') ? (char) (c | 0x20) : c;
+    }
+
+    dest[length] = '\0';
+}
+
+bool dnsParseUrl(const char* url, char* host, size_t hostSize, int* port) {
+    const char* authority;
+
+    if (strncasecmp(url, "https://", 8) == 0) {
+        authority = url + 8;
+        *port = 443;
+    } else if (strncasecmp(url, "http://", 7) == 0) {
+        authority = url + 7;
+        *port = 80;
+    } else {
+        return false;
+    }
+
+    const char* end = authority + strcspn(authority, "/?#");
+
+    // skip credentials
+    for (const char* c = end; c > authority; --c) {
+        if (c[-1] == '@') {
+            authority = c;
+            break;
+        }
+    }
+
+    if (*authority == '[') {
+        // IPv6 literal
+        return false;
+    }
+
+    const char* hostEnd = memchr(authority, ':', end - authority);
+
+    if (hostEnd != NULL) {
+        if (hostEnd + 1 < end) {
+            *port = atoi(hostEnd + 1);
+        }
+    } else {
+        hostEnd = end;
+    }
+
+    size_t hostLen = hostEnd - authority;
+
+    if (hostLen == 0 || hostLen >= hostSize || *port <= 0 || *port > 65535) {
+        return false;
+    }
+
+    lowercase(host, authority, hostLen);
+
+    struct in_addr ignored;
+
+    return inet_pton(AF_INET, host, &ignored) != 1;
+}
+
+bool dnsFormatResolve(const char* host, int port, const DnsAddress* addrs, int count, bool ipv6,
+                      char* buffer, size_t bufferSize) {
+    int written = snprintf(buffer, bufferSize, "%s:%d:", host, port);
+
+    if (written < 0 || written >= bufferSize) {
+        return false;
+    }
+
+    size_t used = (size_t) written;
+
+    bool first = true;
+
+    for (int i = 0; i < count; ++i) {
+        char text[INET6_ADDRSTRLEN];
+
+        if (addrs[i].family == AF_INET6 && !ipv6) {
+            continue;
+        }
+
+        if (inet_ntop(addrs[i].family, addrs[i].addr, text, sizeof(text)) == NULL) {
+            continue;
+        }
+
+        written = snprintf(buffer + used, bufferSize - used, addrs[i].family == AF_INET6 ? "%s[%s]" : "%s%s",
+                           first ? "" : ",", text);
+
+        if (written < 0 || written >= bufferSize - used) {
+            return false;
+        }
+
+        used += written;
+
+        first = false;
+    }
+
+    return !first;
+}
+
+static size_t encodeQuery(unsigned char* buffer, const char* host, uint16_t id, uint16_t type) {
+    unsigned char* p = buffer;
+
+    // header: id, RD flag, single question
+    *p++ = (unsigned char) (id >> 8);
+    *p++ = (unsigned char) id;
+    *p++ = 0x01;
+    *p++ = 0x00;
+    *p++ = 0x00;
+    *p++ = 0x01;
+
+    memset(p, 0, 6);
+    p += 6;
+
+    const char* label = host;
+
+    while (*label != '\0') {
+        size_t labelLen = strcspn(label, ".");
+
+        if (labelLen == 0 || labelLen > 63 || (p - buffer) + labelLen + 6 > DNS_MESSAGE_MAX) {
+            return 0;
+        }
+
+        *p++ = (unsigned char) labelLen;
+
+        memcpy(p, label, labelLen);
+
+        p += labelLen;
+        label += labelLen;
+
+        if (*label == '.') {
+            ++label;
+        }
+    }
+
+    *p++ = 0;
+
+    *p++ = (unsigned char) (type >> 8);
+    *p++ = (unsigned char) type;
+    *p++ = 0;
+    *p++ = DNS_CLASS_IN;
+
+    return p - buffer;
+}
+
+static inline uint16_t get16(const unsigned char* p) {
+    return (uint16_t) ((p[0] << 8) | p[1]);
+}
+
+static inline uint32_t get32(const unsigned char* p) {
+    return ((uint32_t) p[0] << 24) | ((uint32_t) p[1] << 16) | ((uint32_t) p[2] << 8) | p[3];
+}
+
+static const unsigned char* skipName(const unsigned char* p, const unsigned char* end) {
+    while (p < end) {
+        unsigned char len = *p;
+
+        if ((len & 0xC0) == 0xC0) {
+            return p + 2 <= end ? p + 2 : NULL;
+        }
+
+        if (len == 0) {
+            return p + 1;
+        }
+
+        p += len + 1;
+    }
+
+    return NULL;
+}
+
+// returns false if the response is malformed
+static bool parseResponse(const unsigned char* buffer, size_t length, struct DnsQuery* query,
+                          DnsAddress* out, int outSize, int* count, uint32_t* minTtl) {
+    if (length < 12) {
+        return false;
+    }
+
+    const unsigned char* end = buffer + length;
+
+    uint16_t flags = get16(buffer + 2);
+
+    if (!(flags & 0x8000) || (flags & 0x0200)) {
+        // not a response or truncated
+        return false;
+    }
+
+    query->rcode = flags & 0xF;
+
+    uint16_t questions = get16(buffer + 4);
+    uint16_t answers = get16(buffer + 6);
+
+    const unsigned char* p = buffer + 12;
+
+    for (int i = 0; i < questions; ++i) {
+        if ((p = skipName(p, end)) == NULL || p + 4 > end) {
+            return false;
+        }
+
+        p += 4;
+    }
+
+    for (int i = 0; i < answers; ++i) {
+        if ((p = skipName(p, end)) == NULL || p + 10 > end) {
+            return false;
+        }
+
+        uint16_t type = get16(p);
+        uint16_t class = get16(p + 2);
+        uint32_t ttl = get32(p + 4);
+        uint16_t dataLen = get16(p + 8);
+
+        p += 10;
+
+        if (p + dataLen > end) {
+            return false;
+        }
+
+        if (class == DNS_CLASS_IN && type == query->type && *count < outSize
+                && dataLen == (type == DNS_TYPE_A ? 4 : 16)) {
+            out[*count].family = type == DNS_TYPE_A ? AF_INET : AF_INET6;
+
+            memcpy(out[*count].addr, p, dataLen);
+
+            ++*count;
+
+            if (ttl < *minTtl) {
+                *minTtl = ttl;
+            }
+        }
+
+        p += dataLen;
+    }
+
+    query->answered = true;
+
+    return true;
+}
+
+static inline bool isStopped(volatile _Atomic uint8_t* interrupted, volatile _Atomic uint8_t* cancelled) {
+    return (interrupted != NULL && *interrupted) || (cancelled != NULL && *cancelled);
+}
+
+static int queryServer(const char* host, const char* server, bool ipv6, volatile _Atomic uint8_t* interrupted,
+                       volatile _Atomic uint8_t* cancelled, DnsAddress* out, int outSize, uint32_t* ttl) {
+    struct sockaddr_storage address;
+
+    memset(&address, 0, sizeof(address));
+
+    socklen_t addressLen;
+
+    struct sockaddr_in* v4 = (struct sockaddr_in*) &address;
+    struct sockaddr_in6* v6 = (struct sockaddr_in6*) &address;
+
+    if (inet_pton(AF_INET, server, &v4->sin_addr) == 1) {
+        v4->sin_family = AF_INET;
+        v4->sin_port = htons(DNS_PORT);
+        addressLen = sizeof(struct sockaddr_in);
+    } else if (inet_pton(AF_INET6, server, &v6->sin6_addr) == 1) {
+        v6->sin6_family = AF_INET6;
+        v6->sin6_port = htons(DNS_PORT);
+        addressLen = sizeof(struct sockaddr_in6);
+    } else {
+        return DNS_FAILED;
+    }
+
+    int sock = socket(address.ss_family, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+
+    if (sock == -1) {
+        return DNS_FAILED;
+    }
+
+    int result = DNS_FAILED;
+
+    if (connect(sock, (struct sockaddr*) &address, addressLen) == -1) {
+        goto done;
+    }
+
+    uint16_t baseId = (uint16_t) (nowMillis() ^ (intptr_t) &address ^ getpid());
+
+    struct DnsQuery queries[] = {
+            { .id = baseId, .type = DNS_TYPE_A },
+            { .id = (uint16_t) (baseId + 1), .type = DNS_TYPE_AAAA },
+    };
+
+    int queryCount = ipv6 ? 2 : 1;
+
+    unsigned char packets[2][DNS_MESSAGE_MAX];
+    size_t packetLengths[2];
+
+    for (int i = 0; i < queryCount; ++i) {
+        if ((packetLengths[i] = encodeQuery(packets[i], host, queries[i].id, queries[i].type)) == 0) {
+            goto done;
+        }
+    }
+
+    int count = 0;
+
+    *ttl = UINT32_MAX;
+
+    int64_t deadline = nowMillis() + DNS_QUERY_TIMEOUT;
+    int64_t nextSend = 0;
+
+    while (true) {
+        int pending = 0;
+
+        int64_t now = nowMillis();
+
+        for (int i = 0; i < queryCount; ++i) {
+            if (!queries[i].answered) {
+                ++pending;
+
+                if (now >= nextSend) {
+                    send(sock, packets[i], packetLengths[i], MSG_NOSIGNAL);
+                }
+            }
+        }
+
+        if (pending == 0) {
+            break;
+        }
+
+        if (now >= deadline) {
+            goto done;
+        }
+
+        if (now >= nextSend) {
+            nextSend = now + DNS_RESEND_INTERVAL;
+        }
+
+        struct pollfd pollFd = { .fd = sock, .events = POLLIN };
+
+        int64_t wait = (nextSend < deadline ? nextSend : deadline) - now;
+
+        if (cancelled != NULL && wait > DNS_CANCEL_CHECK_INTERVAL) {
+            wait = DNS_CANCEL_CHECK_INTERVAL;
+        }
+
+        int polled = poll(&pollFd, 1, (int) wait);
+
+        if (polled == -1) {
+            if (errno == EINTR) {
+                if (isStopped(interrupted, cancelled)) {
+                    result = DNS_INTERRUPTED;
+                    goto done;
+                }
+
+                continue;
+            }
+
+            goto done;
+        }
+
+        if (polled == 0) {
+            if (cancelled != NULL && *cancelled) {
+                result = DNS_INTERRUPTED;
+                goto done;
+            }
+
+            continue;
+        }
+
+        unsigned char response[DNS_MESSAGE_MAX];
+
+        ssize_t received = recv(sock, response, sizeof(response), MSG_DONTWAIT);
+
+        if (received < 12) {
+            continue;
+        }
+
+        uint16_t id = get16(response);
+
+        for (int i = 0; i < queryCount; ++i) {
+            if (queries[i].id == id && !queries[i].answered) {
+                if (!parseResponse(response, (size_t) received, &queries[i], out, outSize, &count, ttl)) {
+                    // truncated or garbled, let the system resolver handle it
+                    goto done;
+                }
+            }
+        }
+    }
+
+    if (count != 0) {
+        result = count;
+    } else {
+        result = DNS_NOT_FOUND;
+
+        for (int i = 0; i < queryCount; ++i) {
+            if (queries[i].rcode != 0 && queries[i].rcode != DNS_RCODE_NXDOMAIN) {
+                // SERVFAIL or similar
+                result = DNS_FAILED;
+            }
+        }
+    }
+
+done:
+    close(sock);
+
+    return result;
+}
+
+static int querySystem(const char* host, bool ipv6, DnsAddress* out, int outSize) {
+    struct addrinfo hints;
+
+    memset(&hints, 0, sizeof(hints));
+
+    hints.ai_family = ipv6 ? AF_UNSPEC : AF_INET;
+    hints.ai_socktype = SOCK_STREAM;
+
+    struct addrinfo* info = NULL;
+
+    int error = getaddrinfo(host, NULL, &hints, &info);
+
+    if (error != 0) {
+        return error == EAI_NONAME ? DNS_NOT_FOUND : DNS_FAILED;
+    }
+
+    int count = 0;
+
+    for (struct addrinfo* i = info; i != NULL && count < outSize; i = i->ai_next) {
+        if (i->ai_family == AF_INET) {
+            out[count].family = AF_INET;
+
+            memcpy(out[count].addr, &((struct sockaddr_in*) i->ai_addr)->sin_addr, 4);
+        } else if (i->ai_family == AF_INET6) {
+            out[count].family = AF_INET6;
+
+            memcpy(out[count].addr, &((struct sockaddr_in6*) i->ai_addr)->sin6_addr, 16);
+        } else {
+            continue;
+        }
+
+        ++count;
+    }
+
+    freeaddrinfo(info);
+
+    return count == 0 ? DNS_NOT_FOUND : count;
+}
+
+static DnsEntry* findEntry(const char* host) {
+    for (int i = 0; i < DNS_CACHE_SIZE; ++i) {
+        if (dnsEntries[i].host[0] != '\0' && strcmp(dnsEntries[i].host, host) == 0) {
+            return &dnsEntries[i];
+        }
+    }
+
+    return NULL;
+}
+
+// picks an empty slot or the least recently used one, that is not being resolved
+static DnsEntry* claimEntry(const char* host) {
+    DnsEntry* victim = NULL;
+
+    for (int i = 0; i < DNS_CACHE_SIZE; ++i) {
+        DnsEntry* entry = &dnsEntries[i];
+
+        if (entry->resolving) {
+            continue;
+        }
+
+        if (entry->host[0] == '\0') {
+            victim = entry;
+            break;
+        }
+
+        if (victim == NULL || entry->lastUsed < victim->lastUsed) {
+            victim = entry;
+        }
+    }
+
+    if (victim != NULL) {
+        strncpy(victim->host, host, sizeof(victim->host) - 1);
+
+        victim->host[sizeof(victim->host) - 1] = '\0';
+        victim->expires = 0;
+        victim->count = DNS_NOT_FOUND;
+    }
+
+    return victim;
+}
+
+static int copyResult(const DnsEntry* entry, DnsAddress* out, int outSize) {
+    int count = entry->count < outSize ? entry->count : outSize;
+
+    memcpy(out, entry->addrs, count * sizeof(DnsAddress));
+
+    return entry->count == DNS_NOT_FOUND ? DNS_NOT_FOUND : count;
+}
+
+static int resolveUncached(const char* host, const char* server, bool ipv6, volatile _Atomic uint8_t* interrupted,
+                           volatile _Atomic uint8_t* cancelled, DnsAddress* out, int outSize, uint32_t* ttl) {
+    int result = DNS_FAILED;
+
+    metricIncrement(METRIC_DNS_LOOKUPS);
+
+    if (server != NULL && *server != '\0') {
+        result = queryServer(host, server, ipv6, interrupted, cancelled, out, outSize, ttl);
+    }
+
+    if (result == DNS_FAILED && cancelled != NULL && *cancelled) {
+        // the system resolver can not be stopped, so don't even start it
+        return DNS_INTERRUPTED;
+    }
+
+    if (result == DNS_FAILED) {
+        *ttl = DNS_DEFAULT_TTL;
+
+        result = querySystem(host, ipv6, out, outSize);
+    }
+
+    if (result == DNS_NOT_FOUND) {
+        *ttl = DNS_NEGATIVE_TTL;
+    } else if (*ttl < DNS_MIN_TTL) {
+        *ttl = DNS_MIN_TTL;
+    } else if (*ttl > DNS_MAX_TTL) {
+        *ttl = DNS_MAX_TTL;
+    }
+
+    return result;
+}
+
+int dnsCacheResolve(const char* host, const char* server, bool ipv6, volatile _Atomic uint8_t* interrupted,
+                    volatile _Atomic uint8_t* cancelled, DnsAddress* out, int outSize) {
+    DnsAddress addrs[DNS_MAX_ADDRESSES];
+
+    uint32_t ttl = DNS_DEFAULT_TTL;
+
+    pthread_mutex_lock(&dnsLock);
+
+    DnsEntry* entry;
+
+    while (true) {
+        entry = findEntry(host);
+
+        int64_t now = nowMillis();
+
+        if (entry == NULL) {
+            break;
+        }
+
+        if (entry->resolving) {
+            // someone else is resolving the same host, wait for them
+            struct timespec until;
+
+            clock_gettime(CLOCK_REALTIME, &until);
+
+            until.tv_nsec += 100 * 1000000;
+
+            if (until.tv_nsec >= 1000000000) {
+                until.tv_sec += 1;
+                until.tv_nsec -= 1000000000;
+            }
+
+            pthread_cond_timedwait(&dnsCond, &dnsLock, &until);
+
+            if (isStopped(interrupted, cancelled)) {
+                pthread_mutex_unlock(&dnsLock);
+
+                return DNS_INTERRUPTED;
+            }
+
+            continue;
+        }
+
+        if (now < entry->expires && (entry->ipv6 || !ipv6)) {
+            entry->lastUsed = now;
+
+            int cached = copyResult(entry, out, outSize);
+
+            pthread_mutex_unlock(&dnsLock);
+
+            return cached;
+        }
+
+        break;
+    }
+
+    if (entry == NULL) {
+        entry = claimEntry(host);
+    }
+
+    if (entry == NULL) {
+        // every slot is busy, resolve without caching
+        pthread_mutex_unlock(&dnsLock);
+
+        return resolveUncached(host, server, ipv6, interrupted, cancelled, out, outSize, &ttl);
+    }
+
+    entry->resolving = true;
+    entry->epoch = dnsEpoch;
+
+    pthread_mutex_unlock(&dnsLock);
+
+    int result = resolveUncached(host, server, ipv6, interrupted, cancelled, addrs, DNS_MAX_ADDRESSES, &ttl);
+
+    pthread_mutex_lock(&dnsLock);
+
+    entry->resolving = false;
+
+    if (result != DNS_FAILED && result != DNS_INTERRUPTED && entry->epoch == dnsEpoch) {
+        int64_t now = nowMillis();
+
+        entry->count = result;
+        entry->ipv6 = ipv6;
+        entry->expires = now + ttl * 1000LL;
+        entry->lastUsed = now;
+
+        if (result > 0) {
+            memcpy(entry->addrs, addrs, result * sizeof(DnsAddress));
+        }
+    } else {
+        entry->expires = 0;
+    }
+
+    pthread_cond_broadcast(&dnsCond);
+
+    pthread_mutex_unlock(&dnsLock);
+
+    if (result > 0) {
+        if (result > outSize) {
+            result = outSize;
+        }
+
+        memcpy(out, addrs, result * sizeof(DnsAddress));
+    }
+
+    return result;
+}
+
+int dnsCachePeek(const char* host, bool ipv6, DnsAddress* out, int outSize) {
+    int result = DNS_FAILED;
+
+    pthread_mutex_lock(&dnsLock);
+
+    DnsEntry* entry = findEntry(host);
+
+    if (entry != NULL && !entry->resolving) {
+        int64_t now = nowMillis();
+
+        if (now < entry->expires && (entry->ipv6 || !ipv6)) {
+            entry->lastUsed = now;
+
+            result = copyResult(entry, out, outSize);
+        }
+    }
+
+    pthread_mutex_unlock(&dnsLock);
+
+    return result;
+}
+
+void dnsCacheFlush(void) {
+    pthread_mutex_lock(&dnsLock);
+
+    ++dnsEpoch;
+
+    for (int i = 0; i < DNS_CACHE_SIZE; ++i) {
+        dnsEntries[i].expires = 0;
+    }
+
+    pthread_mutex_unlock(&dnsLock);
+}
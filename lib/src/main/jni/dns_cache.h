@@ -0,0 +1,75 @@
+#ifndef __DNS_CACHE_H
+#define __DNS_CACHE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+
+#define DNS_MAX_ADDRESSES 8
+
+// how long to remember hosts, resolved without knowing the TTL (e.g. via getaddrinfo)
+#define DNS_DEFAULT_TTL 60
+
+// how long to remember non-existing hosts
+#define DNS_NEGATIVE_TTL 10
+
+#define DNS_MIN_TTL 5
+#define DNS_MAX_TTL 3600
+
+#define DNS_HOST_MAX 256
+
+// the host does not exist (NXDOMAIN or no addresses)
+#define DNS_NOT_FOUND 0
+// resolution did not complete, because of network failure or timeout
+#define DNS_FAILED (-1)
+// the waiting thread was interrupted
+#define DNS_INTERRUPTED (-2)
+
+struct DnsAddress {
+    int family;
+    unsigned char addr[16];
+};
+
+typedef struct DnsAddress DnsAddress;
+
+/**
+ * Resolves the host, using cached result if possible. If a DNS server address is supplied,
+ * the server is queried directly, and results are cached according to TTLs of returned records,
+ * otherwise the system resolver is used. Concurrent lookups of the same host are coalesced.
+ *
+ * Returns number of addresses, written to out, or one of DNS_* codes. Setting either of the flags
+ * makes it return DNS_INTERRUPTED.
+ *
+ * @param interrupted flag, that is checked after EINTR, may be NULL
+ * @param cancelled flag, that is polled periodically, may be NULL. The system resolver can not be
+ *                  stopped, so it is not started after cancellation, but runs to completion otherwise
+ */
+int dnsCacheResolve(const char* host, const char* server, bool ipv6, volatile _Atomic uint8_t* interrupted,
+                    volatile _Atomic uint8_t* cancelled, DnsAddress* out, int outSize);
+
+/**
+ * Looks up the host in cache without blocking. Returns number of addresses, written to out,
+ * DNS_NOT_FOUND for cached negative result, or DNS_FAILED, if the host is not cached or
+ * is being resolved.
+ */
+int dnsCachePeek(const char* host, bool ipv6, DnsAddress* out, int outSize);
+
+/**
+ * Drops all cached results. Lookups in progress are not affected, but their results are discarded.
+ */
+void dnsCacheFlush(void);
+
+/**
+ * Extracts the host and port from http(s) URL. Returns false, if the URL can not be parsed or
+ * the host is an IP address literal.
+ */
+bool dnsParseUrl(const char* url, char* host, size_t hostSize, int* port);
+
+/**
+ * Formats an entry for CURLOPT_RESOLVE ("host:port:addr1,addr2,...").
+ * Returns false if the buffer is too small.
+ */
+bool dnsFormatResolve(const char* host, int port, const DnsAddress* addrs, int count, bool ipv6,
+                      char* buffer, size_t bufferSize);
+
+#endif
@@ -0,0 +1,171 @@
+#include "header_table.h"
+#include <string.h>
+
+#define TOLOWER(data) ((data > 0x40 && data < 0x5b) ? data|0x60 : data)
+
+// keep at most 3/4 of slots occupied
+#define HEADER_TABLE_FULL(size, capacity) ((size) * 4u >= (capacity) * 3u)
+
+static inline uint32_t keyHash(const char* key, size_t keyLength) {
+    // FNV-1a over lowercased bytes
+    uint32_t h = 2166136261u;
+
+    for (size_t i = 0; i < keyLength; ++i) {
+        h ^= (unsigned char) TOLOWER(key[i]);
+        h *= 16777619u;
+    }
+
+    return h;
+}
+
+static inline bool keyEquals(const HeaderSlot* slot, const char* key, size_t keyLength, uint32_t hash) {
+    if (slot->hash != hash || slot->keyLength != keyLength) {
+        return false;
+    }
+
+    for (size_t i = 0; i < keyLength; ++i) {
+        unsigned char a = (unsigned char) slot->key[i];
+        unsigned char b = (unsigned char) key[i];
+
+        if (TOLOWER(a) != TOLOWER(b)) {
+            return false;
+        }
+    }
+
+    return true;
+}
+
+static uint32_t capacityFor(uint32_t expected) {
+    uint32_t capacity = HEADER_TABLE_MIN_CAPACITY;
+
+    while (HEADER_TABLE_FULL(expected, capacity)) {
+        capacity <<= 1;
+    }
+
+    return capacity;
+}
+
+static inline HeaderSlot* findSlot(HeaderSlot* slots, uint32_t capacity, const char* key, size_t keyLength, uint32_t hash) {
+    uint32_t mask = capacity - 1;
+
+    for (uint32_t i = hash & mask; ; i = (i + 1) & mask) {
+        HeaderSlot* slot = &slots[i];
+
+        if (slot->key == NULL || keyEquals(slot, key, keyLength, hash)) {
+            return slot;
+        }
+    }
+}
+
+static bool grow(HeaderTable* table) {
+    uint32_t newCapacity = table->capacity << 1;
+
+    HeaderSlot* newSlots = calloc(newCapacity, sizeof(HeaderSlot));
+    if (newSlots == NULL) {
+        return false;
+    }
+
+    uint32_t mask = newCapacity - 1;
+
+    for (uint32_t i = 0; i < table->capacity; ++i) {
+        HeaderSlot* old = &table->slots[i];
+
+        if (old->key == NULL) {
+            continue;
+        }
+
+        uint32_t j = old->hash & mask;
+
+        while (newSlots[j].key != NULL) {
+            j = (j + 1) & mask;
+        }
+
+        newSlots[j] = *old;
+    }
+
+    free(table->slots);
+
+    table->slots = newSlots;
+    table->capacity = newCapacity;
+
+    return true;
+}
+
+bool headerTableInit(HeaderTable* table, uint32_t expected) {
+    table->size = 0;
+    table->capacity = capacityFor(expected);
+    table->slots = calloc(table->capacity, sizeof(HeaderSlot));
+
+    return table->slots != NULL;
+}
+
+void headerTableReset(HeaderTable* table) {
+    uint32_t capacity = capacityFor(table->size);
+
+    if (capacity != table->capacity) {
+        HeaderSlot* slots = calloc(capacity, sizeof(HeaderSlot));
+
+        if (slots != NULL) {
+            free(table->slots);
+
+            table->slots = slots;
+            table->capacity = capacity;
+            table->size = 0;
+
+            return;
+        }
+    }
+
+    if (table->size != 0) {
+        memset(table->slots, 0, table->capacity * sizeof(HeaderSlot));
+
+        table->size = 0;
+    }
+}
+
+HeaderSlot* headerTablePut(HeaderTable* table, const char* key, size_t keyLength) {
+    uint32_t hash = keyHash(key, keyLength);
+
+    HeaderSlot* slot = findSlot(table->slots, table->capacity, key, keyLength, hash);
+
+    if (slot->key != NULL) {
+        return slot;
+    }
+
+    if (HEADER_TABLE_FULL(table->size + 1, table->capacity)) {
+        if (!grow(table)) {
+            return NULL;
+        }
+
+        slot = findSlot(table->slots, table->capacity, key, keyLength, hash);
+    }
+
+    slot->key = key;
+    slot->keyLength = (uint32_t) keyLength;
+    slot->hash = hash;
+    slot->value = NULL;
+
+    ++table->size;
+
+    return slot;
+}
+
+void* headerTableGet(const HeaderTable* table, const char* key, size_t keyLength) {
+    HeaderSlot* slot = findSlot(table->slots, table->capacity, key, keyLength, keyHash(key, keyLength));
+
+    return slot->value;
+}
+
+int32_t headerTableIndex(const HeaderTable* table, const char* key, size_t keyLength) {
+    HeaderSlot* slot = findSlot(table->slots, table->capacity, key, keyLength, keyHash(key, keyLength));
+
+    return slot->key == NULL ? -1 : (int32_t) (slot - table->slots);
+}
+
+void headerTableFree(HeaderTable* table) {
+    free(table->slots);
+
+    table->slots = NULL;
+    table->capacity = 0;
+    table->size = 0;
+}
@@ -0,0 +1,69 @@
+#ifndef __HEADER_TABLE_H
+#define __HEADER_TABLE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+
+// the smallest capacity, the table is ever shrunk to
+#define HEADER_TABLE_MIN_CAPACITY 16u
+
+struct HeaderSlot {
+    // NULL for empty slots
+    const char* key;
+    void* value;
+    uint32_t hash;
+    uint32_t keyLength;
+};
+
+typedef struct HeaderSlot HeaderSlot;
+
+struct HeaderTable {
+    HeaderSlot* slots;
+    // always a power of two
+    uint32_t capacity;
+    uint32_t size;
+};
+
+/**
+ * An open-addressing hash table with linear probing, keyed by case-insensitive ASCII strings.
+ *
+ * The table does not own keys and values: both are expected to live in the header arena
+ * and stay in place until the table is reset.
+ */
+typedef struct HeaderTable HeaderTable;
+
+/**
+ * Initializes the table with enough space for the given number of entries. Returns false
+ * if memory allocation fails.
+ */
+bool headerTableInit(HeaderTable* table, uint32_t expected);
+
+/**
+ * Drops all entries and resizes the table to fit as many entries as it had before the call,
+ * so that a connection, receiving similar responses, does not have to grow the table again.
+ * If memory allocation fails, the table keeps the old capacity.
+ */
+void headerTableReset(HeaderTable* table);
+
+/**
+ * Looks up the slot for given key, inserting a new one if the key is missing. The value of new
+ * slot is NULL. Returns NULL if the table had to grow and memory allocation failed.
+ */
+HeaderSlot* headerTablePut(HeaderTable* table, const char* key, size_t keyLength);
+
+/**
+ * Returns the value for given key or NULL if the key is not in the table.
+ */
+void* headerTableGet(const HeaderTable* table, const char* key, size_t keyLength);
+
+/**
+ * Returns index of the slot for given key or -1 if the key is not in the table. The index stays
+ * valid until the table is reset or a new key is inserted: insertion may grow the table, which
+ * moves all entries to new slots.
+ */
+int32_t headerTableIndex(const HeaderTable* table, const char* key, size_t keyLength);
+
+void headerTableFree(HeaderTable* table);
+
+#endif
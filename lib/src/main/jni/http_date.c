@@ -0,0 +1,180 @@
+#include "http_date.h"
+#include <stddef.h>
+#include <strings.h>
+
+#define IS_DIGIT(c) ((c) >= '0' && (c) <= '9')
+#define IS_ALPHA(c) (((c) | 0x20) >= 'a' && ((c) | 0x20) <= 'z')
+
+static const char months[] = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+static inline const char* skipSpaces(const char* p) {
+    while (*p == ' ') {
+        ++p;
+    }
+
+    return p;
+}
+
+// parses from min to max digits, returns NULL on failure
+static const char* parseNumber(const char* p, int min, int max, int* result) {
+    int value = 0;
+    int count = 0;
+
+    while (count < max && IS_DIGIT(*p)) {
+        value = value * 10 + (*p - '0');
+        ++count;
+        ++p;
+    }
+
+    if (count < min) {
+        return NULL;
+    }
+
+    *result = value;
+
+    return p;
+}
+
+// parses three-letter month abbreviation into 1-based month number
+static const char* parseMonth(const char* p, int* month) {
+    if (!IS_ALPHA(p[0]) || !IS_ALPHA(p[1]) || !IS_ALPHA(p[2])) {
+        return NULL;
+    }
+
+    for (int i = 0; i < 12; ++i) {
+        if (!strncasecmp(p, months + i * 3, 3)) {
+            *month = i + 1;
+
+            return p + 3;
+        }
+    }
+
+    return NULL;
+}
+
+// "HH:MM:SS"
+static const char* parseTime(const char* p, int* hour, int* minute, int* second) {
+    if ((p = parseNumber(p, 2, 2, hour)) == NULL || *p++ != ':') {
+        return NULL;
+    }
+
+    if ((p = parseNumber(p, 2, 2, minute)) == NULL || *p++ != ':') {
+        return NULL;
+    }
+
+    return parseNumber(p, 2, 2, second);
+}
+
+static bool parseZone(const char* p) {
+    p = skipSpaces(p);
+
+    if (!strncasecmp(p, "GMT", 3) || !strncasecmp(p, "UTC", 3)) {
+        p += 3;
+    }
+
+    return *skipSpaces(p) == '\0';
+}
+
+// days since 1970-01-01 in proleptic Gregorian calendar
+static int64_t daysFromCivil(int64_t y, int m, int d) {
+    y -= m <= 2;
+
+    int64_t era = (y >= 0 ? y : y - 399) / 400;
+    int64_t yoe = y - era * 400;
+    int64_t doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+    int64_t doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+    return era * 146097 + doe - 719468;
+}
+
+static bool isLeap(int year) {
+    return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+}
+
+bool httpDateParse(const char* str, int64_t* millis) {
+    static const int monthDays[] = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    const char* p = skipSpaces(str);
+
+    int year, month, day, hour, minute, second;
+
+    const char* dayName = p;
+
+    while (IS_ALPHA(*p)) {
+        ++p;
+    }
+
+    if (p - dayName < 3) {
+        return false;
+    }
+
+    if (*p == ',') {
+        p = skipSpaces(p + 1);
+
+        if ((p = parseNumber(p, 1, 2, &day)) == NULL) {
+            return false;
+        }
+
+        if (*p == '-') {
+            // RFC 850: "06-Nov-94 08:49:37 GMT"
+            if ((p = parseMonth(p + 1, &month)) == NULL || *p++ != '-') {
+                return false;
+            }
+
+            if ((p = parseNumber(p, 2, 4, &year)) == NULL) {
+                return false;
+            }
+
+            if (year < 100) {
+                year += year < 70 ? 2000 : 1900;
+            }
+        } else {
+            // IMF-fixdate: "06 Nov 1994 08:49:37 GMT"
+            if ((p = parseMonth(skipSpaces(p), &month)) == NULL) {
+                return false;
+            }
+
+            if ((p = parseNumber(skipSpaces(p), 4, 4, &year)) == NULL) {
+                return false;
+            }
+        }
+
+        if ((p = parseTime(skipSpaces(p), &hour, &minute, &second)) == NULL || !parseZone(p)) {
+            return false;
+        }
+    } else if (*p == ' ') {
+        // asctime: "Nov  6 08:49:37 1994"
+        if ((p = parseMonth(skipSpaces(p), &month)) == NULL) {
+            return false;
+        }
+
+        if ((p = parseNumber(skipSpaces(p), 1, 2, &day)) == NULL) {
+            return false;
+        }
+
+        if ((p = parseTime(skipSpaces(p), &hour, &minute, &second)) == NULL) {
+            return false;
+        }
+
+        if ((p = parseNumber(skipSpaces(p), 4, 4, &year)) == NULL || !parseZone(p)) {
+            return false;
+        }
+    } else {
+        return false;
+    }
+
+    if (day < 1 || day > monthDays[month - 1] || (month == 2 && day == 29 && !isLeap(year))) {
+        return false;
+    }
+
+    // allow leap second, like java.util.Date does
+    if (hour > 23 || minute > 59 || second > 60) {
+        return false;
+    }
+
+    int64_t seconds = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second;
+
+    *millis = seconds * 1000;
+
+    return true;
+}
@@ -0,0 +1,17 @@
+#ifndef __HTTP_DATE_H
+#define __HTTP_DATE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+
+/**
+ * Parses HTTP date in any of formats, allowed by RFC 7231: IMF-fixdate
+ * ("Sun, 06 Nov 1994 08:49:37 GMT"), obsolete RFC 850 format ("Sunday, 06-Nov-94 08:49:37 GMT")
+ * or ANSI C asctime() format ("Sun Nov  6 08:49:37 1994"). The time zone may be omitted,
+ * in which case GMT is assumed. The day of week is not validated.
+ *
+ * Returns false if the string is not a valid date, otherwise stores milliseconds since epoch.
+ */
+bool httpDateParse(const char* str, int64_t* millis);
+
+#endif
@@ -0,0 +1,54 @@
+#include "metrics.h"
+
+// must be a power of two
+#define METRICS_STRIPES 8
+
+#define CACHE_LINE 64
+
+struct MetricStripe {
+    volatile int64_t values[METRIC_COUNT];
+} __attribute__ ((aligned(CACHE_LINE)));
+
+typedef struct MetricStripe MetricStripe;
+
+static MetricStripe stripes[METRICS_STRIPES];
+
+static volatile uint32_t nextStripe;
+
+// 1-based, 0 means, that the thread has not been assigned a stripe yet
+static __thread uint32_t threadStripe;
+
+static inline MetricStripe* currentStripe(void) {
+    uint32_t stripe = threadStripe;
+
+    if (__builtin_expect(stripe == 0, 0)) {
+        // spread threads round-robin, the assignment is permanent for thread lifetime
+        stripe = (__atomic_fetch_add(&nextStripe, 1, __ATOMIC_RELAXED) & (METRICS_STRIPES - 1)) + 1;
+
+        threadStripe = stripe;
+    }
+
+    return &stripes[stripe - 1];
+}
+
+void metricAdd(int metric, int64_t delta) {
+    __atomic_fetch_add(&currentStripe()->values[metric], delta, __ATOMIC_RELAXED);
+}
+
+int metricsSnapshot(int64_t* out, int count) {
+    if (count > METRIC_COUNT) {
+        count = METRIC_COUNT;
+    }
+
+    for (int i = 0; i < count; ++i) {
+        int64_t sum = 0;
+
+        for (int j = 0; j < METRICS_STRIPES; ++j) {
+            sum += __atomic_load_n(&stripes[j].values[i], __ATOMIC_RELAXED);
+        }
+
+        out[i] = sum;
+    }
+
+    return count;
+}
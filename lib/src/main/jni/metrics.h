@@ -0,0 +1,43 @@
+#ifndef __METRICS_H
+#define __METRICS_H
+
+#include <stdint.h>
+
+// keep in sync with METRIC_* in Curl.java
+enum METRICS {
+    METRIC_CONNECTIONS_OPENED,
+    METRIC_CONNECTIONS_REUSED,
+    METRIC_CONNECTIONS_CLOSED,
+    METRIC_DNS_LOOKUPS,
+    METRIC_TLS_FULL_HANDSHAKES,
+    METRIC_TLS_RESUMED_HANDSHAKES,
+    METRIC_BYTES_SENT,
+    METRIC_BYTES_RECEIVED,
+    METRIC_SEND_PAUSES,
+    METRIC_SEND_RESUMES,
+    METRIC_RECV_PAUSES,
+    METRIC_RECV_RESUMES,
+    METRIC_TIMEOUTS,
+    METRIC_LIVE_HANDLES,
+    METRIC_COUNT
+};
+
+/**
+ * Adds delta to process-wide metric. Each thread updates its own stripe of counters, so
+ * concurrent updates from different threads rarely touch the same cache line. Never blocks.
+ */
+void metricAdd(int metric, int64_t delta);
+
+static inline void metricIncrement(int metric) {
+    metricAdd(metric, 1);
+}
+
+/**
+ * Sums all stripes of first count metrics into out. Individual values are exact, but the snapshot
+ * as a whole is not atomic: metrics, updated concurrently, may be captured at slightly different moments.
+ *
+ * Returns number of written values.
+ */
+int metricsSnapshot(int64_t* out, int count);
+
+#endif
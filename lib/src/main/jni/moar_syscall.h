@@ -5,9 +5,29 @@
 #include <sys/types.h>
 #include <linux/signal.h>
 #include <unistd.h>
+#include <fcntl.h>
+#include <time.h>
+
+#ifndef TFD_CLOEXEC
+#define TFD_CLOEXEC O_CLOEXEC
+#endif
+
+#ifndef TFD_NONBLOCK
+#define TFD_NONBLOCK O_NONBLOCK
+#endif
 
 static inline int sys_rt_tgsigqueueinfo(pid_t pid, pid_t tid, int signo, siginfo_t *uinfo) {
     return syscall(__NR_rt_tgsigqueueinfo, pid, tid, signo, uinfo);
 }
 
+// timerfd wrappers are missing from Bionic before API 19
+
+static inline int sys_timerfd_create(int clockid, int flags) {
+    return syscall(__NR_timerfd_create, clockid, flags);
+}
+
+static inline int sys_timerfd_settime(int fd, int flags, const struct itimerspec *value, struct itimerspec *old) {
+    return syscall(__NR_timerfd_settime, fd, flags, value, old);
+}
+
 #endif
\ No newline at end of file
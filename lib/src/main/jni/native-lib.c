@@ -4,11 +4,20 @@
 #include <dlfcn.h>
 #include <alloca.h>
 #include <curl/multi.h>
-#include "hashmap.h"
+#include "header_table.h"
+#include "tls_cache.h"
+#include "dns_cache.h"
+#include "http_date.h"
+#include "metrics.h"
 #include <unistd.h>
+#include <errno.h>
 #include <sys/syscall.h>
 #include <bits/timespec.h>
 #include <sys/select.h>
+#include <sys/eventfd.h>
+#include <sys/epoll.h>
+#include <pthread.h>
+#include <strings.h>
 #include "linux_syscall_support.h"
 #include "moar_syscall.h"
 
@@ -30,6 +39,8 @@ enum OPTIONS {
     CONTINUE_TIMEOUT = 1,
     CONN_CACHE_SIZE = 2,
     MAX_REDIRECT_COUNT = 3,
+    RECV_BUFFER_SIZE = 4,
+    SEND_BUFFER_SIZE = 5,
 };
 
 #define FLAG_DEBUG 1u
@@ -52,6 +63,14 @@ enum OPTIONS {
 #define STATE_NEED_OUTPUT (1u << 7)
 #define STATE_DONE_SENDING (1u << 8)
 #define STATE_SEEN_HEADER_END (1u << 9)
+#define STATE_WAITING (1u << 10)
+#define STATE_QUEUED (1u << 11)
+#define STATE_TRANSFER_DONE (1u << 12)
+#define STATE_FAILED_OOM (1u << 13)
+#define STATE_TLS_HANDSHAKE (1u << 14)
+#define STATE_ASYNC (1u << 15)
+#define STATE_HEADERS_DELIVERED (1u << 16)
+#define STATE_DIRTY (1u << 17)
 
 #define SET_ATTACHED(i) (i->state |= STATE_ATTACHED)
 #define SET_DETACHED(i) (i->state &= ~STATE_ATTACHED)
@@ -83,6 +102,48 @@ enum OPTIONS {
 #define SET_SEEN_HEADER_END(i) (i->state |= STATE_SEEN_HEADER_END)
 #define SET_SEEN_NO_HEADER_END(i) (i->state &= ~STATE_SEEN_HEADER_END)
 
+#define SET_WAITING(i) (i->state |= STATE_WAITING)
+#define SET_NOT_WAITING(i) (i->state &= ~STATE_WAITING)
+
+#define SET_TRANSFER_DONE(i) (i->state |= STATE_TRANSFER_DONE)
+
+// commands, posted to the event loop thread by threads, that own handles
+#define CMD_ATTACH 1u
+#define CMD_DETACH (1u << 1)
+#define CMD_RECV_CONT (1u << 2)
+#define CMD_SEND_CONT (1u << 3)
+#define CMD_CANCEL (1u << 4)
+
+// events, delivered to asynchronous requests by the event loop thread
+#define ASYNC_HEADERS 1u
+#define ASYNC_DATA (1u << 1)
+#define ASYNC_DONE (1u << 2)
+
+#define AWAIT_READY 0
+#define AWAIT_INTERRUPTED 1
+#define AWAIT_TIMEOUT 2
+
+// size of per-handle ring buffers, used to pass data between event loop and Java threads,
+// must be a power of two, that can hold at least one chunk from curl
+#define RECV_BUFFER_DEFAULT (CURL_MAX_WRITE_SIZE * 4)
+#define SEND_BUFFER_DEFAULT (CURL_MAX_WRITE_SIZE * 4)
+#define RING_BUFFER_MIN CURL_MAX_WRITE_SIZE
+#define RING_BUFFER_MAX (64 * 1024 * 1024)
+
+// how often the event loop checks timeouts of asynchronous requests
+#define LOOP_MAX_WAIT 1000
+
+// socket events, processed by single iteration of the event loop
+#define LOOP_MAX_EVENTS 64
+
+#ifndef FUTEX_WAIT_PRIVATE
+#define FUTEX_WAIT_PRIVATE 128
+#endif
+
+#ifndef FUTEX_WAKE_PRIVATE
+#define FUTEX_WAKE_PRIVATE 129
+#endif
+
 #define MAX_LOCAL_ALLOC (1024 * 8)
 
 #define TOLOWER(data) ((data > 0x40 && data < 0x5b) ? data|0x60 : data)
@@ -111,30 +172,83 @@ struct curl_hdr {
     char header[0];
 };
 
+// a chunk of memory for storing response headers, blocks are chained from newest to oldest
+struct header_block {
+    struct header_block* prev;
+    uint32_t capacity;
+    uint32_t used;
+    char data[0];
+};
+
+
+struct curl_share;
+
+struct header_set;
 
 struct curl_data {
     struct curl_slist* outHeaders;
+    struct header_set* headerSet;
+    // outHeaders on top of headerSet, the nodes point to strings of both lists
+    struct curl_slist* mergedHeaders;
+    uint32_t mergedCapacity;
+    // options, last applied by nativeConfigure
+    char* dnsServers;
+    bool viaProxy;
+    struct curl_slist* resolve;
     CURL* curl;
-    CURLM* multi;
     JNIEnv* env;
-    jbyteArray bufferForReceiving;
-    jbyteArray bufferForSending;
-    Hashmap* headers;
+    struct curl_share* share;
+    // fingerprint of the cached TLS session, offered for resumption, 0 if none
+    uint64_t tlsOffered;
+    // microseconds, spent in DNS cache before handing the request to curl, -1 if the request never got there
+    int64_t resolveTime;
+    struct curl_data* nextPending;
+    struct curl_data* nextAttached;
+    struct curl_data* prevAttached;
+    struct curl_data* nextReady;
+    struct curl_data* nextDirty;
+    jobject asyncRef;
+    jobject readyRef;
+    jobject asyncBuffer;
+    char* recvBuffer;
+    char* sendBuffer;
+    HeaderTable headers;
+    struct header_block* headerArena;
     void** headerPairs;
     uint32_t headerBufSize;
     uint16_t headerPairCount;
+    // number of trailers among headerPairs, these are not added to the header table
+    uint16_t trailerCount;
     uint16_t maxHeaderLength;
     uint64_t uploadedCount;
     uint64_t uploadGoal;
+    // the file descriptor, supplied via uploadFrom, and position of request body in it
+    uint64_t uploadOffset;
+    int uploadFd;
+    // errno of failed read from uploadFd, or -1 if the file ended prematurely
+    int uploadError;
     uint32_t state;
-    jint readOffset;
-    jint countToRead;
+    uint32_t flags;
     jint readOverflow;
-    jint writeOffset;
-    jint countToWrite;
     jint connTimeout;
     jint readTimeout;
+    // total counts of bytes, put into and taken from the receive ring buffer
+    uint32_t recvWritten;
+    uint32_t recvConsumed;
+    uint32_t recvCapacity;
+    // total counts of bytes, put into and taken from the send ring buffer
+    uint64_t sendWritten;
+    uint64_t sendConsumed;
+    uint32_t sendCapacity;
+    uint32_t commands;
+    uint32_t asyncEvents;
+    CURLcode result;
+    CURLMcode multiResult;
+    int64_t lastActivity;
+    volatile int wakeSeq;
     i10n_ptr interrupted;
+    // set by cancel(), which can be called from any thread, so it is kept apart from state
+    volatile _Atomic uint8_t cancelled;
     volatile _Atomic uint32_t busy;
     uint16_t outHeaderCount;
     char errorBuffer[CURL_ERROR_SIZE];
@@ -146,6 +260,139 @@ static jclass wrapper;
 static jclass ioException;
 static jclass javaString;
 static jmethodID threadingCb;
+static jmethodID asyncHeadersCb;
+static jmethodID asyncDataCb;
+static jmethodID asyncDoneCb;
+
+static JavaVM* javaVm;
+
+#define INTERNED_MAX_LENGTH 32
+
+// header names and values, that are common enough to be shared between all responses,
+// names are matched case-insensitively and returned in canonical form
+struct interned_string {
+    const char* text;
+    bool name;
+    // index + 1 of the next string with the same length, 0 if none
+    uint8_t next;
+    jstring ref;
+};
+
+static struct interned_string interned[] = {
+    { "Accept-Ranges", true },
+    { "Access-Control-Allow-Origin", true },
+    { "Age", true },
+    { "Alt-Svc", true },
+    { "Cache-Control", true },
+    { "Connection", true },
+    { "Content-Disposition", true },
+    { "Content-Encoding", true },
+    { "Content-Language", true },
+    { "Content-Length", true },
+    { "Content-Location", true },
+    { "Content-Range", true },
+    { "Content-Type", true },
+    { "Date", true },
+    { "ETag", true },
+    { "Expires", true },
+    { "Keep-Alive", true },
+    { "Last-Modified", true },
+    { "Link", true },
+    { "Location", true },
+    { "Pragma", true },
+    { "Retry-After", true },
+    { "Server", true },
+    { "Set-Cookie", true },
+    { "Strict-Transport-Security", true },
+    { "Transfer-Encoding", true },
+    { "Vary", true },
+    { "Via", true },
+    { "WWW-Authenticate", true },
+    { "X-Content-Type-Options", true },
+    { "X-Frame-Options", true },
+
+    { "0", false },
+    { "*", false },
+    { "Accept-Encoding", false },
+    { "application/javascript", false },
+    { "application/json", false },
+    { "application/json; charset=utf-8", false },
+    { "application/octet-stream", false },
+    { "br", false },
+    { "bytes", false },
+    { "chunked", false },
+    { "close", false },
+    { "DENY", false },
+    { "deflate", false },
+    { "gzip", false },
+    { "identity", false },
+    { "image/jpeg", false },
+    { "image/png", false },
+    { "keep-alive", false },
+    { "max-age=0", false },
+    { "no-cache", false },
+    { "no-store", false },
+    { "none", false },
+    { "nosniff", false },
+    { "private", false },
+    { "public", false },
+    { "SAMEORIGIN", false },
+    { "text/css", false },
+    { "text/html", false },
+    { "text/html; charset=utf-8", false },
+    { "text/plain", false },
+};
+
+static uint8_t internedByLength[INTERNED_MAX_LENGTH + 1];
+
+// used in place of Interruption by asynchronous requests, which are never interrupted
+static volatile _Atomic uint8_t neverInterrupted;
+
+struct curl_loop {
+    CURLM* multi;
+    JNIEnv* env;
+    struct curl_data* pending;
+    struct curl_data* attached;
+    // handles, that were touched by curl since the last iteration
+    struct curl_data* dirty;
+    pthread_mutex_t lock;
+    pthread_t thread;
+    int64_t lastSweep;
+    int wakeupFd;
+    int epollFd;
+    int timerFd;
+};
+
+// the single multi handle, shared by all curl_data instances, and a thread, driving it
+static struct curl_loop loop = {
+    .lock = PTHREAD_MUTEX_INITIALIZER,
+    .wakeupFd = -1,
+    .epollFd = -1,
+    .timerFd = -1,
+};
+
+struct curl_share {
+    CURLSH* share;
+    long maxConnections;
+    TlsCache tlsCache;
+    pthread_mutex_t locks[CURL_LOCK_DATA_LAST];
+};
+
+// an immutable list of request headers, that can be used by many handles at once,
+// the list and it's strings are allocated together with the struct
+struct header_set {
+    // one for Java object plus one for each handle, using the set
+    volatile uint32_t refs;
+    uint32_t count;
+    struct curl_slist list[0];
+};
+
+// groups of options, changed since the last call to nativeConfigure (keep in sync with RequestOptions)
+#define OPTION_DIRTY_METHOD (1 << 0)
+#define OPTION_DIRTY_PROXY (1 << 1)
+#define OPTION_DIRTY_DNS (1 << 2)
+#define OPTION_DIRTY_INTERFACE (1 << 3)
+#define OPTION_DIRTY_REDIRECTS (1 << 4)
 
 #define ERROR_USE_SYNCHRONIZATION 0
 #define ERROR_DNS_FAILURE 1
@@ -163,9 +410,13 @@ static jmethodID threadingCb;
 #define ERROR_ILLEGAL_STATE 13
 #define ERROR_INTERRUPTED 14
 #define ERROR_CLOSED 15
+#define ERROR_CANCELLED 16
 
 #define HEADER_BUF_SIZE_DEFAULT 20u
 
+// initial size of header arena, enough for a typical response
+#define HEADER_ARENA_DEFAULT 4096u
+
 static __attribute__ ((noinline, cold)) void interruption_handler(int signo, siginfo_t* info, void* unused) {
     void* ref = info -> si_value.sival_ptr;
 
@@ -174,28 +425,49 @@ static __attribute__ ((noinline, cold)) void interruption_handler(int signo, sig
     }
 }
 
-static void buffer_read(struct curl_data* ctrl, jobject* buf_, void* buffer, int count) {
-    JNIEnv* env = ctrl->env;
+static inline int64_t monotonicTime() {
+    struct timespec now;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
 
-    memcpy(buffer, (*env)->GetDirectBufferAddress(env, buf_), (size_t) count);
+    return now.tv_sec * 1000LL + now.tv_nsec / 1000000;
 }
 
-static void buffer_write(struct curl_data* ctrl, jobject* buf_, void* buffer, int count) {
-    JNIEnv* env = ctrl->env;
+static inline int64_t monotonicMicros() {
+    struct timespec now;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
 
-    memcpy((*env)->GetDirectBufferAddress(env, buf_), buffer, (size_t) count);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
 }
 
-static inline void array_read(struct curl_data* ctrl, jobject* buf_, void* buffer, int count) {
-    JNIEnv* env = ctrl->env;
+static inline void markActivity(struct curl_data* ctrl) {
+    ctrl->lastActivity = monotonicTime();
+}
 
-    (*env)->GetByteArrayRegion(env, buf_, ctrl->writeOffset, count, (jbyte*) buffer);
+static inline uint32_t recvBuffered(struct curl_data* ctrl) {
+    return ctrl->recvWritten - ctrl->recvConsumed;
 }
 
-static inline void array_write(struct curl_data* ctrl, jobject* buf_, void* ptr, int count) {
-    JNIEnv* env = ctrl->env;
+// the part of received data, that can be handed out at once, without wrapping around the end of buffer
+static inline uint32_t recvContiguous(struct curl_data* ctrl) {
+    uint32_t chunk = ctrl->recvCapacity - (ctrl->recvConsumed & (ctrl->recvCapacity - 1));
+
+    return chunk > recvBuffered(ctrl) ? recvBuffered(ctrl) : chunk;
+}
+
+// Remember, that curl has done something with the handle, so that the event loop examines it
+// after processing socket events. Must be called by the event loop thread with loop lock held.
+static inline void loopTouch(struct curl_data* ctrl) {
+    if (!(ctrl->state & STATE_DIRTY)) {
+        ctrl->state |= STATE_DIRTY;
+        ctrl->nextDirty = loop.dirty;
+        loop.dirty = ctrl;
+    }
+}
 
-    (*env)->SetByteArrayRegion(env, buf_, ctrl->readOffset, count, (jbyte*) ptr);
+static inline uint32_t sendBuffered(struct curl_data* ctrl) {
+    return (uint32_t) (ctrl->sendWritten - ctrl->sendConsumed);
 }
 
 static __attribute__ ((noinline, cold)) void throwInterruptedException(struct curl_data* ctrl, jint count) {
@@ -219,6 +491,7 @@ static __attribute__ ((noinline, cold)) void oomThrow(JNIEnv* env) {
 
 static __attribute__ ((noinline)) void throwTimeout(JNIEnv* env, int transferred) {
     int errorType = transferred > 0 ? ERROR_SOCKET_READ_TIMEOUT : ERROR_SOCKET_CONNECT_TIMEOUT;
+    metricIncrement(METRIC_TIMEOUTS);
     (*env) -> CallStaticVoidMethod(env, wrapper, threadingCb, NULL, errorType, 0);
     return;
 }
@@ -229,12 +502,80 @@ static __attribute__ ((noinline)) void throwOther(JNIEnv* env, const char* error
     return;
 }
 
+// returns NULL (with pending exception), if the buffer is not a direct buffer
+static char* directAddress(JNIEnv* env, jobject buffer, jint off, jint count) {
+    char* address = (*env)->GetDirectBufferAddress(env, buffer);
+
+    if (unlikely(address == NULL)) {
+        throwOther(env, "Not a direct buffer", ERROR_ILLEGAL_STATE);
+        return NULL;
+    }
+
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+
+    if (unlikely(off < 0 || count < 0 || off > capacity - count)) {
+        throwOther(env, "Buffer bounds exceeded", ERROR_ILLEGAL_STATE);
+        return NULL;
+    }
+
+    return address + off;
+}
+
+// Allocate header storage from the arena, adding a block twice as big as the last one,
+// when it runs out of space. Returns NULL if out of memory.
+static void* headerAlloc(struct curl_data* ctrl, size_t size) {
+    // the stored values start with a pointer
+    size = (size + sizeof(void*) - 1) & ~(sizeof(void*) - 1);
+
+    struct header_block* block = ctrl->headerArena;
+
+    if (unlikely(block == NULL || block->capacity - block->used < size)) {
+        uint32_t capacity = block == NULL ? HEADER_ARENA_DEFAULT : block->capacity * 2;
+
+        while (capacity < size) {
+            capacity *= 2;
+        }
+
+        struct header_block* grown = malloc(sizeof(struct header_block) + capacity);
+        if (unlikely(grown == NULL)) {
+            return NULL;
+        }
+
+        grown->prev = block;
+        grown->capacity = capacity;
+        grown->used = 0;
+
+        ctrl->headerArena = block = grown;
+    }
+
+    void* allocated = block->data + block->used;
+
+    block->used += size;
+
+    return allocated;
+}
+
+// forget all stored headers, keeping the newest (and biggest) block of arena for next response
 static inline void releaseHeaders(struct curl_data* ctrl) {
-    for (int i = 0; i < ctrl->headerPairCount; i += 2) {
-        free (ctrl->headerPairs[i]);
+    struct header_block* block = ctrl->headerArena;
+
+    if (block != NULL) {
+        struct header_block* prev = block->prev;
+
+        while (prev != NULL) {
+            struct header_block* next = prev->prev;
+
+            free(prev);
+
+            prev = next;
+        }
+
+        block->prev = NULL;
+        block->used = 0;
     }
 
     ctrl->headerPairCount = 0;
+    ctrl->trailerCount = 0;
 }
 
 static inline bool headers_ensure_capacity(struct curl_data* ctrl, size_t newItemCapacity) {
@@ -247,7 +588,7 @@ static inline bool headers_ensure_capacity(struct curl_data* ctrl, size_t newIte
     void* newAddress = realloc(ctrl->headerPairs, sizeof(char*) * 2 * targetItemCapacity);
 
     if (unlikely(newAddress == NULL)) {
-        oomThrow(ctrl->env);
+        ctrl->state |= STATE_FAILED_OOM;
 
         return true;
     }
@@ -264,44 +605,46 @@ static inline bool headers_ensure_capacity(struct curl_data* ctrl, size_t newIte
 static size_t read_callback(char *buffer, size_t size, size_t nitems, void *instream) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) instream;
 
-    LOG("Read called for %d bytes, space left in buffer: %d, offset: %d", ctrl->countToWrite, size * nitems, ctrl->writeOffset);
+    loopTouch(ctrl);
 
-    if (ctrl->state & STATE_DONE_SENDING) {
-        LOG("Stopping sending");
-        SET_SEND_PAUSED(ctrl);
-        return 0;
-    }
+    uint32_t available = sendBuffered(ctrl);
 
-    if (ctrl->countToWrite == 0) {
-        LOG("Pausing sending");
+    LOG("Read called for %d bytes, buffered: %u", size * nitems, available);
 
-        // we have run out of data to send, slow down
+    if (available == 0) {
+        // we have run out of data to send
         SET_SEND_PAUSED(ctrl);
 
-        return CURL_WRITEFUNC_PAUSE;
-    }
+        if (ctrl->state & STATE_DONE_SENDING) {
+            LOG("Stopping sending");
+            return 0;
+        }
 
-    jbyteArray buf_ = ctrl->bufferForSending;
+        LOG("Pausing sending");
 
-    int written;
+        metricIncrement(METRIC_SEND_PAUSES);
 
-    if (buf_ != NULL) {
-        int available = ctrl->countToWrite;
+        return CURL_WRITEFUNC_PAUSE;
+    }
 
-        int curlBufferCapacity = size * nitems;
+    uint32_t curlBufferCapacity = size * nitems;
 
-        written = available > curlBufferCapacity ? curlBufferCapacity : available;
+    uint32_t written = available > curlBufferCapacity ? curlBufferCapacity : available;
 
-        array_read(ctrl, buf_, buffer, written);
+    uint32_t start = (uint32_t) ctrl->sendConsumed & (ctrl->sendCapacity - 1);
+    uint32_t tail = ctrl->sendCapacity - start;
 
-        ctrl->writeOffset += written;
+    if (written <= tail) {
+        memcpy(buffer, ctrl->sendBuffer + start, written);
     } else {
-        // writing a single byte
-        written = 1;
-
-        *buffer = (unsigned char) ctrl->writeOffset;
+        memcpy(buffer, ctrl->sendBuffer + start, tail);
+        memcpy(buffer + tail, ctrl->sendBuffer, written - tail);
     }
 
+    ctrl->sendConsumed += written;
+
+    markActivity(ctrl);
+
     uint64_t goal = ctrl->uploadGoal;
     if (goal) {
         ctrl->uploadedCount += written;
@@ -312,19 +655,50 @@ static size_t read_callback(char *buffer, size_t size, size_t nitems, void *inst
         }
     }
 
-    ctrl->countToWrite -= written;
-
     return (size_t) written;
 }
 
-static size_t eof_callback(char *buffer, size_t size, size_t nitems, void *instream) {
-    LOG("Stopping sending");
-
+// read request body straight from the file descriptor into curl's buffer
+static size_t file_read_callback(char *buffer, size_t size, size_t nitems, void *instream) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) instream;
 
-    SET_SEND_PAUSED(ctrl);
+    loopTouch(ctrl);
 
-    return 0;
+    uint64_t remaining = ctrl->uploadGoal - ctrl->uploadedCount;
+
+    if (remaining == 0) {
+        SET_SEND_PAUSED(ctrl);
+        return 0;
+    }
+
+    size_t count = size * nitems;
+
+    if (count > remaining) {
+        count = (size_t) remaining;
+    }
+
+    off64_t position = (off64_t) (ctrl->uploadOffset + ctrl->uploadedCount);
+
+    ssize_t read = TEMP_FAILURE_RETRY(pread64(ctrl->uploadFd, buffer, count, position));
+
+    LOG("Read %zd bytes from upload source at %lld", read, (long long) position);
+
+    if (unlikely(read <= 0)) {
+        // the file is shorter, than promised Content-Length, or can not be read at all
+        ctrl->uploadError = read == 0 ? -1 : errno;
+
+        return CURL_READFUNC_ABORT;
+    }
+
+    ctrl->uploadedCount += read;
+
+    markActivity(ctrl);
+
+    if (ctrl->uploadedCount >= ctrl->uploadGoal) {
+        SET_SEND_PAUSED(ctrl);
+    }
+
+    return (size_t) read;
 }
 
 // write callbacks
@@ -333,6 +707,8 @@ static size_t eof_callback(char *buffer, size_t size, size_t nitems, void *instr
 static size_t connect_and_pause_callback(char *buffer, size_t size, size_t nitems, void *userdata) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) userdata;
 
+    loopTouch(ctrl);
+
     SET_RECV_PAUSED(ctrl);
 
     LOG("pausing for connect");
@@ -375,11 +751,71 @@ static inline void wsp_trim(char** first, char** afterLast) {
     wsp_trim_end(first, afterLast);
 }
 
+// invoked for each new TLS connection after mbedTLS context is set up, but before the handshake
+static CURLcode ssl_ctx_callback(CURL *curl, void *sslctx, void *parm) {
+    struct curl_data* ctrl = (struct curl_data*) parm;
+
+    struct curl_tlssessioninfo* info = NULL;
+
+    if (curl_easy_getinfo(curl, CURLINFO_TLS_SSL_PTR, &info) != CURLE_OK
+        || info == NULL || info->backend != CURLSSLBACKEND_MBEDTLS || info->internals == NULL) {
+        return CURLE_OK;
+    }
+
+    char* url = NULL;
+
+    curl_easy_getinfo(curl, CURLINFO_EFFECTIVE_URL, &url);
+
+    char key[TLS_CACHE_KEY_MAX];
+
+    if (url == NULL || !tlsCacheKey(url, key, sizeof(key))) {
+        return CURLE_OK;
+    }
+
+    mbedtls_ssl_context* ssl = (mbedtls_ssl_context*) info->internals;
+
+    ctrl->tlsOffered = tlsCacheRestore(&ctrl->share->tlsCache, key, ssl) ? tlsSessionFingerprint(ssl, false) : 0;
+
+    ctrl->state |= STATE_TLS_HANDSHAKE;
+
+    return CURLE_OK;
+}
+
+static void saveTlsSession(struct curl_data* ctrl) {
+    struct curl_tlssessioninfo* info = NULL;
+
+    if (curl_easy_getinfo(ctrl->curl, CURLINFO_TLS_SSL_PTR, &info) != CURLE_OK
+        || info == NULL || info->backend != CURLSSLBACKEND_MBEDTLS || info->internals == NULL) {
+        return;
+    }
+
+    uint64_t fingerprint = tlsSessionFingerprint((mbedtls_ssl_context*) info->internals, true);
+
+    bool resumed = ctrl->tlsOffered != 0 && ctrl->tlsOffered == fingerprint;
+
+    metricIncrement(resumed ? METRIC_TLS_RESUMED_HANDSHAKES : METRIC_TLS_FULL_HANDSHAKES);
+
+    char* url = NULL;
+
+    curl_easy_getinfo(ctrl->curl, CURLINFO_EFFECTIVE_URL, &url);
+
+    char key[TLS_CACHE_KEY_MAX];
+
+    if (url != NULL && tlsCacheKey(url, key, sizeof(key))) {
+        // failing to remember the session is harmless, the next connection will do full handshake
+        tlsCacheStore(&ctrl->share->tlsCache, key, (mbedtls_ssl_context*) info->internals);
+    }
+}
+
 size_t header_callback(char *buffer, size_t size, size_t nitems,   void *userdata) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) userdata;
 
     size_t bufferLength = size * nitems;
 
+    loopTouch(ctrl);
+
+    markActivity(ctrl);
+
     int i;
     for (i = 0; i < bufferLength; ++i) {
         if (buffer[i] == ':') {
@@ -396,10 +832,17 @@ size_t header_callback(char *buffer, size_t size, size_t nitems,   void *userdat
         if (i > 5 && buffer[0] == 'H' && buffer[1] == 'T' && buffer[2] == 'T' && buffer[3] == 'P' && buffer[4] == '/') {
             statusLine = true;
 
+            if (ctrl->state & STATE_TLS_HANDSHAKE) {
+                // the handshake of new connection is complete by now
+                ctrl->state &= ~STATE_TLS_HANDSHAKE;
+
+                saveTlsSession(ctrl);
+            }
+
             if (ctrl->state & STATE_SEEN_HEADER_END) {
                 // This is a beginning of new request, clear all previously received headers
                 LOG("Received new request, resetting headers");
-                hashmapClear(ctrl->headers);
+                headerTableReset(&ctrl->headers);
                 releaseHeaders(ctrl);
 
                 SET_SEEN_NO_HEADER_END(ctrl);
@@ -428,7 +871,11 @@ size_t header_callback(char *buffer, size_t size, size_t nitems,   void *userdat
 
     valueLen = valEnd - valStart;
 
-    void* newPairPos = malloc(keyLen + sizeof(char*) + valueLen + 2);
+    void* newPairPos = headerAlloc(ctrl, keyLen + sizeof(char*) + valueLen + 2);
+    if (unlikely(newPairPos == NULL)) {
+        ctrl->state |= STATE_FAILED_OOM;
+        return 0;
+    }
 
     struct curl_hdr* newValuePos = newPairPos;
     char* newHeaderPos = newPairPos + sizeof(char*) + valueLen + 1;
@@ -439,30 +886,41 @@ size_t header_callback(char *buffer, size_t size, size_t nitems,   void *userdat
     strncpy(newHeaderPos, buffer, keyLen);
     *(newHeaderPos + keyLen) = '\0';
 
-    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "Map size is %d", ctrl->headers->size);
+    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "Map size is %d", ctrl->headers.size);
 
     if (statusLine) {
         goto skip;
     }
 
-    Entry* old = entryGet(ctrl->headers, newHeaderPos);
-    if (old == NULL) {
-        hashmapPut(ctrl->headers, newHeaderPos, newValuePos);
+    if (ctrl->state & STATE_SEEN_HEADER_END) {
+        // trailers are only accessible by position: adding them to the table could grow it,
+        // moving the slots, that have been already handed out to Java code
+        newValuePos->ref = newValuePos;
+
+        ctrl->trailerCount++;
+
+        goto skip;
+    }
+
+    HeaderSlot* slot = headerTablePut(&ctrl->headers, newHeaderPos, keyLen);
+    if (unlikely(slot == NULL)) {
+        ctrl->state |= STATE_FAILED_OOM;
+        return 0;
+    }
 
+    if (slot->value == NULL) {
         newValuePos->ref = newValuePos;
     } else {
-        LOG("Piu Piu for '%s'", (char*) old->key);
+        LOG("Piu Piu for '%s'", slot->key);
 
-        newHeaderPos = old->key;
-
-        struct curl_hdr* existing = old->value;
+        struct curl_hdr* existing = slot->value;
 
         newValuePos->ref = existing->ref;
         existing->ref = newValuePos;
-
-        old->value = newValuePos;
     }
 
+    slot->value = newValuePos;
+
     if (keyLen > ctrl->maxHeaderLength) {
         ctrl->maxHeaderLength = (uint16_t) keyLen;
     }
@@ -494,23 +952,43 @@ static size_t seek_callback(void *userp, curl_off_t offset, int origin) {
     return CURL_SEEKFUNC_CANTSEEK;
 }
 
+// unlike streamed uploads, those from file descriptor can be rewound (e.g. for redirects)
+static size_t file_seek_callback(void *userp, curl_off_t offset, int origin) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) userp;
+
+    if (origin != SEEK_SET || offset < 0 || (uint64_t) offset > ctrl->uploadGoal) {
+        return CURL_SEEKFUNC_FAIL;
+    }
+
+    ctrl->uploadedCount = (uint64_t) offset;
+
+    SET_SEND_UNPAUSED(ctrl);
+
+    return CURL_SEEKFUNC_OK;
+}
+
 static size_t write_callback(char *ptr, size_t size, size_t nmemb, void *userdata) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) userdata;
 
-    LOG("Write called for %d bytes, space left in buffer: %d", size * nmemb, ctrl->countToRead);
+    loopTouch(ctrl);
+
+    uint32_t space = ctrl->recvCapacity - recvBuffered(ctrl);
+
+    LOG("Write called for %d bytes, space left in buffer: %u", size * nmemb, space);
 
-    if (ctrl->countToRead == 0) {
+    if (space == 0) {
         SET_RECV_PAUSED(ctrl);
 
         LOG("Pausing receiving, flags: %d", ctrl->state);
 
+        metricIncrement(METRIC_RECV_PAUSES);
+
         return CURL_READFUNC_PAUSE;
     }
 
-    LOG("Source offset: %d, target offset: %d", ctrl->readOverflow, ctrl->readOffset);
+    LOG("Source offset: %d, buffered: %u", ctrl->readOverflow, recvBuffered(ctrl));
 
-    JNIEnv* env = ctrl->env;
-    jbyteArray buf_ = ctrl->bufferForReceiving;
+    markActivity(ctrl);
 
     int curlPendingDataSize = size * nmemb;
 
@@ -528,26 +1006,19 @@ static size_t write_callback(char *ptr, size_t size, size_t nmemb, void *userdat
     // let's make sure, that we don't go over the buffer limit here...
     int pendingReal = curlPendingDataSize - ctrl->readOverflow;
 
-    int read = 0;
-
-    if (buf_ != NULL) {
-        int available = ctrl->countToRead;
-
-        read = available > pendingReal ? pendingReal : available;
+    int read = space > pendingReal ? pendingReal : (int) space;
 
-        array_write(ctrl, buf_, ptr, read);
+    uint32_t start = ctrl->recvWritten & (ctrl->recvCapacity - 1);
+    uint32_t tail = ctrl->recvCapacity - start;
 
-        ctrl->readOffset += read;
-    } else if (ctrl->countToRead != 0) {
-        // consume a single byte
-        read = 1;
-
-        ctrl->readOffset = *ptr;
+    if (read <= tail) {
+        memcpy(ctrl->recvBuffer + start, ptr, (size_t) read);
+    } else {
+        memcpy(ctrl->recvBuffer + start, ptr, tail);
+        memcpy(ctrl->recvBuffer, ptr + tail, (size_t) read - tail);
     }
 
-    ctrl->countToRead -= read;
-
-    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "space left in buffer: %d", ctrl->countToRead);
+    ctrl->recvWritten += read;
 
     if (read == pendingReal) {
         ctrl->readOverflow = 0;
@@ -561,6 +1032,8 @@ static size_t write_callback(char *ptr, size_t size, size_t nmemb, void *userdat
 
         LOG("Pausing receiving, flags: %d", ctrl->state);
 
+        metricIncrement(METRIC_RECV_PAUSES);
+
         return CURL_READFUNC_PAUSE;
     }
 }
@@ -568,7 +1041,21 @@ static size_t write_callback(char *ptr, size_t size, size_t nmemb, void *userdat
 curl_socket_t opensocket_callback(void *clientp, curlsocktype purpose, struct curl_sockaddr *address) {
     LOG("Opening socket");
 
-    return socket(address->family, address->socktype, address->protocol);
+    curl_socket_t fd = socket(address->family, address->socktype, address->protocol);
+
+    if (fd != -1) {
+        metricIncrement(METRIC_CONNECTIONS_OPENED);
+    }
+
+    return fd;
+}
+
+int closesocket_callback(void *clientp, curl_socket_t fd) {
+    LOG("Closing socket");
+
+    metricIncrement(METRIC_CONNECTIONS_CLOSED);
+
+    return close(fd);
 }
 
 static __attribute__ ((noinline,cold)) void handleMultiError(struct curl_data* curl, CURLMcode lastError) {
@@ -614,7 +1101,9 @@ static __attribute__ ((noinline)) void handleEasyError(struct curl_data* ctrl, C
 
     const char* errorDesc;
 
-    if (len) {
+    if (lastError == CURLE_ABORTED_BY_CALLBACK && ctrl->uploadError) {
+        errorDesc = ctrl->uploadError > 0 ? strerror(ctrl->uploadError) : "Upload source ended prematurely";
+    } else if (len) {
         errorDesc = ctrl->errorBuffer;
 
         if (ctrl->errorBuffer[len - 1] == '\n') {
@@ -666,590 +1155,1755 @@ static __attribute__ ((noinline)) void handleEasyError(struct curl_data* ctrl, C
             case CURLE_OUT_OF_MEMORY:
                 oomThrow(env);
                 break;
+            case CURLE_OPERATION_TIMEDOUT:
+                throwTimeout(env, ctrl->headerPairCount);
+                break;
             default:
                 (*env) -> ThrowNew(env, ioException, errorDesc);
         }
     }
 }
 
-inline static jclass saveClassRef(const char* name, JNIEnv *env) {
-    jclass found = (*env) -> FindClass(env, name);
-
-    if (unlikely(found == NULL)) {
-        return NULL;
-    }
+static void loopSignal() {
+    uint64_t count = 1;
 
-    return (*env) -> NewGlobalRef(env, found);
+    TEMP_FAILURE_RETRY(write(loop.wakeupFd, &count, sizeof(count)));
 }
 
-JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
-    curl_global_init(CURL_GLOBAL_ALL | CURL_GLOBAL_ACK_EINTR);
+// must be called with loop lock held
+static void loopWake(struct curl_data* ctrl) {
+    SET_NOT_WAITING(ctrl);
 
-    return JNI_VERSION_1_6;
+    __atomic_add_fetch(&ctrl->wakeSeq, 1, __ATOMIC_RELEASE);
+
+    sys_futex((int*) &ctrl->wakeSeq, FUTEX_WAKE_PRIVATE, INT_MAX, NULL);
 }
 
-JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_nativeInit(JNIEnv *env, jclass curlWrapper) {
-    void *handle = dlopen("libc.so", RTLD_LAZY);
+static inline bool hasFailure(struct curl_data* ctrl) {
+    return ctrl->result != CURLE_OK || ctrl->multiResult != CURLM_OK || (ctrl->state & STATE_FAILED_OOM) || ctrl->cancelled;
+}
 
-    if (handle) {
-        getprop = (system_property_get) dlsym(handle, "__system_property_get");
-    }
+// throw an exception for the error, recorded by the event loop thread, and forget about it
+static void reportFailure(struct curl_data* ctrl) {
+    if (ctrl->cancelled) {
+        // not forgotten until reset, every following call fails the same way
+        throwOther(ctrl->env, "", ERROR_CANCELLED);
+    } else if (ctrl->state & STATE_FAILED_OOM) {
+        ctrl->state &= ~STATE_FAILED_OOM;
 
-    wrapper = (*env) -> NewGlobalRef(env, curlWrapper);
-    if (wrapper == NULL) {
-        return;
+        oomThrow(ctrl->env);
+    } else if (ctrl->multiResult != CURLM_OK) {
+        CURLMcode result = ctrl->multiResult;
+
+        ctrl->multiResult = CURLM_OK;
+
+        handleMultiError(ctrl, result);
+    } else if (ctrl->result != CURLE_OK) {
+        CURLcode result = ctrl->result;
+
+        ctrl->result = CURLE_OK;
+
+        handleEasyError(ctrl, result);
     }
+}
 
-    ioException = saveClassRef("java/io/IOException", env);
-    if (ioException == NULL) {
-        return;
+// check if the thread, that waits for the handle, has something to do
+static bool isReady(struct curl_data* ctrl) {
+    uint32_t state = ctrl->state;
+
+    if (ctrl->commands) {
+        return false;
     }
 
-    javaString = saveClassRef("java/lang/String", env);
-    if (javaString == NULL) {
-        return;
+    if (state & STATE_TRANSFER_DONE || hasFailure(ctrl)) {
+        return true;
     }
 
-    threadingCb = (*env) -> GetStaticMethodID(env, curlWrapper, "throwException", "(Ljava/lang/String;II)V");
-    if (threadingCb == NULL) {
-        return;
+    // part of response body has arrived and is waiting to be read
+    bool received = state & STATE_RECV_PAUSED || recvBuffered(ctrl) != 0;
+
+    // the upload has been drained or (unless the upload is being finished) there is space for more
+    bool sendable = state & STATE_SEND_PAUSED
+                    || (!(state & STATE_DONE_SENDING) && sendBuffered(ctrl) < ctrl->sendCapacity);
+
+    if ((state & STATE_NEED_INPUT && received) || (state & STATE_NEED_OUTPUT
+            && (sendable || (received && state & STATE_DONE_SENDING)))) {
+        return true;
     }
+
+    return !(state & STATE_NEED_OUTPUT) && !(state & STATE_NEED_INPUT)
+           && (state & STATE_SEND_PAUSED || received
+               || (state & STATE_SEEN_HEADER_END && (!(state & STATE_HANDLE_REDIRECT) || !headerTableGet(&ctrl->headers, "Location", 8))));
 }
 
-static int logcat_tracer(CURL *handle, curl_infotype type, char *data, size_t size, void *userp)
-{
-    char* format;
+static void loopLink(struct curl_data* ctrl) {
+    ctrl->prevAttached = NULL;
+    ctrl->nextAttached = loop.attached;
 
-    switch (type) {
-        case CURLINFO_HEADER_IN:
-        case CURLINFO_HEADER_OUT:
-        case CURLINFO_DATA_OUT:
-        case CURLINFO_DATA_IN:
-        case CURLINFO_TEXT:
-            __android_log_print(ANDROID_LOG_DEBUG, "Curl", "%.*s", size, data);
-            break;
-        default:
-            break;
+    if (loop.attached != NULL) {
+        loop.attached->prevAttached = ctrl;
     }
 
-    return 0;
+    loop.attached = ctrl;
 }
 
-static inline int hashCalc(void* key) {
-    size_t len = strlen(key);
+static void loopUnlink(struct curl_data* ctrl) {
+    if (ctrl->prevAttached != NULL) {
+        ctrl->prevAttached->nextAttached = ctrl->nextAttached;
+    } else {
+        loop.attached = ctrl->nextAttached;
+    }
 
-    int ch; uint h = len;
+    if (ctrl->nextAttached != NULL) {
+        ctrl->nextAttached->prevAttached = ctrl->prevAttached;
+    }
 
-    unsigned char* data = (unsigned char*) key;
+    ctrl->nextAttached = NULL;
+    ctrl->prevAttached = NULL;
+}
 
-    size_t i;
+static void loopProcessCommands() {
+    struct curl_data* ctrl = loop.pending;
 
-    for (i = 0; i < len; i++) {
-        ch = *data;
+    loop.pending = NULL;
 
-        h = h * 31 + TOLOWER(ch);
+    while (ctrl != NULL) {
+        struct curl_data* next = ctrl->nextPending;
 
-        data++;
-    }
+        uint32_t commands = ctrl->commands;
 
-    return h;
-}
+        ctrl->commands = 0;
+        ctrl->nextPending = NULL;
+        ctrl->state &= ~STATE_QUEUED;
 
-static inline bool hashKeyCompare(void* a, void* b) {
-    const unsigned char *p1 = (const unsigned char *) a;
-    const unsigned char *p2 = (const unsigned char *) b;
+        LOG("Processing commands %u, state is %u", commands, ctrl->state);
 
-    int result;
+        if (commands & CMD_DETACH) {
+            if (ctrl->state & STATE_ATTACHED) {
+                curl_multi_remove_handle(loop.multi, ctrl->curl);
 
-    if (p1 == p2)
-        return true;
+                loopUnlink(ctrl);
 
-    while ((result = (TOLOWER(*p1) - TOLOWER(*p2++)) == 0))
-        if (*p1++ == '\0')
-            break;
+                SET_DETACHED(ctrl);
+            }
 
-    return result == 0;
-}
+            if (ctrl->state & STATE_ASYNC) {
+                // the request was abandoned, no more callbacks
+                ctrl->state &= ~STATE_ASYNC;
 
-JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_nativeCreate(JNIEnv *env, jclass type, jint flags) {
-    struct curl_data* ctrl = memalign(64u, sizeof(*ctrl));
+                (*loop.env)->DeleteGlobalRef(loop.env, ctrl->asyncRef);
 
-    void **headerPairs = malloc(HEADER_BUF_SIZE_DEFAULT * sizeof(char*) * 2);
+                ctrl->asyncRef = NULL;
+            }
 
-    Hashmap* headers = hashmapCreate(HEADER_BUF_SIZE_DEFAULT, &hashCalc, &hashKeyCompare);
+            loopWake(ctrl);
+        } else if (ctrl->cancelled) {
+            // tear down the transfer, closing it's connection, and ignore everything else
+            if (ctrl->state & STATE_ATTACHED) {
+                curl_multi_remove_handle(loop.multi, ctrl->curl);
 
-    CURL* curl = curl_easy_init();
-    CURLM* multi = curl_multi_init();
+                loopUnlink(ctrl);
 
-    if (ctrl == NULL || headerPairs == NULL || headers == NULL || curl == NULL || multi == NULL) {
-        oomThrow(env);
-        return 0;
-    }
-
-    memset(ctrl, 0, sizeof(struct curl_data));
+                SET_DETACHED(ctrl);
+            }
 
-    // we are managing our own timeouts
-    curl_easy_setopt(curl, CURLOPT_CONNECTTIMEOUT_MS, LONG_MAX);
+            loopTouch(ctrl);
+        } else {
+            if (commands & CMD_ATTACH && !(ctrl->state & STATE_ATTACHED)) {
+                CURLMcode result = curl_multi_add_handle(loop.multi, ctrl->curl);
 
-    curl_easy_setopt(curl, CURLOPT_HTTP_VERSION, CURL_HTTP_VERSION_2TLS);
+                if (likely(result == CURLM_OK)) {
+                    loopLink(ctrl);
 
-    curl_easy_setopt(curl, CURLOPT_SSL_VERIFYPEER, 0L);
-    curl_easy_setopt(curl, CURLOPT_PROXY_SSL_VERIFYPEER, 0L);
-    curl_easy_setopt(curl, CURLOPT_SSL_VERIFYHOST, 0L);
-    curl_easy_setopt(curl, CURLOPT_PROXY_SSL_VERIFYHOST, 0L);
-    curl_easy_setopt(curl, CURLOPT_SSL_OPTIONS, CURLSSLOPT_ALLOW_BEAST | CURLSSLOPT_NO_REVOKE);
+                    SET_ATTACHED(ctrl);
+                } else {
+                    ctrl->multiResult = result;
+                }
+            }
 
-    if (flags & FLAG_DEBUG) {
-        curl_easy_setopt(curl, CURLOPT_VERBOSE, 1L);
-        curl_easy_setopt(curl, CURLOPT_DEBUGFUNCTION, &logcat_tracer);
-    }
+            if (ctrl->state & STATE_ATTACHED) {
+                CURLcode result = CURLE_OK;
 
-    if (flags & FLAG_RAW_RESPONSE) {
-        curl_easy_setopt(curl, CURLOPT_HTTP_TRANSFER_DECODING, 0L);
-        curl_easy_setopt(curl, CURLOPT_HTTP_CONTENT_DECODING, 0L);
-    }
+                if (commands & CMD_RECV_CONT) {
+                    SET_RECV_UNPAUSED(ctrl);
 
-    curl_easy_setopt(curl, CURLOPT_IPRESOLVE, (flags & FLAG_USE_IPV6) ? CURL_IPRESOLVE_WHATEVER : CURL_IPRESOLVE_V4);
-    curl_easy_setopt(curl, CURLOPT_TRANSFER_ENCODING, (flags & FLAG_REQUEST_COMPRESSION) ? 1L : 0L);
-    curl_easy_setopt(curl, CURLOPT_TCP_NODELAY, (flags & FLAG_TCP_NODELAY) ? 1L : 0L);
-    curl_easy_setopt(curl, CURLOPT_KEEP_SENDING_ON_ERROR, (flags & FLAG_SEND_AFTER_ERROR) ? 1L : 0L);
-    curl_easy_setopt(curl, CURLOPT_SSL_FALSESTART, (flags & FLAG_TLS_FALSE_START) ? 1L : 0L);
-    curl_easy_setopt(curl, CURLOPT_TCP_FASTOPEN, (flags & FLAG_TCP_FAST_OPEN) ? 1L : 0L);
-    curl_easy_setopt(curl, CURLOPT_TCP_KEEPALIVE, (flags & FLAG_TCP_KEEP_ALIVE) ? 1L : 0L);
+                    metricIncrement(METRIC_RECV_RESUMES);
 
-    curl_easy_setopt(curl, CURLOPT_NETRC, CURL_NETRC_IGNORED);
-    curl_easy_setopt(curl, CURLOPT_SEEKFUNCTION, &seek_callback);
-    curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, &write_callback);
-    curl_easy_setopt(curl, CURLOPT_READFUNCTION, &read_callback);
-    curl_easy_setopt(curl, CURLOPT_OPENSOCKETFUNCTION, &opensocket_callback);
-    curl_easy_setopt(curl, CURLOPT_HEADERFUNCTION, &header_callback);
-    curl_easy_setopt(curl, CURLOPT_WRITEDATA, ctrl);
-    curl_easy_setopt(curl, CURLOPT_READDATA, ctrl);
-    curl_easy_setopt(curl, CURLOPT_HEADERDATA, ctrl);
-    curl_easy_setopt(curl, CURLOPT_NOSIGNAL, 1L);
-    curl_easy_setopt(curl, CURLOPT_PATH_AS_IS, 1L);
-    curl_easy_setopt(curl, CURLOPT_SUPPRESS_CONNECT_HEADERS, 1L);
-    curl_easy_setopt(curl, CURLOPT_ERRORBUFFER, ctrl->errorBuffer);
+                    result = curl_easy_pause(ctrl->curl, CURLPAUSE_RECV_CONT);
+                }
 
-    ctrl->curl = curl;
-    ctrl->multi = multi;
+                if (commands & CMD_SEND_CONT && result == CURLE_OK) {
+                    SET_SEND_UNPAUSED(ctrl);
 
-    ctrl->headers = headers;
-    ctrl->headerPairs = headerPairs;
+                    metricIncrement(METRIC_SEND_RESUMES);
 
-    ctrl->headerBufSize = HEADER_BUF_SIZE_DEFAULT;
+                    result = curl_easy_pause(ctrl->curl, CURLPAUSE_SEND_CONT);
+                }
 
-    return (jlong) (intptr_t) ctrl;
-}
+                if (result != CURLE_OK) {
+                    ctrl->result = result;
+                }
+            }
 
-JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_reset(JNIEnv *env, jclass type, jlong curlPtr) {
-    struct curl_data* ctrl = (struct curl_data *) (intptr_t) curlPtr;
+            loopTouch(ctrl);
+        }
 
-    if (!ACQUIRE(ctrl->busy)) {
-        throwThreadingException(env);
-        return;
+        ctrl = next;
     }
+}
 
-    if (ctrl->state & STATE_ATTACHED) {
-        curl_multi_remove_handle(ctrl->multi, ctrl->curl);
-    }
+static inline jlong sizeInfo(CURL* curl, CURLINFO info, CURLINFO legacyInfo) {
+#if LIBCURL_VERSION_NUM >= 0x073d00
+    curl_off_t bytes = 0;
 
-    ctrl->maxHeaderLength = 0;
-    ctrl->uploadedCount = 0;
-    ctrl->state = 0;
-    ctrl->readOverflow = 0;
+    curl_easy_getinfo(curl, info, &bytes);
 
-    releaseHeaders(ctrl);
+    return (jlong) bytes;
+#else
+    double bytes = 0;
 
-    hashmapClear(ctrl->headers);
+    curl_easy_getinfo(curl, legacyInfo, &bytes);
 
-    RELEASE(ctrl->busy);
+    return (jlong) bytes;
+#endif
 }
 
-static void asciiDecode(JNIEnv* env, jstring str, char* dest, jint length) {
-    const jchar* chars = (*env) -> GetStringCritical(env, str, NULL);
+// update process-wide metrics with results of finished transfer
+static void countTransfer(CURL* curl, bool succeeded) {
+    long requestSize = 0, headerSize = 0, connects = 0;
 
-    for (int i = 0; i < length; ++i) {
-        dest[i] = (unsigned char) chars[i];
-    }
+    curl_easy_getinfo(curl, CURLINFO_REQUEST_SIZE, &requestSize);
+    curl_easy_getinfo(curl, CURLINFO_HEADER_SIZE, &headerSize);
 
-    (*env) -> ReleaseStringCritical(env, str, chars);
+    metricAdd(METRIC_BYTES_SENT, requestSize + sizeInfo(curl, CURLINFO_SIZE_UPLOAD_T, CURLINFO_SIZE_UPLOAD));
+    metricAdd(METRIC_BYTES_RECEIVED, headerSize + sizeInfo(curl, CURLINFO_SIZE_DOWNLOAD_T, CURLINFO_SIZE_DOWNLOAD));
+
+    if (succeeded) {
+        curl_easy_getinfo(curl, CURLINFO_NUM_CONNECTS, &connects);
+
+        if (connects == 0) {
+            metricIncrement(METRIC_CONNECTIONS_REUSED);
+        }
+    }
 }
 
-static bool checkResult(struct curl_data* handle) {
-    int completed = 0;
-    int remaining = 1;
+static void loopCheckResults() {
+    int remaining;
 
-    while(remaining) {
-        CURLMsg* msg = curl_multi_info_read(handle->multi, &remaining);
+    CURLMsg* msg;
 
-        if (msg == NULL || msg->msg != CURLMSG_DONE) {
-            return false;
+    while ((msg = curl_multi_info_read(loop.multi, &remaining)) != NULL) {
+        if (msg->msg != CURLMSG_DONE) {
+            continue;
         }
 
+        struct curl_data* ctrl = NULL;
+
+        curl_easy_getinfo(msg->easy_handle, CURLINFO_PRIVATE, &ctrl);
+
         LOG("curl_multi_info_read returned %d %d", (int) msg->msg, msg->data.result);
 
+        SET_TRANSFER_DONE(ctrl);
+
+        loopTouch(ctrl);
 
         switch (msg->data.result) {
             case CURLE_ABORTED_BY_CALLBACK:
+                // stopped by one of our callbacks, the transfer is incomplete
+                countTransfer(msg->easy_handle, false);
+
+                if (ctrl->uploadError != 0) {
+                    // the upload source has failed, let handleEasyError explain why
+                    ctrl->result = msg->data.result;
+                }
+                break;
             case CURLE_OK:
-                ++completed;
-                continue;
+                countTransfer(msg->easy_handle, true);
+                break;
             default:
-                handleEasyError(handle, msg->data.result);
-                return true;
+                countTransfer(msg->easy_handle, false);
+
+                ctrl->result = msg->data.result;
         }
     }
+}
 
-    LOG("Events consumed");
+// the multi handle is broken, report that to everyone
+static __attribute__ ((noinline, cold)) void loopFailAll(CURLMcode multiResult) {
+    for (struct curl_data* ctrl = loop.attached; ctrl != NULL; ctrl = ctrl->nextAttached) {
+        ctrl->multiResult = multiResult;
 
-    return completed != 0;
+        loopTouch(ctrl);
+    }
 }
 
-static bool curlPerform(struct curl_data* ctrl) {
-    int timeout = ctrl->headerPairCount == 0 ? ctrl->connTimeout : ctrl->readTimeout;
-
-    struct timespec timeoutTimestamp, currentTimestamp;
+// fail the asynchronous requests, that took too long (the synchronous ones are timed by their own threads)
+static void loopCheckTimeouts(int64_t now) {
+    for (struct curl_data* ctrl = loop.attached; ctrl != NULL; ctrl = ctrl->nextAttached) {
+        if (!(ctrl->state & STATE_ASYNC) || ctrl->state & STATE_TRANSFER_DONE || hasFailure(ctrl)) {
+            continue;
+        }
 
-    clock_gettime(CLOCK_MONOTONIC, &timeoutTimestamp);
+        int64_t limit = ctrl->headerPairCount == 0 ? ctrl->connTimeout : ctrl->readTimeout;
 
-    int fdEvents = 0;
+        if (now - ctrl->lastActivity >= limit) {
+            ctrl->result = CURLE_OPERATION_TIMEDOUT;
 
-    do {
-        if (*ctrl->interrupted) {
-            return false;
+            loopTouch(ctrl);
         }
+    }
+}
 
-        int running;
+static bool asyncHeadersReady(struct curl_data* ctrl) {
+    uint32_t state = ctrl->state;
 
-        LOG("Invoking perform()");
+    if (state & STATE_HEADERS_DELIVERED || ctrl->headerPairCount == 0) {
+        return false;
+    }
 
-        CURLMcode result = curl_multi_perform(ctrl->multi, &running);
+    if (recvBuffered(ctrl) != 0 || state & STATE_TRANSFER_DONE) {
+        return true;
+    }
 
-        if (unlikely(result)) {
-            handleMultiError(ctrl, result);
-            return true;
-        }
+    return state & STATE_SEEN_HEADER_END && (!(state & STATE_HANDLE_REDIRECT) || !headerTableGet(&ctrl->headers, "Location", 8));
+}
 
-        if (checkResult(ctrl)) {
-            LOG("Has completed connections, bailing");
-            return true;
-        }
+// Examine the handles, touched since the last iteration: wake up threads, that wait for them, and
+// pick asynchronous requests, that have something to report (detaching the finished ones)
+static struct curl_data* loopCollectReady() {
+    struct curl_data* ready = NULL;
 
-        if ((ctrl->state & STATE_NEED_INPUT && ctrl->state & STATE_RECV_PAUSED) || (ctrl->state & STATE_NEED_OUTPUT
-                 && (ctrl->state & STATE_SEND_PAUSED || ctrl->state & STATE_RECV_PAUSED && ctrl->state & STATE_DONE_SENDING))) {
-            // nothing to do for now
-            LOG("Bailing, state is: %u", ctrl->state);
-            return false;
-        } else if (!(ctrl->state & STATE_NEED_OUTPUT) && !(ctrl->state & STATE_NEED_INPUT)
-                   && (ctrl->state & STATE_SEND_PAUSED || ctrl->state & STATE_RECV_PAUSED
-                       || (ctrl->state & STATE_SEEN_HEADER_END && (!(ctrl->state & STATE_HANDLE_REDIRECT) || !hashmapGet(ctrl->headers, "Location"))))) {
-            LOG("state is: %u, early headers comsumed", ctrl->state);
-            return false;
-        } else {
-            LOG("state is: %u", ctrl->state);
-        }
+    struct curl_data* ctrl = loop.dirty;
 
-        if (running == 0) {
-            LOG("No running connections, bailing");
-            return true;
-        }
+    loop.dirty = NULL;
 
-        if (*ctrl->interrupted) {
-            return false;
-        }
+    while (ctrl != NULL) {
+        struct curl_data* next = ctrl->nextDirty;
 
-        long waitTime;
-        curl_multi_timeout(ctrl->multi, &waitTime);
+        ctrl->nextDirty = NULL;
+        ctrl->state &= ~STATE_DIRTY;
 
-        if (timeout < waitTime) {
-            waitTime = timeout;
+        if (!(ctrl->state & STATE_ASYNC)) {
+            if (ctrl->state & STATE_WAITING && isReady(ctrl)) {
+                loopWake(ctrl);
+            }
+
+            ctrl = next;
+            continue;
         }
 
-        LOG("Timeout is %d, waiting for %ld", timeout, waitTime);
+        uint32_t events = 0;
 
-        if (waitTime > 0) {
-            CURLMcode waitResult = curl_multi_wait(ctrl->multi, NULL, 0, waitTime, &fdEvents);
+        if (!hasFailure(ctrl)) {
+            if (asyncHeadersReady(ctrl)) {
+                events |= ASYNC_HEADERS;
 
-            if (unlikely(waitResult)) {
-                handleMultiError(ctrl, waitResult);
-                return true;
+                ctrl->state |= STATE_HEADERS_DELIVERED;
             }
-        }
 
-        LOG("Sockets with events: %d", fdEvents);
+            if (recvBuffered(ctrl) != 0) {
+                events |= ASYNC_DATA;
+            }
+        }
 
-        if (fdEvents) {
-            timeout = ctrl->headerPairCount == 0 ? ctrl->connTimeout : ctrl->readTimeout;
-        } else {
-            clock_gettime(CLOCK_MONOTONIC, &currentTimestamp);
+        ctrl->readyRef = ctrl->asyncRef;
 
-            timeout -= ((currentTimestamp.tv_sec - timeoutTimestamp.tv_sec) * 1000);
+        // the finished request stays asynchronous, until all of it's data fits into a single onData call
+        if (hasFailure(ctrl) || (ctrl->state & STATE_TRANSFER_DONE && recvContiguous(ctrl) == recvBuffered(ctrl))) {
+            events |= ASYNC_DONE;
 
-            int diff_nsec = currentTimestamp.tv_nsec - timeoutTimestamp.tv_nsec;
+            if (ctrl->state & STATE_ATTACHED) {
+                curl_multi_remove_handle(loop.multi, ctrl->curl);
 
-            if (diff_nsec < 0) {
-                timeout += 1000;
-                timeout -= ((diff_nsec + 1000000000) / 1000000);
-            }
+                loopUnlink(ctrl);
 
-            if (timeout <= 0) {
-                LOG("Remaining time is %d, bailing", timeout);
-                throwTimeout(ctrl->env, ctrl->headerPairCount);
-                return true;
+                SET_DETACHED(ctrl);
             }
 
-            timeoutTimestamp = currentTimestamp;
+            // the reference is released after delivering the result
+            ctrl->state &= ~STATE_ASYNC;
+            ctrl->asyncRef = NULL;
         }
-    } while (true);
-}
-
-#define HTTP_TYPE_GET 0
-#define HTTP_TYPE_POST 1
-#define HTTP_TYPE_PUT 2
-#define HTTP_TYPE_HEAD 3
-#define HTTP_TYPE_CUSTOM 4
 
-JNIEXPORT jcharArray JNICALL Java_net_sf_chttpc_Curl_nativeConfigure(JNIEnv *env, jclass type,
-                                                               jlong curlPtr,
-                                                               jlong i10nPtr,
-                                                               jlong fixedLength,
-                                                               jcharArray url,
-                                                               jstring method,
-                                                               jstring proxy,
-                                                               jstring dns,
-                                                               jstring ifName,
-                                                               jint urlLength,
-                                                               jint readTimeout,
-                                                               jint connTimeout,
-                                                               jint proxyType,
-                                                               jint reqType,
-                                                               jint chunkLength,
-                                                               jboolean followRedirects,
-                                                               jboolean doInput,
-                                                               jboolean doOutput) {
-    LOG("++++++++nativeConfigure");
+        if (events) {
+            ctrl->asyncEvents = events;
+            ctrl->nextReady = ready;
 
-    struct curl_data* ctrl = (struct curl_data *) (intptr_t) curlPtr;
+            ready = ctrl;
+        }
 
-    if (!ACQUIRE(ctrl->busy)) {
-        throwThreadingException(env);
-        return NULL;
+        ctrl = next;
     }
 
-    ctrl->env = env;
-    ctrl->countToRead = 0;
-    ctrl->countToWrite = 0;
-    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
-    ctrl->errorBuffer[0] = 0;
-
-    CURL* curl = ctrl->curl;
+    return ready;
+}
 
-    jchar* urlStr = (*env) -> GetPrimitiveArrayCritical(env, url, NULL);
-    char* urlBuffer = malloc((size_t) (urlLength + 1));
-    if (unlikely(urlBuffer == NULL)) {
-        oomThrow(env);
-        goto whoops;
+static bool callbackFailed(JNIEnv* env) {
+    if ((*env)->ExceptionCheck(env) == JNI_FALSE) {
+        return false;
     }
 
-    int i;
-    for (i = 0; i < urlLength; ++i) {
-        urlBuffer[i] = (unsigned char) urlStr[i];
-    }
-    urlBuffer[i] = '\0';
+    // there is nobody to catch it on this thread
+    (*env)->ExceptionDescribe(env);
+    (*env)->ExceptionClear(env);
 
-    curl_easy_setopt(curl, CURLOPT_URL, urlBuffer);
+    return true;
+}
 
-    (*env) -> ReleasePrimitiveArrayCritical(env, url, urlStr, JNI_ABORT);
+// Invoke Java callbacks of asynchronous requests. Must be called without loop lock, so that
+// callbacks can examine response headers and start new requests.
+static void loopDeliver(JNIEnv* env, struct curl_data* ready) {
+    while (ready != NULL) {
+        struct curl_data* ctrl = ready;
 
-    if (followRedirects == JNI_TRUE) {
-        SET_HANDLE_REDIRECT(ctrl);
+        ready = ctrl->nextReady;
 
-        curl_easy_setopt(curl, CURLOPT_FOLLOWLOCATION, 1L);
-    } else {
-        SET_DONT_HANDLE_REDIRECT(ctrl);
+        ctrl->nextReady = NULL;
 
-        curl_easy_setopt(curl, CURLOPT_FOLLOWLOCATION, 0L);
-    }
+        uint32_t events = ctrl->asyncEvents;
 
-    if (proxy != NULL) {
-        const char* proxyStr = (*env) -> GetStringUTFChars(env, proxy, NULL);
+        jobject target = ctrl->readyRef;
 
-        switch (proxyType) {
-            case 2:
-                curl_easy_setopt(curl, CURLOPT_PROXYTYPE, CURLPROXY_HTTPS);
-                // fall-through
-            case 1:
-                curl_easy_setopt(curl, CURLOPT_PROXY, proxyStr);
-                break;
-            case 3:
-                curl_easy_setopt(curl, CURLOPT_PRE_PROXY, proxyStr);
-                break;
-            case 4:
-                curl_easy_setopt(curl, CURLOPT_PROXYTYPE, CURLPROXY_SOCKS5_HOSTNAME);
+        if ((*env)->PushLocalFrame(env, 8) != JNI_OK) {
+            (*env)->ExceptionClear(env);
+            continue;
+        }
 
-                curl_easy_setopt(curl, CURLOPT_PROXY, proxyStr);
+        bool proceed = true;
 
-                break;
-            default:
-                break;
+        // only the contiguous part, the rest is delivered during next iteration
+        uint32_t start = ctrl->recvConsumed & (ctrl->recvCapacity - 1);
+        uint32_t chunk = recvContiguous(ctrl);
+
+        if (events & ASYNC_HEADERS) {
+            proceed = (*env)->CallBooleanMethod(env, target, asyncHeadersCb) && !callbackFailed(env);
         }
 
-        (*env) -> ReleaseStringUTFChars(env, proxy, proxyStr);
-    } else {
-        // disable proxy, don't bother to read environment variables
-        curl_easy_setopt(curl, CURLOPT_PROXY, "");
-    }
+        if (proceed && events & ASYNC_DATA) {
+            proceed = (*env)->CallBooleanMethod(env, target, asyncDataCb, ctrl->asyncBuffer, (jint) start, (jint) chunk)
+                      && !callbackFailed(env);
+        }
 
-    // If doOutput is set, then treat requests as PUT.
-    // Otherwise if asked for HEAD and doInput is not set, treat them as HEAD.
-    // Otherwise treat them  as GET.
-    // Treating all requests with doInput == false as HEAD is very bad idea,
-    // because it will result in botched retries because of Keep-Alive
-    // Never treat requests as POST, because POST handling in curl
-    // is kind of hot garbage
-    if (doOutput) {
-        curl_easy_setopt(curl, CURLOPT_UPLOAD, 1L);
-    } else if (reqType == HTTP_TYPE_HEAD && !doInput) {
-        curl_easy_setopt(curl, CURLOPT_NOBODY, 1L);
-    } else {
-        curl_easy_setopt(curl, CURLOPT_HTTPGET, 1L);
-    }
+        if (events & ASYNC_DONE) {
+            jthrowable error = NULL;
 
-    switch (reqType) {
-        case HTTP_TYPE_GET:
-            curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "GET");
-            break;
-        case HTTP_TYPE_PUT:
-            curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "PUT");
-            break;
-        case HTTP_TYPE_HEAD:
-            curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "HEAD");
-            break;
-        case HTTP_TYPE_POST:
-            curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "POST");
-            break;
-        default: {
-            jint strLength = (*env)->GetStringLength(env, method);
+            if (hasFailure(ctrl)) {
+                ctrl->env = env;
 
-            char reqMethodChars[strLength + 1];
+                reportFailure(ctrl);
 
-            asciiDecode(env, method, reqMethodChars, strLength);
+                error = (*env)->ExceptionOccurred(env);
 
-            reqMethodChars[strLength] = '\0';
+                (*env)->ExceptionClear(env);
+            }
 
-            curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, reqMethodChars);
+            (*env)->CallVoidMethod(env, target, asyncDoneCb, error);
 
-            break;
-        }
-    }
+            callbackFailed(env);
 
-    if (doOutput && fixedLength) {
-        SET_DO_OUTPUT(ctrl);
+            (*env)->PopLocalFrame(env, NULL);
 
-        curl_easy_setopt(curl, CURLOPT_INFILESIZE_LARGE, (curl_off_t) fixedLength);
+            // after this the handle may be disposed by another thread, do not touch it
+            (*env)->DeleteGlobalRef(env, target);
 
-        ctrl->uploadGoal = (uint64_t) fixedLength;
-    } else {
-        SET_DO_NO_OUTPUT(ctrl);
+            continue;
+        }
 
-        curl_easy_setopt(curl, CURLOPT_INFILESIZE_LARGE, (curl_off_t) -1);
+        (*env)->PopLocalFrame(env, NULL);
 
-        ctrl->uploadGoal = 0;
-    }
+        pthread_mutex_lock(&loop.lock);
 
-    curl_easy_setopt(curl, CURLOPT_HTTPHEADER, ctrl->outHeaders);
+        if (proceed) {
+            if (events & ASYNC_DATA) {
+                ctrl->recvConsumed += chunk;
+            }
 
-    if (dns != NULL) {
-        jint strLength = (*env) -> GetStringLength(env, dns);
+            markActivity(ctrl);
 
-        char dnsChars[strLength + 1];
+            if (ctrl->state & STATE_RECV_PAUSED && ctrl->state & STATE_ATTACHED) {
+                SET_RECV_UNPAUSED(ctrl);
 
-        asciiDecode(env, dns, dnsChars, strLength);
+                metricIncrement(METRIC_RECV_RESUMES);
 
-        dnsChars[strLength] = '\0';
+                CURLcode result = curl_easy_pause(ctrl->curl, CURLPAUSE_RECV_CONT);
 
-        curl_easy_setopt(curl, CURLOPT_DNS_SERVERS, dnsChars);
-    } else {
-        curl_easy_setopt(curl, CURLOPT_DNS_SERVERS, NULL);
-    }
+                if (result != CURLE_OK) {
+                    ctrl->result = result;
+                }
+            }
+        } else {
+            // the callback has thrown or asked to stop, the request is finished during next iteration
+            ctrl->result = CURLE_ABORTED_BY_CALLBACK;
+        }
 
-    if (ifName != NULL) {
-        jint strLength = (*env) -> GetStringLength(env, ifName);
+        // the rest of data (or the failure) is delivered during next iteration
+        loopTouch(ctrl);
 
-        size_t bufferLength = 4 + 2 * (size_t) strLength;
+        pthread_mutex_unlock(&loop.lock);
+    }
+}
 
-        char* tempStr = calloc(bufferLength, sizeof(char));
+// keep the epoll set in sync with sockets, curl is interested in
+static int socket_callback(CURL* easy, curl_socket_t s, int what, void* userp, void* socketp) {
+    if (what == CURL_POLL_REMOVE) {
+        epoll_ctl(loop.epollFd, EPOLL_CTL_DEL, s, NULL);
 
-        strncpy(tempStr, "if!", 3);
+        return 0;
+    }
 
-        (*env) -> GetStringUTFRegion(env, ifName, 0, strLength, tempStr + 3);
+    struct epoll_event event = {
+        .events = (what & CURL_POLL_IN ? EPOLLIN : 0u) | (what & CURL_POLL_OUT ? EPOLLOUT : 0u),
+        .data.fd = s,
+    };
 
-        curl_easy_setopt(curl, CURLOPT_INTERFACE, tempStr);
+    // curl remembers for us, whether the socket has already been added
+    if (socketp != NULL) {
+        epoll_ctl(loop.epollFd, EPOLL_CTL_MOD, s, &event);
 
-        free(tempStr);
-    } else {
-        curl_easy_setopt(curl, CURLOPT_INTERFACE, NULL);
+        return 0;
     }
 
-    ctrl->readTimeout = readTimeout <= 0 ? INT32_MAX : readTimeout;
-    ctrl->connTimeout = connTimeout <= 0 ? INT32_MAX : connTimeout;
-
-    if (doInput) {
-        SET_DO_INPUT(ctrl);
+    if (epoll_ctl(loop.epollFd, EPOLL_CTL_ADD, s, &event) == -1) {
+        if (errno != EEXIST) {
+            LOG("Failed to watch socket %d: %s", s, strerror(errno));
 
-        curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, &write_callback);
-    } else {
-        SET_DO_NO_INPUT(ctrl);
+            return -1;
+        }
 
-        curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, doOutput ? &skip_receive_callback : &abort_receive_callback);
+        epoll_ctl(loop.epollFd, EPOLL_CTL_MOD, s, &event);
     }
 
-    if (doOutput) {
-        curl_easy_setopt(curl, CURLOPT_READFUNCTION, &read_callback);
-    }
+    curl_multi_assign(loop.multi, s, &loop);
+
+    return 0;
+}
 
-    if (!(ctrl->state & STATE_ATTACHED)) {
-        curl_multi_add_handle(ctrl->multi, curl);
+// arm the timerfd to go off, when curl wants to handle it's timeouts
+static int timer_callback(CURLM* multi, long timeoutMs, void* userp) {
+    struct itimerspec spec = { 0 };
 
-        SET_ATTACHED(ctrl);
+    if (timeoutMs >= 0) {
+        // zero value disarms the timer, so use smallest possible delay instead
+        spec.it_value.tv_sec = timeoutMs / 1000;
+        spec.it_value.tv_nsec = timeoutMs % 1000 * 1000000 + (timeoutMs == 0);
     }
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, 0);
-        goto enough;
-    }
+    sys_timerfd_settime(loop.timerFd, 0, &spec, NULL);
+
+    return 0;
+}
 
-    LOG("before 'perform'");
+// let curl handle the events, reported by epoll
+static CURLMcode loopDispatch(struct epoll_event* events, int count) {
+    CURLMcode result = CURLM_OK;
 
     int running;
-    const CURLMcode connectResult = curl_multi_perform(ctrl->multi, &running);
 
-    LOG("after 'perform'");
+    for (int i = 0; i < count; ++i) {
+        int fd = events[i].data.fd;
 
-    switch (connectResult) {
-        case CURLM_OK:
+        uint64_t expirations;
+
+        if (fd == loop.wakeupFd) {
+            // the commands are processed at the start of each iteration
+            TEMP_FAILURE_RETRY(read(loop.wakeupFd, &expirations, sizeof(expirations)));
+
+            continue;
+        }
+
+        CURLMcode actionResult;
+
+        if (fd == loop.timerFd) {
+            TEMP_FAILURE_RETRY(read(loop.timerFd, &expirations, sizeof(expirations)));
+
+            actionResult = curl_multi_socket_action(loop.multi, CURL_SOCKET_TIMEOUT, 0, &running);
+        } else {
+            uint32_t e = events[i].events;
+
+            int mask = (e & EPOLLIN ? CURL_CSELECT_IN : 0)
+                       | (e & EPOLLOUT ? CURL_CSELECT_OUT : 0)
+                       | (e & (EPOLLERR | EPOLLHUP) ? CURL_CSELECT_ERR : 0);
+
+            actionResult = curl_multi_socket_action(loop.multi, fd, mask, &running);
+        }
+
+        if (unlikely(actionResult != CURLM_OK)) {
+            result = actionResult;
+        }
+    }
+
+    return result;
+}
+
+static void* loopRun(void* unused) {
+    sigset_t signals;
+    sigfillset(&signals);
+    pthread_sigmask(SIG_BLOCK, &signals, NULL);
+
+    struct epoll_event events[LOOP_MAX_EVENTS];
+
+    int eventCount = 0;
+
+    JavaVMAttachArgs attachArgs = {
+        .version = JNI_VERSION_1_6,
+        .name = "chttpc-loop",
+        .group = NULL,
+    };
+
+    JNIEnv* env = NULL;
+
+    (*javaVm)->AttachCurrentThreadAsDaemon(javaVm, &env, &attachArgs);
+
+    pthread_mutex_lock(&loop.lock);
+
+    loop.env = env;
+
+    while (true) {
+        loopProcessCommands();
+
+        CURLMcode result = loopDispatch(events, eventCount);
+
+        loopCheckResults();
+
+        if (unlikely(result != CURLM_OK)) {
+            loopFailAll(result);
+        }
+
+        int64_t now = monotonicTime();
+
+        if (now - loop.lastSweep >= LOOP_MAX_WAIT) {
+            loop.lastSweep = now;
+
+            loopCheckTimeouts(now);
+        }
+
+        struct curl_data* ready = loopCollectReady();
+
+        bool delivered = ready != NULL;
+
+        if (delivered) {
+            pthread_mutex_unlock(&loop.lock);
+
+            loopDeliver(env, ready);
+
+            pthread_mutex_lock(&loop.lock);
+        }
+
+        // curl's own timeouts are handled via timerfd, here we only need to wake up for sweeps
+        int waitTime = loop.attached == NULL ? -1 : LOOP_MAX_WAIT;
+
+        if (loop.pending != NULL || loop.dirty != NULL || delivered) {
+            waitTime = 0;
+        }
+
+        pthread_mutex_unlock(&loop.lock);
+
+        eventCount = epoll_wait(loop.epollFd, events, LOOP_MAX_EVENTS, waitTime);
+
+        if (eventCount < 0) {
+            eventCount = 0;
+        }
+
+        pthread_mutex_lock(&loop.lock);
+    }
+
+    return NULL;
+}
+
+static bool loopWatch(int fd) {
+    struct epoll_event event = {
+        .events = EPOLLIN,
+        .data.fd = fd,
+    };
+
+    return epoll_ctl(loop.epollFd, EPOLL_CTL_ADD, fd, &event) == 0;
+}
+
+static bool loopStart() {
+    loop.multi = curl_multi_init();
+    if (loop.multi == NULL) {
+        return false;
+    }
+
+    // concurrent HTTP/2 requests to the same origin are sent as streams of single connection
+    curl_multi_setopt(loop.multi, CURLMOPT_PIPELINING, CURLPIPE_MULTIPLEX);
+
+    // only the sockets with pending events are processed, instead of polling every transfer
+    curl_multi_setopt(loop.multi, CURLMOPT_SOCKETFUNCTION, &socket_callback);
+    curl_multi_setopt(loop.multi, CURLMOPT_TIMERFUNCTION, &timer_callback);
+
+    loop.wakeupFd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    if (loop.wakeupFd == -1) {
+        return false;
+    }
+
+    loop.timerFd = sys_timerfd_create(CLOCK_MONOTONIC, TFD_NONBLOCK | TFD_CLOEXEC);
+    if (loop.timerFd == -1) {
+        return false;
+    }
+
+    loop.epollFd = epoll_create(LOOP_MAX_EVENTS);
+    if (loop.epollFd == -1) {
+        return false;
+    }
+
+    fcntl(loop.epollFd, F_SETFD, FD_CLOEXEC);
+
+    if (!loopWatch(loop.wakeupFd) || !loopWatch(loop.timerFd)) {
+        return false;
+    }
+
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+
+    int created = pthread_create(&loop.thread, &attr, &loopRun, NULL);
+
+    pthread_attr_destroy(&attr);
+
+    return created == 0;
+}
+
+// Queue commands for the event loop without waiting. Must be called with loop lock held.
+static void loopPost(struct curl_data* ctrl, uint32_t commands) {
+    ctrl->commands |= commands;
+
+    if (!(ctrl->state & STATE_QUEUED)) {
+        ctrl->state |= STATE_QUEUED;
+        ctrl->nextPending = loop.pending;
+        loop.pending = ctrl;
+    }
+}
+
+// Post commands to the event loop and park until it reports back or the timeout expires.
+// Must be called with loop lock held. Unbounded waits ignore both interruptions and timeouts.
+static int awaitLoop(struct curl_data* ctrl, uint32_t commands, bool bounded) {
+    if (commands) {
+        loopPost(ctrl, commands);
+    } else if (isReady(ctrl)) {
+        return AWAIT_READY;
+    }
+
+    SET_WAITING(ctrl);
+
+    markActivity(ctrl);
+
+    loopSignal();
+
+    while (ctrl->state & STATE_WAITING) {
+        struct kernel_timespec delay;
+        struct kernel_timespec* timeout = NULL;
+
+        if (bounded) {
+            if (*ctrl->interrupted) {
+                SET_NOT_WAITING(ctrl);
+                return AWAIT_INTERRUPTED;
+            }
+
+            int64_t limit = ctrl->headerPairCount == 0 ? ctrl->connTimeout : ctrl->readTimeout;
+
+            int64_t remaining = ctrl->lastActivity + limit - monotonicTime();
+
+            if (remaining <= 0) {
+                LOG("Remaining time is %lld, bailing", remaining);
+                SET_NOT_WAITING(ctrl);
+                return AWAIT_TIMEOUT;
+            }
+
+            delay.tv_sec = (long) (remaining / 1000);
+            delay.tv_nsec = (long) (remaining % 1000) * 1000000;
+
+            timeout = &delay;
+        }
+
+        int seq = ctrl->wakeSeq;
+
+        pthread_mutex_unlock(&loop.lock);
+
+        // returns early on signals, which is how Interruption reaches us
+        sys_futex((int*) &ctrl->wakeSeq, FUTEX_WAIT_PRIVATE, seq, timeout);
+
+        pthread_mutex_lock(&loop.lock);
+    }
+
+    return AWAIT_READY;
+}
+
+// Returns false if the handle is in use by the event loop, and the caller is the event loop
+// thread itself (e.g. a callback of asynchronous request), which can not wait for itself.
+static bool detach(struct curl_data* ctrl) {
+    bool detached = true;
+
+    pthread_mutex_lock(&loop.lock);
+
+    if (ctrl->state & (STATE_ATTACHED | STATE_QUEUED)) {
+        if (unlikely(pthread_equal(pthread_self(), loop.thread))) {
+            detached = false;
+        } else {
+            awaitLoop(ctrl, CMD_DETACH, false);
+        }
+    }
+
+    pthread_mutex_unlock(&loop.lock);
+
+    return detached;
+}
+
+static __attribute__ ((noinline, cold)) void throwLoopBusy(JNIEnv* env) {
+    throwOther(env, "The request is still in progress and can not be changed from the callback", ERROR_ILLEGAL_STATE);
+}
+
+static bool internStrings(JNIEnv *env) {
+    for (int i = ARRAY_SIZE(interned) - 1; i >= 0; --i) {
+        struct interned_string* str = &interned[i];
+
+        size_t length = strlen(str->text);
+
+        jstring local = (*env) -> NewStringUTF(env, str->text);
+        if (unlikely(local == NULL)) {
+            return false;
+        }
+
+        str->ref = (*env) -> NewGlobalRef(env, local);
+
+        (*env) -> DeleteLocalRef(env, local);
+
+        if (unlikely(str->ref == NULL)) {
+            return false;
+        }
+
+        str->next = internedByLength[length];
+
+        internedByLength[length] = (uint8_t) (i + 1);
+    }
+
+    return true;
+}
+
+// Returns a global reference to the interned copy of given string or NULL if there is none
+static inline jstring findInterned(const char* str, size_t len, bool name) {
+    if (len > INTERNED_MAX_LENGTH) {
+        return NULL;
+    }
+
+    for (uint8_t i = internedByLength[len]; i != 0; i = interned[i - 1].next) {
+        const struct interned_string* candidate = &interned[i - 1];
+
+        if (candidate->name != name) {
+            continue;
+        }
+
+        if (name ? !strncasecmp(candidate->text, str, len) : !memcmp(candidate->text, str, len)) {
+            return candidate->ref;
+        }
+    }
+
+    return NULL;
+}
+
+inline static jclass saveClassRef(const char* name, JNIEnv *env) {
+    jclass found = (*env) -> FindClass(env, name);
+
+    if (unlikely(found == NULL)) {
+        return NULL;
+    }
+
+    return (*env) -> NewGlobalRef(env, found);
+}
+
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
+    javaVm = vm;
+
+    curl_global_init(CURL_GLOBAL_ALL | CURL_GLOBAL_ACK_EINTR);
+
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_nativeInit(JNIEnv *env, jclass curlWrapper) {
+    void *handle = dlopen("libc.so", RTLD_LAZY);
+
+    if (handle) {
+        getprop = (system_property_get) dlsym(handle, "__system_property_get");
+    }
+
+    wrapper = (*env) -> NewGlobalRef(env, curlWrapper);
+    if (wrapper == NULL) {
+        return;
+    }
+
+    ioException = saveClassRef("java/io/IOException", env);
+    if (ioException == NULL) {
+        return;
+    }
+
+    javaString = saveClassRef("java/lang/String", env);
+    if (javaString == NULL) {
+        return;
+    }
+
+    if (!internStrings(env)) {
+        return;
+    }
+
+    threadingCb = (*env) -> GetStaticMethodID(env, curlWrapper, "throwException", "(Ljava/lang/String;II)V");
+    if (threadingCb == NULL) {
+        return;
+    }
+
+    jclass httpClass = (*env) -> FindClass(env, "net/sf/chttpc/CurlHttp");
+    if (httpClass == NULL) {
+        return;
+    }
+
+    asyncHeadersCb = (*env) -> GetMethodID(env, httpClass, "onAsyncHeaders", "()Z");
+    if (asyncHeadersCb == NULL) {
+        return;
+    }
+
+    asyncDataCb = (*env) -> GetMethodID(env, httpClass, "onAsyncData", "(Ljava/nio/ByteBuffer;II)Z");
+    if (asyncDataCb == NULL) {
+        return;
+    }
+
+    asyncDoneCb = (*env) -> GetMethodID(env, httpClass, "onAsyncDone", "(Ljava/lang/Throwable;)V");
+    if (asyncDoneCb == NULL) {
+        return;
+    }
+
+    if (!loopStart()) {
+        (*env) -> ThrowNew(env, ioException, "Failed to start curl event loop");
+    }
+}
+
+static int logcat_tracer(CURL *handle, curl_infotype type, char *data, size_t size, void *userp)
+{
+    char* format;
+
+    switch (type) {
+        case CURLINFO_HEADER_IN:
+        case CURLINFO_HEADER_OUT:
+        case CURLINFO_DATA_OUT:
+        case CURLINFO_DATA_IN:
+        case CURLINFO_TEXT:
+            __android_log_print(ANDROID_LOG_DEBUG, "Curl", "%.*s", size, data);
             break;
         default:
-            handleMultiError(ctrl, connectResult);
-            goto enough;
+            break;
+    }
+
+    return 0;
+}
+
+static void share_lock(CURL *handle, curl_lock_data data, curl_lock_access access, void *userptr) {
+    struct curl_share* share = (struct curl_share*) userptr;
+
+    pthread_mutex_lock(&share->locks[data]);
+}
+
+static void share_unlock(CURL *handle, curl_lock_data data, void *userptr) {
+    struct curl_share* share = (struct curl_share*) userptr;
+
+    pthread_mutex_unlock(&share->locks[data]);
+}
+
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_nativeCreateShare(JNIEnv *env, jclass type, jint maxConnections, jint maxTlsSessions) {
+    struct curl_share* share = calloc(1u, sizeof(struct curl_share));
+
+    CURLSH* sh = curl_share_init();
+
+    if (share == NULL || sh == NULL) {
+        free(share);
+
+        if (sh != NULL) {
+            curl_share_cleanup(sh);
+        }
+
+        oomThrow(env);
+        return 0;
+    }
+
+    for (int i = 0; i < ARRAY_SIZE(share->locks); ++i) {
+        pthread_mutex_init(&share->locks[i], NULL);
+    }
+
+    curl_share_setopt(sh, CURLSHOPT_LOCKFUNC, &share_lock);
+    curl_share_setopt(sh, CURLSHOPT_UNLOCKFUNC, &share_unlock);
+    curl_share_setopt(sh, CURLSHOPT_USERDATA, share);
+
+    CURLSHcode result = curl_share_setopt(sh, CURLSHOPT_SHARE, CURL_LOCK_DATA_CONNECT);
+
+    if (unlikely(result != CURLSHE_OK)) {
+        curl_share_cleanup(sh);
+
+        free(share);
+
+        throwOther(env, curl_share_strerror(result), ERROR_ILLEGAL_STATE);
+        return 0;
+    }
+
+    share->share = sh;
+    share->maxConnections = maxConnections;
+
+    tlsCacheInit(&share->tlsCache, (size_t) maxTlsSessions);
+
+    return (jlong) (intptr_t) share;
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_getTlsCacheStats(JNIEnv *env, jclass type, jlong sharePtr, jlongArray stats) {
+    struct curl_share* share = (struct curl_share*) (intptr_t) sharePtr;
+
+    jlong values[] = {
+            (jlong) share->tlsCache.hits,
+            (jlong) share->tlsCache.misses,
+            (jlong) share->tlsCache.evictions,
+            (jlong) share->tlsCache.size,
+            (jlong) share->tlsCache.generation,
+    };
+
+    jsize length = (*env)->GetArrayLength(env, stats);
+
+    (*env)->SetLongArrayRegion(env, stats, 0, length < ARRAY_SIZE(values) ? length : ARRAY_SIZE(values), values);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_net_sf_chttpc_Curl_exportTlsSessions(JNIEnv *env, jclass type, jlong sharePtr) {
+    struct curl_share* share = (struct curl_share*) (intptr_t) sharePtr;
+
+    size_t length = 0;
+
+    unsigned char* exported = tlsCacheExport(&share->tlsCache, &length);
+
+    if (exported == NULL) {
+        oomThrow(env);
+        return NULL;
+    }
+
+    jbyteArray result = (*env)->NewByteArray(env, (jsize) length);
+
+    if (result != NULL) {
+        (*env)->SetByteArrayRegion(env, result, 0, (jsize) length, (jbyte*) exported);
+    }
+
+    free(exported);
+
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_importTlsSessions(JNIEnv *env, jclass type, jlong sharePtr, jbyteArray data, jint length) {
+    struct curl_share* share = (struct curl_share*) (intptr_t) sharePtr;
+
+    jbyte* bytes = (*env)->GetByteArrayElements(env, data, NULL);
+
+    if (bytes == NULL) {
+        return -1;
+    }
+
+    int imported = tlsCacheImport(&share->tlsCache, (unsigned char*) bytes, (size_t) length);
+
+    (*env)->ReleaseByteArrayElements(env, data, bytes, JNI_ABORT);
+
+    return imported;
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_prefetch(JNIEnv *env, jclass type, jstring host, jstring dns, jboolean ipv6) {
+    jsize hostLength = (*env)->GetStringUTFLength(env, host);
+
+    if (hostLength == 0 || hostLength >= DNS_HOST_MAX) {
+        return;
+    }
+
+    char hostChars[DNS_HOST_MAX];
+
+    (*env)->GetStringUTFRegion(env, host, 0, (*env)->GetStringLength(env, host), hostChars);
+
+    hostChars[hostLength] = '\0';
+
+    for (int i = 0; i < hostLength; ++i) {
+        hostChars[i] = TOLOWER(hostChars[i]);
+    }
+
+    const char* dnsChars = dns == NULL ? NULL : (*env)->GetStringUTFChars(env, dns, NULL);
+
+    DnsAddress addrs[DNS_MAX_ADDRESSES];
+
+    dnsCacheResolve(hostChars, dnsChars, ipv6 == JNI_TRUE, NULL, NULL, addrs, ARRAY_SIZE(addrs));
+
+    if (dnsChars != NULL) {
+        (*env)->ReleaseStringUTFChars(env, dns, dnsChars);
+    }
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_flushDnsCache(JNIEnv *env, jclass type) {
+    dnsCacheFlush();
+}
+
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_nativeCreate(JNIEnv *env, jclass type, jint flags, jlong sharePtr) {
+    struct curl_data* ctrl = memalign(64u, sizeof(*ctrl));
+
+    void **headerPairs = malloc(HEADER_BUF_SIZE_DEFAULT * sizeof(char*) * 2);
+
+    char* recvBuffer = malloc(RECV_BUFFER_DEFAULT);
+    char* sendBuffer = malloc(SEND_BUFFER_DEFAULT);
+
+    CURL* curl = curl_easy_init();
+
+    if (ctrl == NULL || headerPairs == NULL || curl == NULL || recvBuffer == NULL || sendBuffer == NULL) {
+        oomThrow(env);
+        return 0;
+    }
+
+    memset(ctrl, 0, sizeof(struct curl_data));
+
+    if (!headerTableInit(&ctrl->headers, HEADER_BUF_SIZE_DEFAULT)) {
+        oomThrow(env);
+        return 0;
+    }
+
+    ctrl->uploadFd = -1;
+
+    // we are managing our own timeouts
+    curl_easy_setopt(curl, CURLOPT_CONNECTTIMEOUT_MS, LONG_MAX);
+
+    curl_easy_setopt(curl, CURLOPT_HTTP_VERSION, CURL_HTTP_VERSION_2TLS);
+
+    // wait for connection, that is being established, to find out if it can be multiplexed,
+    // instead of opening another one for each concurrent request
+    curl_easy_setopt(curl, CURLOPT_PIPEWAIT, 1L);
+
+    curl_easy_setopt(curl, CURLOPT_SSL_VERIFYPEER, 0L);
+    curl_easy_setopt(curl, CURLOPT_PROXY_SSL_VERIFYPEER, 0L);
+    curl_easy_setopt(curl, CURLOPT_SSL_VERIFYHOST, 0L);
+    curl_easy_setopt(curl, CURLOPT_PROXY_SSL_VERIFYHOST, 0L);
+    curl_easy_setopt(curl, CURLOPT_SSL_OPTIONS, CURLSSLOPT_ALLOW_BEAST | CURLSSLOPT_NO_REVOKE);
+
+    if (flags & FLAG_DEBUG) {
+        curl_easy_setopt(curl, CURLOPT_VERBOSE, 1L);
+        curl_easy_setopt(curl, CURLOPT_DEBUGFUNCTION, &logcat_tracer);
+    }
+
+    if (flags & FLAG_RAW_RESPONSE) {
+        curl_easy_setopt(curl, CURLOPT_HTTP_TRANSFER_DECODING, 0L);
+        curl_easy_setopt(curl, CURLOPT_HTTP_CONTENT_DECODING, 0L);
+    }
+
+    curl_easy_setopt(curl, CURLOPT_IPRESOLVE, (flags & FLAG_USE_IPV6) ? CURL_IPRESOLVE_WHATEVER : CURL_IPRESOLVE_V4);
+    curl_easy_setopt(curl, CURLOPT_TRANSFER_ENCODING, (flags & FLAG_REQUEST_COMPRESSION) ? 1L : 0L);
+    curl_easy_setopt(curl, CURLOPT_TCP_NODELAY, (flags & FLAG_TCP_NODELAY) ? 1L : 0L);
+    curl_easy_setopt(curl, CURLOPT_KEEP_SENDING_ON_ERROR, (flags & FLAG_SEND_AFTER_ERROR) ? 1L : 0L);
+    curl_easy_setopt(curl, CURLOPT_SSL_FALSESTART, (flags & FLAG_TLS_FALSE_START) ? 1L : 0L);
+    curl_easy_setopt(curl, CURLOPT_TCP_FASTOPEN, (flags & FLAG_TCP_FAST_OPEN) ? 1L : 0L);
+    curl_easy_setopt(curl, CURLOPT_TCP_KEEPALIVE, (flags & FLAG_TCP_KEEP_ALIVE) ? 1L : 0L);
+
+    curl_easy_setopt(curl, CURLOPT_NETRC, CURL_NETRC_IGNORED);
+    curl_easy_setopt(curl, CURLOPT_SEEKFUNCTION, &seek_callback);
+    curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, &write_callback);
+    curl_easy_setopt(curl, CURLOPT_READFUNCTION, &read_callback);
+    curl_easy_setopt(curl, CURLOPT_OPENSOCKETFUNCTION, &opensocket_callback);
+    curl_easy_setopt(curl, CURLOPT_CLOSESOCKETFUNCTION, &closesocket_callback);
+    curl_easy_setopt(curl, CURLOPT_HEADERFUNCTION, &header_callback);
+    curl_easy_setopt(curl, CURLOPT_WRITEDATA, ctrl);
+    curl_easy_setopt(curl, CURLOPT_READDATA, ctrl);
+    curl_easy_setopt(curl, CURLOPT_SEEKDATA, ctrl);
+    curl_easy_setopt(curl, CURLOPT_HEADERDATA, ctrl);
+    curl_easy_setopt(curl, CURLOPT_NOSIGNAL, 1L);
+    curl_easy_setopt(curl, CURLOPT_PATH_AS_IS, 1L);
+    curl_easy_setopt(curl, CURLOPT_SUPPRESS_CONNECT_HEADERS, 1L);
+    curl_easy_setopt(curl, CURLOPT_ERRORBUFFER, ctrl->errorBuffer);
+    curl_easy_setopt(curl, CURLOPT_PRIVATE, ctrl);
+
+    if (sharePtr != 0) {
+        struct curl_share* share = (struct curl_share*) (intptr_t) sharePtr;
+
+        // connections, kept alive by one handle, can be picked by any other handle of the share
+        curl_easy_setopt(curl, CURLOPT_SHARE, share->share);
+
+        if (share->maxConnections > 0) {
+            curl_easy_setopt(curl, CURLOPT_MAXCONNECTS, share->maxConnections);
+        }
+
+        // TLS sessions are kept in the share instead of curl's own cache, which can
+        // neither be sized nor inspected
+        curl_easy_setopt(curl, CURLOPT_SSL_SESSIONID_CACHE, 0L);
+        curl_easy_setopt(curl, CURLOPT_SSL_CTX_FUNCTION, &ssl_ctx_callback);
+        curl_easy_setopt(curl, CURLOPT_SSL_CTX_DATA, ctrl);
+
+        ctrl->share = share;
+    }
+
+    ctrl->curl = curl;
+    ctrl->flags = (uint32_t) flags;
+    ctrl->recvBuffer = recvBuffer;
+    ctrl->recvCapacity = RECV_BUFFER_DEFAULT;
+    ctrl->sendBuffer = sendBuffer;
+    ctrl->sendCapacity = SEND_BUFFER_DEFAULT;
+
+    ctrl->headerPairs = headerPairs;
+
+    ctrl->headerBufSize = HEADER_BUF_SIZE_DEFAULT;
+
+    metricIncrement(METRIC_LIVE_HANDLES);
+
+    return (jlong) (intptr_t) ctrl;
+}
+
+// looks up the host in shared DNS cache and passes the result to curl via CURLOPT_RESOLVE
+static int prepareResolve(struct curl_data* ctrl, const char* url, const char* dnsServer, bool blocking) {
+    char host[DNS_HOST_MAX];
+    int port;
+
+    if (!dnsParseUrl(url, host, sizeof(host), &port)) {
+        return DNS_FAILED;
+    }
+
+    DnsAddress addrs[DNS_MAX_ADDRESSES];
+
+    bool ipv6 = (ctrl->flags & FLAG_USE_IPV6) != 0;
+
+    int found = blocking
+                ? dnsCacheResolve(host, dnsServer, ipv6, ctrl->interrupted, &ctrl->cancelled, addrs, ARRAY_SIZE(addrs))
+                : dnsCachePeek(host, ipv6, addrs, ARRAY_SIZE(addrs));
+
+    if (found == DNS_NOT_FOUND) {
+        snprintf(ctrl->errorBuffer, sizeof(ctrl->errorBuffer), "Could not resolve host: %s", host);
+    }
+
+    if (found <= 0) {
+        return found;
+    }
+
+    char entry[DNS_HOST_MAX + 16 + DNS_MAX_ADDRESSES * 48];
+
+    if (!dnsFormatResolve(host, port, addrs, found, ipv6, entry, sizeof(entry))) {
+        return DNS_FAILED;
+    }
+
+    char removal[DNS_HOST_MAX + 16];
+
+    snprintf(removal, sizeof(removal), "-%s:%d", host, port);
+
+    // older curl versions refuse to replace existing entries, so remove the old one first
+    struct curl_slist* list = curl_slist_append(NULL, removal);
+
+    if (list != NULL) {
+        struct curl_slist* added = curl_slist_append(list, entry);
+
+        if (added == NULL) {
+            curl_slist_free_all(list);
+
+            return DNS_FAILED;
+        }
+
+        ctrl->resolve = added;
+    }
+
+    return found;
+}
+
+static void asciiDecode(JNIEnv* env, jstring str, char* dest, jint length) {
+    const jchar* chars = (*env) -> GetStringCritical(env, str, NULL);
+
+    for (int i = 0; i < length; ++i) {
+        dest[i] = (unsigned char) chars[i];
+    }
+
+    (*env) -> ReleaseStringCritical(env, str, chars);
+}
+
+static void headerSetRelease(struct header_set* set) {
+    if (set != NULL && __atomic_sub_fetch(&set->refs, 1, __ATOMIC_ACQ_REL) == 0) {
+        free(set);
+    }
+}
+
+// length of header name in "name:value" or "name;" entry
+static inline size_t headerNameLength(const char* entry) {
+    return strcspn(entry, ":;");
+}
+
+static bool isOverridden(struct curl_data* ctrl, const char* entry) {
+    size_t nameLength = headerNameLength(entry);
+
+    for (struct curl_slist* own = ctrl->outHeaders; own != NULL; own = own->next) {
+        if (headerNameLength(own->data) == nameLength && !strncasecmp(own->data, entry, nameLength)) {
+            return true;
+        }
+    }
+
+    return false;
+}
+
+static struct curl_slist* nextSetHeader(struct curl_data* ctrl, struct header_set* set, uint32_t from) {
+    for (uint32_t i = from; i < set->count; ++i) {
+        if (!isOverridden(ctrl, set->list[i].data)) {
+            return &set->list[i];
+        }
+    }
+
+    return NULL;
+}
+
+// Iterate over effective request headers: the headers of the handle itself, followed by the headers
+// of attached set, that weren't overridden by former. Pass NULL to get the first one.
+static struct curl_slist* nextRequestHeader(struct curl_data* ctrl, struct curl_slist* entry) {
+    struct header_set* set = ctrl->headerSet;
+
+    if (set != NULL && entry >= set->list && entry < set->list + set->count) {
+        return nextSetHeader(ctrl, set, (uint32_t) (entry - set->list) + 1);
+    }
+
+    struct curl_slist* next = entry == NULL ? ctrl->outHeaders : entry->next;
+
+    if (next == NULL && set != NULL) {
+        return nextSetHeader(ctrl, set, 0);
+    }
+
+    return next;
+}
+
+// Produce the list of request headers, that should be passed to curl.
+// Returns false if memory allocation fails.
+static bool requestHeaders(struct curl_data* ctrl, struct curl_slist** result) {
+    struct header_set* set = ctrl->headerSet;
+
+    if (set == NULL || set->count == 0) {
+        *result = ctrl->outHeaders;
+        return true;
+    }
+
+    if (ctrl->outHeaders == NULL) {
+        *result = set->list;
+        return true;
+    }
+
+    uint32_t total = set->count;
+
+    for (struct curl_slist* own = ctrl->outHeaders; own != NULL; own = own->next) {
+        ++total;
+    }
+
+    if (total > ctrl->mergedCapacity) {
+        struct curl_slist* nodes = realloc(ctrl->mergedHeaders, total * sizeof(struct curl_slist));
+        if (unlikely(nodes == NULL)) {
+            return false;
+        }
+
+        ctrl->mergedHeaders = nodes;
+        ctrl->mergedCapacity = total;
+    }
+
+    struct curl_slist* nodes = ctrl->mergedHeaders;
+
+    uint32_t n = 0;
+
+    for (struct curl_slist* entry = nextRequestHeader(ctrl, NULL); entry != NULL; entry = nextRequestHeader(ctrl, entry)) {
+        nodes[n++].data = entry->data;
+    }
+
+    for (uint32_t i = 0; i < n; ++i) {
+        nodes[i].next = i + 1 < n ? &nodes[i + 1] : NULL;
+    }
+
+    *result = nodes;
+
+    return true;
+}
+
+// forget everything about the last transfer of detached handle
+static void clearTransfer(struct curl_data* ctrl) {
+    ctrl->maxHeaderLength = 0;
+    ctrl->uploadedCount = 0;
+    ctrl->uploadError = 0;
+    ctrl->readOverflow = 0;
+    ctrl->sendWritten = 0;
+    ctrl->sendConsumed = 0;
+    ctrl->recvWritten = 0;
+    ctrl->recvConsumed = 0;
+    ctrl->result = CURLE_OK;
+    ctrl->multiResult = CURLM_OK;
+
+    releaseHeaders(ctrl);
+
+    headerTableReset(&ctrl->headers);
+}
+
+// Attach the configured handle to the event loop and wait until it's response starts arriving.
+// Must be called with loop lock held.
+static bool awaitHeaders(JNIEnv* env, struct curl_data* ctrl) {
+    int status = awaitLoop(ctrl, CMD_ATTACH, true);
+
+    if (status == AWAIT_TIMEOUT) {
+        throwTimeout(env, ctrl->headerPairCount);
+    } else if (hasFailure(ctrl)) {
+        reportFailure(ctrl);
+    } else if (status == AWAIT_INTERRUPTED) {
+        throwInterruptedException(ctrl, 0);
+    } else {
+        return true;
+    }
+
+    return false;
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_reset(JNIEnv *env, jclass type, jlong curlPtr) {
+    struct curl_data* ctrl = (struct curl_data *) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return;
+    }
+
+    if (!detach(ctrl)) {
+        throwLoopBusy(env);
+        RELEASE(ctrl->busy);
+        return;
+    }
+
+    clearTransfer(ctrl);
+
+    ctrl->uploadFd = -1;
+    ctrl->state = 0;
+
+    __atomic_store_n(&ctrl->cancelled, 0, __ATOMIC_SEQ_CST);
+
+    RELEASE(ctrl->busy);
+}
+
+#define HTTP_TYPE_GET 0
+#define HTTP_TYPE_POST 1
+#define HTTP_TYPE_PUT 2
+#define HTTP_TYPE_HEAD 3
+#define HTTP_TYPE_CUSTOM 4
+
+JNIEXPORT jcharArray JNICALL Java_net_sf_chttpc_Curl_nativeConfigure(JNIEnv *env, jclass type,
+                                                               jlong curlPtr,
+                                                               jlong i10nPtr,
+                                                               jlong fixedLength,
+                                                               jcharArray url,
+                                                               jstring method,
+                                                               jstring proxy,
+                                                               jstring dns,
+                                                               jstring ifName,
+                                                               jint urlLength,
+                                                               jint readTimeout,
+                                                               jint connTimeout,
+                                                               jint proxyType,
+                                                               jint reqType,
+                                                               jint chunkLength,
+                                                               jboolean followRedirects,
+                                                               jboolean doInput,
+                                                               jboolean doOutput,
+                                                               jint dirty,
+                                                               jobject asyncTarget) {
+    LOG("++++++++nativeConfigure");
+
+    struct curl_data* ctrl = (struct curl_data *) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return NULL;
+    }
+
+    // the options can only be changed, while the event loop does not use the handle
+    if (!detach(ctrl)) {
+        throwLoopBusy(env);
+        goto whoops;
+    }
+
+    ctrl->env = env;
+    ctrl->sendWritten = 0;
+    ctrl->sendConsumed = 0;
+    ctrl->interrupted = i10nPtr != 0 ? (i10n_ptr) (intptr_t) i10nPtr : &neverInterrupted;
+    ctrl->errorBuffer[0] = 0;
+    ctrl->resolveTime = -1;
+
+    CURL* curl = ctrl->curl;
+
+    jchar* urlStr = (*env) -> GetPrimitiveArrayCritical(env, url, NULL);
+    char* urlBuffer = malloc((size_t) (urlLength + 1));
+    if (unlikely(urlBuffer == NULL)) {
+        oomThrow(env);
+        goto whoops;
+    }
+
+    int i;
+    for (i = 0; i < urlLength; ++i) {
+        urlBuffer[i] = (unsigned char) urlStr[i];
+    }
+    urlBuffer[i] = '\0';
+
+    curl_easy_setopt(curl, CURLOPT_URL, urlBuffer);
+
+    (*env) -> ReleasePrimitiveArrayCritical(env, url, urlStr, JNI_ABORT);
+
+    if (followRedirects == JNI_TRUE) {
+        SET_HANDLE_REDIRECT(ctrl);
+    } else {
+        SET_DONT_HANDLE_REDIRECT(ctrl);
+    }
+
+    // options, that haven't changed since the last request, are still set on the handle
+
+    if (dirty & OPTION_DIRTY_REDIRECTS) {
+        curl_easy_setopt(curl, CURLOPT_FOLLOWLOCATION, followRedirects == JNI_TRUE ? 1L : 0L);
+    }
+
+    if (dirty & OPTION_DIRTY_PROXY) {
+        if (proxy != NULL) {
+            const char* proxyStr = (*env) -> GetStringUTFChars(env, proxy, NULL);
+
+            switch (proxyType) {
+                case 2:
+                    curl_easy_setopt(curl, CURLOPT_PROXYTYPE, CURLPROXY_HTTPS);
+                    // fall-through
+                case 1:
+                    curl_easy_setopt(curl, CURLOPT_PROXY, proxyStr);
+                    break;
+                case 3:
+                    curl_easy_setopt(curl, CURLOPT_PRE_PROXY, proxyStr);
+                    break;
+                case 4:
+                    curl_easy_setopt(curl, CURLOPT_PROXYTYPE, CURLPROXY_SOCKS5_HOSTNAME);
+
+                    curl_easy_setopt(curl, CURLOPT_PROXY, proxyStr);
+
+                    break;
+                default:
+                    break;
+            }
+
+            (*env) -> ReleaseStringUTFChars(env, proxy, proxyStr);
+
+            ctrl->viaProxy = true;
+        } else {
+            // disable proxy, don't bother to read environment variables
+            curl_easy_setopt(curl, CURLOPT_PROXY, "");
+
+            ctrl->viaProxy = false;
+        }
+    }
+
+    if (ctrl->uploadFd >= 0) {
+        doOutput = JNI_TRUE;
+    }
+
+    // If doOutput is set, then treat requests as PUT.
+    // Otherwise if asked for HEAD and doInput is not set, treat them as HEAD.
+    // Otherwise treat them  as GET.
+    // Treating all requests with doInput == false as HEAD is very bad idea,
+    // because it will result in botched retries because of Keep-Alive
+    // Never treat requests as POST, because POST handling in curl
+    // is kind of hot garbage
+    if (doOutput) {
+        curl_easy_setopt(curl, CURLOPT_UPLOAD, 1L);
+    } else if (reqType == HTTP_TYPE_HEAD && !doInput) {
+        curl_easy_setopt(curl, CURLOPT_NOBODY, 1L);
+    } else {
+        curl_easy_setopt(curl, CURLOPT_HTTPGET, 1L);
+    }
+
+    if (dirty & OPTION_DIRTY_METHOD) {
+        switch (reqType) {
+            case HTTP_TYPE_GET:
+                curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "GET");
+                break;
+            case HTTP_TYPE_PUT:
+                curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "PUT");
+                break;
+            case HTTP_TYPE_HEAD:
+                curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "HEAD");
+                break;
+            case HTTP_TYPE_POST:
+                curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, "POST");
+                break;
+            default: {
+                jint strLength = (*env)->GetStringLength(env, method);
+
+                char reqMethodChars[strLength + 1];
+
+                asciiDecode(env, method, reqMethodChars, strLength);
+
+                reqMethodChars[strLength] = '\0';
+
+                curl_easy_setopt(curl, CURLOPT_CUSTOMREQUEST, reqMethodChars);
+
+                break;
+            }
+        }
+    }
+
+    if (ctrl->uploadFd >= 0) {
+        // the whole body is taken from file descriptor, so it's size is known beforehand
+        SET_DO_OUTPUT(ctrl);
+        SET_DONE_SENDING(ctrl);
+
+        curl_easy_setopt(curl, CURLOPT_INFILESIZE_LARGE, (curl_off_t) ctrl->uploadGoal);
+    } else if (doOutput && fixedLength) {
+        SET_DO_OUTPUT(ctrl);
+
+        curl_easy_setopt(curl, CURLOPT_INFILESIZE_LARGE, (curl_off_t) fixedLength);
+
+        ctrl->uploadGoal = (uint64_t) fixedLength;
+    } else {
+        SET_DO_NO_OUTPUT(ctrl);
+
+        curl_easy_setopt(curl, CURLOPT_INFILESIZE_LARGE, (curl_off_t) -1);
+
+        ctrl->uploadGoal = 0;
+    }
+
+    struct curl_slist* outHeaders;
+    if (unlikely(!requestHeaders(ctrl, &outHeaders))) {
+        oomThrow(env);
+        goto enough;
+    }
+
+    curl_easy_setopt(curl, CURLOPT_HTTPHEADER, outHeaders);
+
+    if (dirty & OPTION_DIRTY_DNS) {
+        char* dnsChars = NULL;
+
+        if (dns != NULL) {
+            jint strLength = (*env) -> GetStringLength(env, dns);
+
+            dnsChars = malloc((size_t) strLength + 1);
+            if (unlikely(dnsChars == NULL)) {
+                oomThrow(env);
+                goto enough;
+            }
+
+            asciiDecode(env, dns, dnsChars, strLength);
+
+            dnsChars[strLength] = '\0';
+        }
+
+        free(ctrl->dnsServers);
+
+        ctrl->dnsServers = dnsChars;
+
+        curl_easy_setopt(curl, CURLOPT_DNS_SERVERS, dnsChars);
+    }
+
+    // all option groups must be applied before the lookup: when it is interrupted, the call returns
+    // normally and the caller forgets about the changes
+    if (dirty & OPTION_DIRTY_INTERFACE) {
+        if (ifName != NULL) {
+            jint strLength = (*env) -> GetStringLength(env, ifName);
+
+            size_t bufferLength = 4 + 2 * (size_t) strLength;
+
+            char* tempStr = calloc(bufferLength, sizeof(char));
+
+            strncpy(tempStr, "if!", 3);
+
+            (*env) -> GetStringUTFRegion(env, ifName, 0, strLength, tempStr + 3);
+
+            curl_easy_setopt(curl, CURLOPT_INTERFACE, tempStr);
+
+            free(tempStr);
+        } else {
+            curl_easy_setopt(curl, CURLOPT_INTERFACE, NULL);
+        }
+    }
+
+    if (ctrl->resolve != NULL) {
+        curl_slist_free_all(ctrl->resolve);
+
+        ctrl->resolve = NULL;
+    }
+
+    int64_t resolveStart = monotonicMicros();
+
+    // with proxy the host is resolved by proxy server
+    // asynchronous requests must not block, so they only use already cached addresses
+    switch (ctrl->viaProxy ? DNS_FAILED : prepareResolve(ctrl, urlBuffer, ctrl->dnsServers, asyncTarget == NULL)) {
+        case DNS_INTERRUPTED:
+            if (ctrl->cancelled) {
+                throwOther(env, "", ERROR_CANCELLED);
+            } else {
+                throwInterruptedException(ctrl, 0);
+            }
+            goto enough;
+        case DNS_NOT_FOUND:
+            throwOther(env, ctrl->errorBuffer, ERROR_DNS_FAILURE);
+            goto enough;
+        default:
+            break;
+    }
+
+    int64_t resolveTime = monotonicMicros() - resolveStart;
+
+    curl_easy_setopt(curl, CURLOPT_RESOLVE, ctrl->resolve);
+
+    ctrl->readTimeout = readTimeout <= 0 ? INT32_MAX : readTimeout;
+    ctrl->connTimeout = connTimeout <= 0 ? INT32_MAX : connTimeout;
+
+    if (doInput) {
+        SET_DO_INPUT(ctrl);
+
+        curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, &write_callback);
+    } else {
+        SET_DO_NO_INPUT(ctrl);
+
+        curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, doOutput ? &skip_receive_callback : &abort_receive_callback);
     }
 
-    if (!running && checkResult(ctrl)) {
-        goto enough;
+    if (ctrl->uploadFd >= 0) {
+        curl_easy_setopt(curl, CURLOPT_READFUNCTION, &file_read_callback);
+        curl_easy_setopt(curl, CURLOPT_SEEKFUNCTION, &file_seek_callback);
+    } else if (doOutput) {
+        curl_easy_setopt(curl, CURLOPT_READFUNCTION, &read_callback);
+        curl_easy_setopt(curl, CURLOPT_SEEKFUNCTION, &seek_callback);
     }
 
-    LOG("Comsuming headers");
+    if (*ctrl->interrupted) {
+        throwInterruptedException(ctrl, 0);
+        goto enough;
+    }
 
-    if (curlPerform(ctrl)) {
+    // the event loop ignores cancelled handles anyway, but there is no point in handing it over
+    if (ctrl->cancelled) {
+        throwOther(env, "", ERROR_CANCELLED);
         goto enough;
     }
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, 0);
+    ctrl->resolveTime = resolveTime;
+
+    if (asyncTarget != NULL) {
+        if (ctrl->asyncBuffer == NULL) {
+            jobject buffer = (*env) -> NewDirectByteBuffer(env, ctrl->recvBuffer, ctrl->recvCapacity);
+
+            if (buffer == NULL || (ctrl->asyncBuffer = (*env) -> NewGlobalRef(env, buffer)) == NULL) {
+                goto enough;
+            }
+        }
+
+        jobject targetRef = (*env) -> NewGlobalRef(env, asyncTarget);
+        if (targetRef == NULL) {
+            goto enough;
+        }
+
+        LOG("Enqueuing asynchronous request");
+
+        pthread_mutex_lock(&loop.lock);
+
+        ctrl->asyncRef = targetRef;
+        ctrl->state |= STATE_ASYNC;
+
+        markActivity(ctrl);
+
+        loopPost(ctrl, CMD_ATTACH);
+
+        loopSignal();
+
+        pthread_mutex_unlock(&loop.lock);
+
+        goto enough;
     }
 
-    if (followRedirects) {
+    LOG("Comsuming headers");
+
+    pthread_mutex_lock(&loop.lock);
+
+    if (awaitHeaders(env, ctrl) && followRedirects && !(ctrl->state & STATE_TRANSFER_DONE)) {
         char *effectiveUrl = NULL;
         curl_easy_getinfo(ctrl->curl, CURLINFO_EFFECTIVE_URL, &effectiveUrl);
 
@@ -1275,6 +2929,8 @@ JNIEXPORT jcharArray JNICALL Java_net_sf_chttpc_Curl_nativeConfigure(JNIEnv *env
         }
     }
 
+    pthread_mutex_unlock(&loop.lock);
+
 enough:
     free(urlBuffer);
 whoops:
@@ -1283,32 +2939,141 @@ whoops:
     return url;
 }
 
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_nativeRestart(JNIEnv *env, jclass type, jlong curlPtr,
+                                                            jlong i10nPtr, jcharArray url, jint urlLength) {
+    LOG("++++++++nativeRestart");
+
+    struct curl_data* ctrl = (struct curl_data *) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return;
+    }
+
+    // the finished transfer is removed from the multi handle, it's connection stays in cache
+    if (!detach(ctrl)) {
+        throwLoopBusy(env);
+        goto whoops;
+    }
+
+    clearTransfer(ctrl);
+
+    // the options, set by nativeConfigure, are kept
+    ctrl->state &= STATE_DO_INPUT | STATE_HANDLE_REDIRECT;
+
+    ctrl->env = env;
+    ctrl->interrupted = i10nPtr != 0 ? (i10n_ptr) (intptr_t) i10nPtr : &neverInterrupted;
+    ctrl->errorBuffer[0] = 0;
+    ctrl->resolveTime = -1;
+
+    // the batch, cancelled while the previous response was being consumed, stays cancelled
+    if (ctrl->cancelled) {
+        throwOther(env, "", ERROR_CANCELLED);
+        goto whoops;
+    }
+
+    // the headers might have been changed by consumer of the previous response, which
+    // also frees the nodes, that curl still points to
+    struct curl_slist* outHeaders;
+    if (unlikely(!requestHeaders(ctrl, &outHeaders))) {
+        oomThrow(env);
+        goto whoops;
+    }
+
+    curl_easy_setopt(ctrl->curl, CURLOPT_HTTPHEADER, outHeaders);
+
+    char* urlBuffer = malloc((size_t) (urlLength + 1));
+    if (unlikely(urlBuffer == NULL)) {
+        oomThrow(env);
+        goto whoops;
+    }
+
+    jchar* urlStr = (*env) -> GetPrimitiveArrayCritical(env, url, NULL);
+
+    for (int i = 0; i < urlLength; ++i) {
+        urlBuffer[i] = (unsigned char) urlStr[i];
+    }
+    urlBuffer[urlLength] = '\0';
+
+    (*env) -> ReleasePrimitiveArrayCritical(env, url, urlStr, JNI_ABORT);
+
+    // curl copies the string
+    curl_easy_setopt(ctrl->curl, CURLOPT_URL, urlBuffer);
+
+    free(urlBuffer);
+
+    if (*ctrl->interrupted) {
+        throwInterruptedException(ctrl, 0);
+        goto whoops;
+    }
+
+    // the host is already known to curl from the previous request
+    ctrl->resolveTime = 0;
+
+    pthread_mutex_lock(&loop.lock);
+
+    awaitHeaders(env, ctrl);
+
+    pthread_mutex_unlock(&loop.lock);
+
+whoops:
+    RELEASE(ctrl->busy);
+}
+
 JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_dispose(JNIEnv *env, jclass type, jlong curlPtr) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
-    if (ctrl->state & STATE_ATTACHED) {
-        curl_multi_remove_handle(ctrl->multi, ctrl->curl);
+    detach(ctrl);
+
+    metricAdd(METRIC_LIVE_HANDLES, -1);
+
+    if (ctrl->asyncBuffer != NULL) {
+        (*env) -> DeleteGlobalRef(env, ctrl->asyncBuffer);
     }
 
     curl_easy_cleanup(ctrl->curl);
 
-    curl_multi_cleanup(ctrl->multi);
-
     if (ctrl->outHeaders != NULL) {
         curl_slist_free_all(ctrl->outHeaders);
     }
 
-    hashmapFree(ctrl->headers);
+    headerSetRelease(ctrl->headerSet);
+
+    free(ctrl->mergedHeaders);
+
+    free(ctrl->dnsServers);
+
+    if (ctrl->resolve != NULL) {
+        curl_slist_free_all(ctrl->resolve);
+    }
+
+    headerTableFree(&ctrl->headers);
 
     releaseHeaders(ctrl);
 
+    free(ctrl->headerArena);
+
     free(ctrl->headerPairs);
 
+    free(ctrl->recvBuffer);
+
+    free(ctrl->sendBuffer);
+
     free(ctrl);
 }
 
-JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_read(JNIEnv *env, jclass type, jlong curlPtr,
-                                                    jlong i10nPtr, jobject buf_, jint off, jint count) {
+// Let curl continue receiving in background, once there is enough space for a whole chunk.
+// Must be called with loop lock held.
+static void resumeReceiving(struct curl_data* ctrl) {
+    if (ctrl->state & STATE_RECV_PAUSED && !(ctrl->commands & CMD_RECV_CONT)
+            && ctrl->recvCapacity - recvBuffered(ctrl) >= CURL_MAX_WRITE_SIZE) {
+        loopPost(ctrl, CMD_RECV_CONT);
+        loopSignal();
+    }
+}
+
+// Receive data into Java array or (if direct is not NULL) into native memory
+static jint curlRead(JNIEnv *env, jlong curlPtr, jlong i10nPtr, jbyteArray buf_, char* direct, jint off, jint count) {
     LOG("++++++++nativeRead");
 
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
@@ -1319,116 +3084,392 @@ JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_read(JNIEnv *env, jclass type, jl
     }
 
     jint retVal = -1;
+    jint total = 0;
+    jint lastByte = 0;
+
+    bool interrupted = false;
+
+    ctrl->env = env;
+    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
+
+    pthread_mutex_lock(&loop.lock);
+
+    while (total < count) {
+        uint32_t buffered = recvBuffered(ctrl);
+
+        if (buffered > 0) {
+            uint32_t start = ctrl->recvConsumed & (ctrl->recvCapacity - 1);
+            uint32_t contiguous = ctrl->recvCapacity - start;
+
+            jint chunk = (jint) (buffered < contiguous ? buffered : contiguous);
+
+            if (chunk > count - total) {
+                chunk = count - total;
+            }
+
+            const char* data = ctrl->recvBuffer + start;
+
+            // the event loop only writes to the free part of ring buffer
+            pthread_mutex_unlock(&loop.lock);
+
+            if (direct != NULL) {
+                memcpy(direct + total, data, (size_t) chunk);
+            } else if (buf_ != NULL) {
+                (*env)->SetByteArrayRegion(env, buf_, off + total, chunk, (jbyte*) data);
+            } else {
+                lastByte = (unsigned char) *data;
+            }
+
+            pthread_mutex_lock(&loop.lock);
+
+            ctrl->recvConsumed += chunk;
+
+            total += chunk;
+
+            continue;
+        }
+
+        if (interrupted) {
+            throwInterruptedException(ctrl, total);
+            break;
+        }
+
+        if (hasFailure(ctrl)) {
+            reportFailure(ctrl);
+            goto enough;
+        }
+
+        if (ctrl->state & STATE_TRANSFER_DONE) {
+            if (total == 0) {
+                LOG("returning -1 from read()");
+                goto enough;
+            }
+
+            break;
+        }
+
+        SET_NEED_INPUT(ctrl);
+
+        int status = awaitLoop(ctrl, ctrl->state & STATE_RECV_PAUSED ? CMD_RECV_CONT : 0, true);
+
+        SET_NEED_NO_INPUT(ctrl);
+
+        switch (status) {
+            case AWAIT_TIMEOUT:
+                throwTimeout(env, total);
+                goto enough;
+            case AWAIT_INTERRUPTED:
+                interrupted = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    retVal = buf_ == NULL && direct == NULL && total == 1 ? lastByte : total;
+
+enough:
+    resumeReceiving(ctrl);
+
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return retVal;
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_read(JNIEnv *env, jclass type, jlong curlPtr,
+                                                    jlong i10nPtr, jbyteArray buf_, jint off, jint count) {
+    return curlRead(env, curlPtr, i10nPtr, buf_, NULL, off, count);
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_readDirect(JNIEnv *env, jclass type, jlong curlPtr,
+                                                          jlong i10nPtr, jobject buf_, jint off, jint count) {
+    char* direct = directAddress(env, buf_, off, count);
+
+    if (direct == NULL) {
+        return -1;
+    }
+
+    return curlRead(env, curlPtr, i10nPtr, NULL, direct, 0, count);
+}
+
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_downloadTo(JNIEnv *env, jclass type, jlong curlPtr,
+                                                          jlong i10nPtr, jint fd, jlong offset) {
+    LOG("++++++++nativeDownload");
+
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
+    }
+
+    jlong total = 0;
+
+    bool interrupted = false;
+
+    ctrl->env = env;
+    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
+
+    pthread_mutex_lock(&loop.lock);
+
+    while (true) {
+        uint32_t buffered = recvBuffered(ctrl);
+
+        if (buffered > 0) {
+            uint32_t start = ctrl->recvConsumed & (ctrl->recvCapacity - 1);
+            uint32_t contiguous = ctrl->recvCapacity - start;
+
+            size_t chunk = buffered < contiguous ? buffered : contiguous;
+
+            const char* data = ctrl->recvBuffer + start;
+
+            // the disk is written by this thread, so that the event loop never waits for it
+            pthread_mutex_unlock(&loop.lock);
+
+            ssize_t written = offset >= 0
+                              ? TEMP_FAILURE_RETRY(pwrite64(fd, data, chunk, offset + total))
+                              : TEMP_FAILURE_RETRY(write(fd, data, chunk));
+
+            int error = errno;
+
+            pthread_mutex_lock(&loop.lock);
+
+            if (written < 0) {
+                (*env)->ThrowNew(env, ioException, strerror(error));
+                goto enough;
+            }
+
+            ctrl->recvConsumed += (uint32_t) written;
+
+            total += written;
+
+            resumeReceiving(ctrl);
+
+            continue;
+        }
+
+        if (interrupted) {
+            throwInterruptedException(ctrl, (jint) total);
+            break;
+        }
+
+        if (hasFailure(ctrl)) {
+            reportFailure(ctrl);
+            goto enough;
+        }
+
+        if (ctrl->state & STATE_TRANSFER_DONE) {
+            break;
+        }
+
+        SET_NEED_INPUT(ctrl);
+
+        int status = awaitLoop(ctrl, ctrl->state & STATE_RECV_PAUSED ? CMD_RECV_CONT : 0, true);
+
+        SET_NEED_NO_INPUT(ctrl);
+
+        switch (status) {
+            case AWAIT_TIMEOUT:
+                throwTimeout(env, ctrl->headerPairCount);
+                goto enough;
+            case AWAIT_INTERRUPTED:
+                interrupted = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+enough:
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return total;
+}
+
+// Send data from Java array or (if direct is not NULL) from native memory
+static jint curlWrite(JNIEnv *env, jlong curlPtr, jlong i10nPtr, jbyteArray buf_, const char* direct, jint off, jint count) {
+    LOG("++++++++nativeWrite");
+
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
+    }
+
+    jint total = 0;
+
+    uint64_t goal = ctrl->uploadGoal;
+    if (goal && ctrl->sendWritten >= goal) {
+        throwOther(env, "", ERROR_CLOSED);
+        goto closed;
+    }
+
+    ctrl->env = env;
+    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
+
+    pthread_mutex_lock(&loop.lock);
+
+    while (total < count) {
+        if (hasFailure(ctrl)) {
+            reportFailure(ctrl);
+            break;
+        }
+
+        if (ctrl->state & STATE_TRANSFER_DONE) {
+            break;
+        }
+
+        if (goal && ctrl->sendWritten >= goal) {
+            // the excess would never be sent
+            break;
+        }
+
+        uint32_t space = ctrl->sendCapacity - sendBuffered(ctrl);
+
+        if (space > 0) {
+            uint32_t start = (uint32_t) ctrl->sendWritten & (ctrl->sendCapacity - 1);
+            uint32_t contiguous = ctrl->sendCapacity - start;
+
+            jint chunk = (jint) (space < contiguous ? space : contiguous);
+
+            if (chunk > count - total) {
+                chunk = count - total;
+            }
+
+            if (goal && chunk > goal - ctrl->sendWritten) {
+                chunk = (jint) (goal - ctrl->sendWritten);
+            }
+
+            char* dest = ctrl->sendBuffer + start;
+
+            // the event loop only reads from the filled part of ring buffer
+            pthread_mutex_unlock(&loop.lock);
+
+            if (direct != NULL) {
+                memcpy(dest, direct + total, (size_t) chunk);
+            } else if (buf_ != NULL) {
+                (*env)->GetByteArrayRegion(env, buf_, off + total, chunk, (jbyte*) dest);
+            } else {
+                // writing a single byte
+                *dest = (char) off;
+            }
 
-    SET_NEED_INPUT(ctrl);
+            pthread_mutex_lock(&loop.lock);
 
-    ctrl->env = env;
-    ctrl->readOffset = off;
-    ctrl->countToRead = count;
-    ctrl->countToWrite = 0;
-    ctrl->bufferForReceiving = buf_;
-    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
-    ctrl->errorBuffer[0] = 0;
+            ctrl->sendWritten += chunk;
 
-    if (ctrl->state & STATE_RECV_PAUSED) {
-        SET_RECV_UNPAUSED(ctrl);
+            total += chunk;
 
-        CURLcode result = curl_easy_pause(ctrl->curl, CURLPAUSE_RECV_CONT);
+            // the data is sent in background
+            if (ctrl->state & STATE_SEND_PAUSED && !(ctrl->commands & CMD_SEND_CONT)) {
+                loopPost(ctrl, CMD_SEND_CONT);
+                loopSignal();
+            }
 
-        if (result) {
-            handleEasyError(ctrl, result);
-            goto enough;
+            continue;
         }
-    }
 
-    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "%s", "before perform inside read()");
+        // the buffer is full, wait until curl sends some of it
+        SET_NEED_OUTPUT(ctrl);
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, count - ctrl->countToRead);
-        goto success;
-    }
+        int status = awaitLoop(ctrl, ctrl->state & STATE_SEND_PAUSED ? CMD_SEND_CONT : 0, true);
 
-    bool perform = curlPerform(ctrl);
+        SET_NEED_NO_OUTPUT(ctrl);
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, count - ctrl->countToRead);
-        goto success;
-    }
+        if (status == AWAIT_TIMEOUT) {
+            throwTimeout(env, total);
+            break;
+        }
 
-    if (perform && ctrl->countToRead > 0 && ctrl->countToRead == count) {
-        LOG("returning -1 from read()");
-        goto enough;
+        if (status == AWAIT_INTERRUPTED) {
+            throwInterruptedException(ctrl, total);
+            break;
+        }
     }
 
-    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "returning %d from read()", count - ctrl->countToRead);
-success:
-    retVal = count == 1 ? ctrl->readOffset : count - ctrl->countToRead;
-
-enough:
-    SET_NEED_NO_INPUT(ctrl);
+    pthread_mutex_unlock(&loop.lock);
 
+closed:
     RELEASE(ctrl->busy);
 
-    return retVal;
+    return total;
 }
 
 JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_write(JNIEnv *env, jclass type, jlong curlPtr,
                                                      jlong i10nPtr, jbyteArray buf_, jint off, jint count) {
-    LOG("++++++++nativeWrite");
+    return curlWrite(env, curlPtr, i10nPtr, buf_, NULL, off, count);
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_writeDirect(JNIEnv *env, jclass type, jlong curlPtr,
+                                                           jlong i10nPtr, jobject buf_, jint off, jint count) {
+    const char* direct = directAddress(env, buf_, off, count);
+
+    if (direct == NULL) {
+        return 0;
+    }
+
+    return curlWrite(env, curlPtr, i10nPtr, NULL, direct, 0, count);
+}
 
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_uploadFrom(JNIEnv *env, jclass type, jlong curlPtr,
+                                                          jint fd, jlong offset, jlong length) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
     if (!ACQUIRE(ctrl->busy)) {
         throwThreadingException(env);
-        return -1;
+        return;
     }
 
-    uint64_t goal = ctrl->uploadGoal;
-    if (goal && ctrl->uploadedCount >= goal) {
-        throwOther(env, "", ERROR_CLOSED);
-        return -1;
+    pthread_mutex_lock(&loop.lock);
+
+    bool started = ctrl->state & (STATE_ATTACHED | STATE_QUEUED);
+
+    if (!started) {
+        ctrl->uploadFd = fd;
+        ctrl->uploadOffset = (uint64_t) offset;
+        ctrl->uploadGoal = (uint64_t) length;
+        ctrl->uploadedCount = 0;
+        ctrl->uploadError = 0;
     }
 
-    SET_NEED_OUTPUT(ctrl);
+    pthread_mutex_unlock(&loop.lock);
 
-    ctrl->env = env;
-    ctrl->writeOffset = off;
-    ctrl->countToWrite = count;
-    ctrl->countToRead = 0;
-    ctrl->bufferForSending = buf_;
-    ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
-    ctrl->errorBuffer[0] = 0;
+    if (started) {
+        throwOther(env, "The request has already been started", ERROR_ILLEGAL_STATE);
+    }
 
-    if (ctrl->state & STATE_SEND_PAUSED) {
-        SET_SEND_UNPAUSED(ctrl);
+    RELEASE(ctrl->busy);
+}
 
-        CURLcode result = curl_easy_pause(ctrl->curl, CURLPAUSE_SEND_CONT);
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_cancel(JNIEnv *env, jclass type, jlong curlPtr) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
-        if (result) {
-            handleEasyError(ctrl, result);
-            goto enough;
-        }
-    }
+    // unlike other methods, this one is called by arbitrary threads, so there is no busy check
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, count - ctrl->countToWrite);
-        goto enough;
-    }
+    pthread_mutex_lock(&loop.lock);
 
-    if (ctrl->countToWrite > 0) {
-        curlPerform(ctrl);
-    }
+    if (!__atomic_exchange_n(&ctrl->cancelled, 1, __ATOMIC_SEQ_CST)) {
+        LOG("Cancelling the request");
 
-    if (*ctrl->interrupted) {
-        throwInterruptedException(ctrl, count - ctrl->countToWrite);
-        goto enough;
-    }
+        if (ctrl->state & (STATE_ATTACHED | STATE_QUEUED)) {
+            loopPost(ctrl, CMD_CANCEL);
 
-enough:
-    SET_NEED_NO_OUTPUT(ctrl);
-    RELEASE(ctrl->busy);
+            loopSignal();
+        }
 
-    return count - ctrl->countToWrite;
+        // the thread, waiting for the handle, does not need to wait for the event loop
+        // (unless it is detaching the handle, which must be done by the event loop itself)
+        if (ctrl->state & STATE_WAITING && !(ctrl->commands & CMD_DETACH)) {
+            loopWake(ctrl);
+        }
+    }
+
+    pthread_mutex_unlock(&loop.lock);
 }
 
 JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_closeOutput(JNIEnv *env, jclass type, jlong curlPtr, jlong i10nPtr) {
@@ -1442,39 +3483,41 @@ JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_closeOutput(JNIEnv *env, jclass t
     }
 
     ctrl->env = env;
-    ctrl->countToRead = 0;
-    ctrl->countToWrite = 0;
     ctrl->interrupted = (i10n_ptr) (intptr_t) i10nPtr;
-    ctrl->errorBuffer[0] = 0;
 
+    pthread_mutex_lock(&loop.lock);
+
+    // the rest of buffered data is sent before finishing the upload
     SET_NEED_OUTPUT(ctrl);
     SET_DONE_SENDING(ctrl);
 
-    curl_easy_setopt(ctrl->curl, CURLOPT_READFUNCTION, &eof_callback);
-
-    if (ctrl->state & STATE_SEND_PAUSED) {
-        SET_SEND_UNPAUSED(ctrl);
+    if (!hasFailure(ctrl) && !(ctrl->state & STATE_TRANSFER_DONE)) {
+        int status = awaitLoop(ctrl, ctrl->state & STATE_SEND_PAUSED ? CMD_SEND_CONT : 0, true);
 
-        CURLcode result = curl_easy_pause(ctrl->curl, CURLPAUSE_SEND_CONT);
-
-        if (result) {
-            handleEasyError(ctrl, result);
+        if (status == AWAIT_TIMEOUT) {
+            throwTimeout(env, 0);
             goto enough;
         }
     }
 
-    //__android_log_print(ANDROID_LOG_DEBUG, "Curl", "Calling perform()");
-
-    if (!(ctrl->state & STATE_SEND_PAUSED)) {
-        curlPerform(ctrl);
+    if (hasFailure(ctrl)) {
+        reportFailure(ctrl);
     }
 
 enough:
     SET_NEED_NO_OUTPUT(ctrl);
+
+    pthread_mutex_unlock(&loop.lock);
+
     RELEASE(ctrl->busy);
 }
 
-static inline jstring headerToString(JNIEnv *env, jchar* tempBuffer, const char* str, size_t len) {
+static inline jstring headerToString(JNIEnv *env, jchar* tempBuffer, const char* str, size_t len, bool name) {
+    jstring found = findInterned(str, len, name);
+    if (found != NULL) {
+        return found;
+    }
+
     // since headers are guaranteed to be ASCII, convert to UTF-16 by shortcut
     for (int p = 0; p < len; ++p) {
         tempBuffer[p] = (jchar) str[p];
@@ -1484,7 +3527,7 @@ static inline jstring headerToString(JNIEnv *env, jchar* tempBuffer, const char*
 }
 
 static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
-    if (ctrl->headers->size == 0) {
+    if (ctrl->headers.size == 0) {
         return NULL;
     }
 
@@ -1505,9 +3548,9 @@ static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
 
     jint localFrameRes = -1;
 
-    Hashmap *headers = ctrl->headers;
+    const HeaderTable* headers = &ctrl->headers;
 
-    jsize arrayCapacity = headers->size * 3 + (ctrl->headerPairCount - 1 - headers->size) - 1;
+    jsize arrayCapacity = headers->size * 3 + (ctrl->headerPairCount - ctrl->trailerCount - 1 - headers->size) - 1;
 
     jobjectArray strArray = (*env) -> NewObjectArray(env, arrayCapacity, javaString, NULL);
     if (strArray == NULL) {
@@ -1524,14 +3567,10 @@ static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
     }
 
     int hdrPos = 0;
-    for (int i = 0; i < headers->bucketCount; i++) {
-        Entry* entry = headers->buckets[i];
-        while (entry != NULL) {
-            Entry *next = entry->next;
-
-            size_t keyLen = strlen(entry->key);
-
-            jstring strHdrKey = headerToString(env, tempBuffer, entry->key, keyLen);
+    for (uint32_t i = 0; i < headers->capacity; i++) {
+        const HeaderSlot* slot = &headers->slots[i];
+        if (slot->key != NULL) {
+            jstring strHdrKey = headerToString(env, tempBuffer, slot->key, slot->keyLength, true);
             if (unlikely(strHdrKey == NULL)) {
                 strArray = NULL;
                 goto cleanup;
@@ -1539,7 +3578,7 @@ static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
 
             (*env) -> SetObjectArrayElement(env, strArray, hdrPos++, strHdrKey);
 
-            struct curl_hdr* hdrValues = ((struct curl_hdr*) entry->value)->ref;
+            struct curl_hdr* hdrValues = ((struct curl_hdr*) slot->value)->ref;
             void* first = hdrValues;
 
             do {
@@ -1547,7 +3586,7 @@ static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
 
                 size_t valLen = strlen(valuePtr);
 
-                jstring strHdrValue = headerToString(env, tempBuffer, valuePtr, valLen);
+                jstring strHdrValue = headerToString(env, tempBuffer, valuePtr, valLen, false);
                 if (unlikely(strHdrValue == NULL)) {
                     strArray = NULL;
                     goto cleanup;
@@ -1562,8 +3601,6 @@ static jobjectArray getResponseHeaders(struct curl_data* ctrl, JNIEnv *env) {
             while (hdrValues != first);
 
             ++hdrPos;
-
-            entry = next;
         }
     }
 
@@ -1580,9 +3617,13 @@ cleanup:
 }
 
 static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
-    jsize arrayCapacity = ctrl->outHeaderCount * 2;
+    jsize arrayCapacity = 0;
+
+    for (struct curl_slist* entry = nextRequestHeader(ctrl, NULL); entry != NULL; entry = nextRequestHeader(ctrl, entry)) {
+        arrayCapacity += 2;
+    }
 
-    if (ctrl->outHeaders == NULL || arrayCapacity <= 0) {
+    if (arrayCapacity <= 0) {
         return NULL;
     }
 
@@ -1601,7 +3642,7 @@ static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
         goto cleanup;
     }
 
-    if (ctrl->outHeaderCount > 5) {
+    if (arrayCapacity > 10) {
         // at this rate we might run out of local references to store headers
         // rather than wasting CPU time on calls to DeleteGlobalRef, let's batch
         localFrameRes = (*env) -> PushLocalFrame(env, ctrl->headerPairCount + 1);
@@ -1611,9 +3652,9 @@ static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
     }
 
     int actualCount = 0;
-    struct curl_slist* entry = ctrl->outHeaders;
+    struct curl_slist* entry = nextRequestHeader(ctrl, NULL);
 
-    for (int i = 0; i < arrayCapacity; i += 2, entry = entry->next) {
+    for (int i = 0; i < arrayCapacity; i += 2, entry = nextRequestHeader(ctrl, entry)) {
         if (entry == NULL) {
             break;
         }
@@ -1643,7 +3684,7 @@ static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
             tempBuffer = realloc(tempBuffer, maxLen);
         }
 
-        jstring strHdrKey = headerToString(env, tempBuffer, entry->data, keyLen);
+        jstring strHdrKey = headerToString(env, tempBuffer, entry->data, keyLen, true);
         if (unlikely(strHdrKey == NULL)) {
             strArray = NULL;
             goto cleanup;
@@ -1651,7 +3692,7 @@ static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
 
         (*env)->SetObjectArrayElement(env, strArray, actualCount * 2, strHdrKey);
 
-        jstring strHdrValue = headerToString(env, tempBuffer, keyEnd + 1, valueLen);
+        jstring strHdrValue = headerToString(env, tempBuffer, keyEnd + 1, valueLen, false);
         if (unlikely(strHdrValue == NULL)) {
             strArray = NULL;
             goto cleanup;
@@ -1662,139 +3703,357 @@ static jobjectArray getRequestHeaders(struct curl_data* ctrl, JNIEnv *env) {
         ++actualCount;
     }
 
-cleanup:
-    if (localFrameRes == 0) {
-        (*env) -> PopLocalFrame(env, NULL);
+cleanup:
+    if (localFrameRes == 0) {
+        (*env) -> PopLocalFrame(env, NULL);
+    }
+
+    free(tempBuffer);
+
+    return strArray;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_net_sf_chttpc_Curl_getHeaders(JNIEnv *env, jclass type, jlong curlPtr, jboolean outHeaders) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return NULL;
+    }
+
+    jobjectArray strArray;
+
+    if (outHeaders == JNI_TRUE) {
+        pthread_mutex_lock(&loop.lock);
+
+        strArray = getResponseHeaders(ctrl, env);
+
+        pthread_mutex_unlock(&loop.lock);
+    } else {
+        strArray = getRequestHeaders(ctrl, env);
+    }
+
+    RELEASE(ctrl->busy);
+
+    return strArray;
+}
+
+JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_getDnsCompat(JNIEnv *env, jclass type) {
+    if (!getprop) {
+        return NULL;
+    }
+
+    char prop_name[PROP_VALUE_MAX + 1];
+
+    getprop("net.dns1", prop_name);
+
+    return (*env) -> NewStringUTF(env, prop_name);
+}
+
+static char* getSpecialHeader(struct curl_data* ctrl, jint n) {
+    if (n >= ctrl->headerPairCount) {
+        return NULL;
+    }
+
+    if (n > 0) {
+        // header value, non-negative, goes first
+        struct curl_hdr* hdr = ctrl->headerPairs[2 * n];
+
+        return hdr->header;
+    } else {
+        // header key, negative or zero (status), goes second
+        return ctrl->headerPairs[-n * 2 + 1];
+    }
+}
+
+static inline void headerKeyToAscii(JNIEnv *env, jstring key, jint l, char* localKey) {
+    // since headers are guaranteed to be ASCII, convert to UTF-16 by shortcut
+    const jchar* strKey = (*env) -> GetStringCritical(env, key, NULL);
+
+    for (int p = 0; p < l; ++p) {
+        localKey[p] = (unsigned char) strKey[p];
+    }
+
+    (*env) -> ReleaseStringCritical(env, key, strKey);
+
+    localKey[l] = '\0';
+}
+
+static inline jstring headerToNewString(JNIEnv *env, const char* str, bool name) {
+    size_t len = strlen(str);
+
+    if (len <= MAX_LOCAL_ALLOC) {
+        jchar* tempBuffer = alloca(len * 2);
+
+        return headerToString(env, tempBuffer, str, len, name);
+    } else {
+        return (*env)->NewStringUTF(env, str);
+    }
+}
+
+static const char* getHeader(JNIEnv *env, struct curl_data* ctrl, jstring key, jint l) {
+    if (ctrl->headerPairCount == 0) {
+        return NULL;
+    }
+
+    const char* result;
+
+    if (key != NULL) {
+        char* localKey = alloca(l + 1);
+
+        headerKeyToAscii(env, key, l, localKey);
+
+        LOG("Searching for %s within %d items", localKey, ctrl->headers.size);
+
+        struct curl_hdr* found = headerTableGet(&ctrl->headers, localKey, (size_t) l);
+
+        if (found == NULL) {
+            LOG("Not found :(");
+
+            return NULL;
+        }
+
+        result = found->header;
+    } else {
+        result = getSpecialHeader(ctrl, l);
+    }
+
+    return result;
+}
+
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_intHeader(JNIEnv *env, jclass type, jlong curlPtr, jlong defaultValue, jstring key, jint l) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
+    }
+
+    jlong resultInt = -1;
+
+    pthread_mutex_lock(&loop.lock);
+
+    if (key == NULL) {
+        long result;
+        curl_easy_getinfo(ctrl->curl, CURLINFO_RESPONSE_CODE, &result);
+        if (result != 0)  resultInt = result;
+        goto success;
+    }
+
+    const char* result = getHeader(env, ctrl, key, l);
+    if (result == NULL) {
+        goto enough;
+    }
+
+    char* failCheck = NULL;
+    resultInt = strtoll(result, &failCheck, 10);
+
+    if (failCheck == NULL || *failCheck != '\0') {
+        goto enough;
+    }
+
+success:
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return resultInt;
+
+enough:
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return defaultValue;
+}
+
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_dateHeader(JNIEnv *env, jclass type, jlong curlPtr, jlong defaultValue, jstring key, jint l) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
+    }
+
+    int64_t millis;
+
+    pthread_mutex_lock(&loop.lock);
+
+    const char* result = getHeader(env, ctrl, key, l);
+
+    if (result == NULL || !httpDateParse(result, &millis)) {
+        millis = defaultValue;
+    }
+
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return millis;
+}
+
+JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_header(JNIEnv *env, jclass type, jlong curlPtr, jstring key, jint l) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    jstring resultString = NULL;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return NULL;
+    }
+
+    pthread_mutex_lock(&loop.lock);
+
+    const char* result = getHeader(env, ctrl, key, l);
+
+    if (result != NULL) {
+        // negative positions refer to header names
+        resultString = headerToNewString(env, result, key == NULL && l < 0);
+    }
+
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return resultString;
+}
+
+// Returns the oldest value, stored in given slot of header table, or NULL if the slot is empty.
+// Must be called with loop lock held.
+static struct curl_hdr* headerSlotValues(struct curl_data* ctrl, jint slot) {
+    if (slot < 0 || (uint32_t) slot >= ctrl->headers.capacity) {
+        return NULL;
     }
 
-    free(tempBuffer);
+    struct curl_hdr* newest = ctrl->headers.slots[slot].value;
 
-    return strArray;
+    return newest == NULL ? NULL : newest->ref;
 }
 
-JNIEXPORT jobjectArray JNICALL Java_net_sf_chttpc_Curl_getHeaders(JNIEnv *env, jclass type, jlong curlPtr, jboolean outHeaders) {
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_headerCount(JNIEnv *env, jclass type, jlong curlPtr) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
     if (!ACQUIRE(ctrl->busy)) {
         throwThreadingException(env);
-        return NULL;
+        return 0;
     }
 
-    jobjectArray strArray = outHeaders == JNI_TRUE ? getResponseHeaders(ctrl, env) : getRequestHeaders(ctrl, env);
+    pthread_mutex_lock(&loop.lock);
+
+    jint result = (jint) ctrl->headers.size;
+
+    pthread_mutex_unlock(&loop.lock);
 
     RELEASE(ctrl->busy);
 
-    return strArray;
+    return result;
 }
 
-JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_getDnsCompat(JNIEnv *env, jclass type) {
-    if (!getprop) {
-        return NULL;
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_headerSlot(JNIEnv *env, jclass type, jlong curlPtr, jstring key, jint l) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
     }
 
-    char prop_name[PROP_VALUE_MAX + 1];
+    char* localKey = alloca(l + 1);
 
-    getprop("net.dns1", prop_name);
+    headerKeyToAscii(env, key, l, localKey);
 
-    return (*env) -> NewStringUTF(env, prop_name);
-}
+    pthread_mutex_lock(&loop.lock);
 
-static char* getSpecialHeader(struct curl_data* ctrl, jint n) {
-    if (n >= ctrl->headerPairCount) {
-        return NULL;
-    }
+    jint result = headerTableIndex(&ctrl->headers, localKey, (size_t) l);
 
-    if (n > 0) {
-        // header value, non-negative, goes first
-        struct curl_hdr* hdr = ctrl->headerPairs[2 * n];
+    pthread_mutex_unlock(&loop.lock);
 
-        return hdr->header;
-    } else {
-        // header key, negative or zero (status), goes second
-        return ctrl->headerPairs[-n * 2 + 1];
-    }
+    RELEASE(ctrl->busy);
+
+    return result;
 }
 
-static const char* getHeader(JNIEnv *env, struct curl_data* ctrl, jstring key, jint l) {
-    if (ctrl->headerPairCount == 0) {
-        return NULL;
-    }
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_nextHeaderSlot(JNIEnv *env, jclass type, jlong curlPtr, jint from) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
-    const char* result;
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return -1;
+    }
 
-    if (key != NULL) {
-        char* localKey = alloca(l + 1);
+    pthread_mutex_lock(&loop.lock);
 
-        // since headers are guaranteed to be ASCII, convert to UTF-16 by shortcut
-        const jchar* strKey = (*env) -> GetStringCritical(env, key, NULL);
+    jint result = -1;
 
-        for (int p = 0; p < l; ++p) {
-            localKey[p] = (unsigned char) strKey[p];
+    for (uint32_t i = from < 0 ? 0 : (uint32_t) from; i < ctrl->headers.capacity; ++i) {
+        if (ctrl->headers.slots[i].key != NULL) {
+            result = (jint) i;
+            break;
         }
+    }
 
-        (*env) -> ReleaseStringCritical(env, key, strKey);
+    pthread_mutex_unlock(&loop.lock);
 
-        localKey[l] = '\0';
+    RELEASE(ctrl->busy);
 
-        LOG("Searching for %s within %d items", localKey, ctrl->headers->size);
+    return result;
+}
 
-        struct curl_hdr* found = hashmapGet(ctrl->headers, localKey);
+JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_headerKey(JNIEnv *env, jclass type, jlong curlPtr, jint slot) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
-        if (found == NULL) {
-            LOG("Not found :(");
+    jstring resultString = NULL;
 
-            return NULL;
-        }
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return NULL;
+    }
 
-        result = found->header;
-    } else {
-        result = getSpecialHeader(ctrl, l);
+    pthread_mutex_lock(&loop.lock);
+
+    if (headerSlotValues(ctrl, slot) != NULL) {
+        resultString = headerToNewString(env, ctrl->headers.slots[slot].key, true);
     }
 
-    return result;
+    pthread_mutex_unlock(&loop.lock);
+
+    RELEASE(ctrl->busy);
+
+    return resultString;
 }
 
-JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_intHeader(JNIEnv *env, jclass type, jlong curlPtr, jlong defaultValue, jstring key, jint l) {
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_headerValueCount(JNIEnv *env, jclass type, jlong curlPtr, jint slot) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
     if (!ACQUIRE(ctrl->busy)) {
         throwThreadingException(env);
-        return -1;
+        return 0;
     }
 
-    jlong resultInt = -1;
+    pthread_mutex_lock(&loop.lock);
 
-    if (key == NULL) {
-        long result;
-        curl_easy_getinfo(ctrl->curl, CURLINFO_RESPONSE_CODE, &result);
-        if (result != 0)  resultInt = result;
-        goto success;
-    }
+    jint result = 0;
 
-    const char* result = getHeader(env, ctrl, key, l);
-    if (result == NULL) {
-        goto enough;
-    }
+    struct curl_hdr* first = headerSlotValues(ctrl, slot);
 
-    char* failCheck = NULL;
-    resultInt = strtoll(result, &failCheck, 10);
+    if (first != NULL) {
+        struct curl_hdr* value = first;
 
-    if (failCheck == NULL || *failCheck != '\0') {
-        goto enough;
-    }
+        do {
+            ++result;
 
-success:
-    RELEASE(ctrl->busy);
+            value = value->ref;
+        }
+        while (value != first);
+    }
 
-    return resultInt;
+    pthread_mutex_unlock(&loop.lock);
 
-enough:
     RELEASE(ctrl->busy);
 
-    return defaultValue;
+    return result;
 }
 
-JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_header(JNIEnv *env, jclass type, jlong curlPtr, jstring key, jint l) {
+JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_headerValue(JNIEnv *env, jclass type, jlong curlPtr, jint slot, jint n) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
     jstring resultString = NULL;
@@ -1804,19 +4063,27 @@ JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_header(JNIEnv *env, jclass typ
         return NULL;
     }
 
-    const char* result = getHeader(env, ctrl, key, l);
+    pthread_mutex_lock(&loop.lock);
 
-    if (result != NULL) {
-        size_t resLen = strlen(result);
+    struct curl_hdr* first = headerSlotValues(ctrl, slot);
 
-        if (resLen <= MAX_LOCAL_ALLOC) {
-            jchar* tempResBuf = alloca(resLen * 2);
-            resultString = headerToString(env, tempResBuf, result, resLen);
-        } else {
-            resultString = (*env)->NewStringUTF(env, result);
+    if (first != NULL && n >= 0) {
+        struct curl_hdr* value = first;
+
+        for (; n != 0; --n) {
+            value = value->ref;
+
+            if (value == first) {
+                goto enough;
+            }
         }
+
+        resultString = headerToNewString(env, value->header, false);
     }
 
+enough:
+    pthread_mutex_unlock(&loop.lock);
+
     RELEASE(ctrl->busy);
 
     return resultString;
@@ -2001,7 +4268,9 @@ JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_outHeader(JNIEnv *env, jclass
 
     jstring result = NULL;
 
-    if (ctrl->outHeaderCount == 0) {
+    struct curl_slist* next = nextRequestHeader(ctrl, NULL);
+
+    if (next == NULL) {
         goto enough;
     }
 
@@ -2026,15 +4295,13 @@ JNIEXPORT jstring JNICALL Java_net_sf_chttpc_Curl_outHeader(JNIEnv *env, jclass
 
     (*env)->ReleaseStringCritical(env, key_, key);
 
-    struct curl_slist* next = ctrl->outHeaders;
-
     do {
         if (!strncasecmp(localBuffer, next->data, i) && (next->data[kLen] == ':' || next->data[kLen] == ';')) {
             result = (*env) ->NewStringUTF(env, next->data + kLen + 1);
             break;
         }
 
-        next = next->next;
+        next = nextRequestHeader(ctrl, next);
     } while (next != NULL);
 
     if (hasToFree) {
@@ -2047,6 +4314,181 @@ enough:
     return result;
 }
 
+static void resizeBuffer(JNIEnv *env, struct curl_data* ctrl, long size, bool recv) {
+    uint32_t capacity = RING_BUFFER_MIN;
+
+    while (capacity < size && capacity < RING_BUFFER_MAX) {
+        capacity <<= 1;
+    }
+
+    pthread_mutex_lock(&loop.lock);
+
+    if (ctrl->state & (STATE_ATTACHED | STATE_QUEUED)) {
+        pthread_mutex_unlock(&loop.lock);
+
+        throwOther(env, "Can not change buffer size during transfer", ERROR_ILLEGAL_STATE);
+        return;
+    }
+
+    if (capacity != (recv ? ctrl->recvCapacity : ctrl->sendCapacity)) {
+        char* newBuffer = malloc(capacity);
+
+        if (unlikely(newBuffer == NULL)) {
+            pthread_mutex_unlock(&loop.lock);
+
+            oomThrow(env);
+            return;
+        }
+
+        if (recv) {
+            free(ctrl->recvBuffer);
+
+            ctrl->recvBuffer = newBuffer;
+            ctrl->recvCapacity = capacity;
+            ctrl->recvWritten = 0;
+            ctrl->recvConsumed = 0;
+
+            if (ctrl->asyncBuffer != NULL) {
+                (*env) -> DeleteGlobalRef(env, ctrl->asyncBuffer);
+
+                ctrl->asyncBuffer = NULL;
+            }
+        } else {
+            free(ctrl->sendBuffer);
+
+            ctrl->sendBuffer = newBuffer;
+            ctrl->sendCapacity = capacity;
+            ctrl->sendWritten = 0;
+            ctrl->sendConsumed = 0;
+        }
+    }
+
+    pthread_mutex_unlock(&loop.lock);
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_available(JNIEnv *env, jclass type, jlong curlPtr) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    pthread_mutex_lock(&loop.lock);
+
+    jint buffered = (jint) recvBuffered(ctrl);
+
+    pthread_mutex_unlock(&loop.lock);
+
+    return buffered;
+}
+
+// keep in sync with TIMING_* in CurlHttp
+enum TIMINGS {
+    TIMING_DNS,
+    TIMING_CONNECT,
+    TIMING_TLS,
+    TIMING_PRETRANSFER,
+    TIMING_FIRST_BYTE,
+    TIMING_TOTAL,
+    TIMING_REDIRECT,
+    TIMING_BYTES_SENT,
+    TIMING_BYTES_RECEIVED,
+    TIMING_REUSED,
+    TIMING_COUNT
+};
+
+static inline jlong timeInfo(CURL* curl, CURLINFO info, CURLINFO legacyInfo) {
+#if LIBCURL_VERSION_NUM >= 0x073d00
+    curl_off_t micros = 0;
+
+    curl_easy_getinfo(curl, info, &micros);
+
+    return (jlong) micros;
+#else
+    double seconds = 0;
+
+    curl_easy_getinfo(curl, legacyInfo, &seconds);
+
+    return (jlong) (seconds * 1000000.0);
+#endif
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_getMetrics(JNIEnv *env, jclass type, jlongArray out) {
+    int64_t values[METRIC_COUNT];
+
+    jsize length = (*env)->GetArrayLength(env, out);
+
+    int count = metricsSnapshot(values, length);
+
+    (*env)->SetLongArrayRegion(env, out, 0, count, (jlong*) values);
+
+    return count;
+}
+
+JNIEXPORT jint JNICALL Java_net_sf_chttpc_Curl_getTimings(JNIEnv *env, jclass type, jlong curlPtr, jlongArray out) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return 0;
+    }
+
+    if (ctrl->resolveTime < 0) {
+        // the request has failed before reaching curl, it's info belongs to previous one
+        RELEASE(ctrl->busy);
+
+        return 0;
+    }
+
+    CURL* curl = ctrl->curl;
+
+    jlong values[TIMING_COUNT];
+
+    long requestSize = 0, headerSize = 0, connects = 0;
+
+    pthread_mutex_lock(&loop.lock);
+
+    values[TIMING_DNS] = timeInfo(curl, CURLINFO_NAMELOOKUP_TIME_T, CURLINFO_NAMELOOKUP_TIME);
+    values[TIMING_CONNECT] = timeInfo(curl, CURLINFO_CONNECT_TIME_T, CURLINFO_CONNECT_TIME);
+    values[TIMING_TLS] = timeInfo(curl, CURLINFO_APPCONNECT_TIME_T, CURLINFO_APPCONNECT_TIME);
+    values[TIMING_PRETRANSFER] = timeInfo(curl, CURLINFO_PRETRANSFER_TIME_T, CURLINFO_PRETRANSFER_TIME);
+    values[TIMING_FIRST_BYTE] = timeInfo(curl, CURLINFO_STARTTRANSFER_TIME_T, CURLINFO_STARTTRANSFER_TIME);
+    values[TIMING_TOTAL] = timeInfo(curl, CURLINFO_TOTAL_TIME_T, CURLINFO_TOTAL_TIME);
+    values[TIMING_REDIRECT] = timeInfo(curl, CURLINFO_REDIRECT_TIME_T, CURLINFO_REDIRECT_TIME);
+
+    values[TIMING_BYTES_SENT] = sizeInfo(curl, CURLINFO_SIZE_UPLOAD_T, CURLINFO_SIZE_UPLOAD);
+    values[TIMING_BYTES_RECEIVED] = sizeInfo(curl, CURLINFO_SIZE_DOWNLOAD_T, CURLINFO_SIZE_DOWNLOAD);
+
+    curl_easy_getinfo(curl, CURLINFO_REQUEST_SIZE, &requestSize);
+    curl_easy_getinfo(curl, CURLINFO_HEADER_SIZE, &headerSize);
+    curl_easy_getinfo(curl, CURLINFO_NUM_CONNECTS, &connects);
+
+    pthread_mutex_unlock(&loop.lock);
+
+    // curl measures time since the moment, when it got the request, which is after our own DNS lookup
+    values[TIMING_DNS] += ctrl->resolveTime;
+
+    for (int i = TIMING_CONNECT; i <= TIMING_TOTAL; ++i) {
+        if (values[i] != 0) {
+            values[i] += ctrl->resolveTime;
+        }
+    }
+
+    // count headers as well as body
+    values[TIMING_BYTES_SENT] += requestSize;
+    values[TIMING_BYTES_RECEIVED] += headerSize;
+    // the number of new connections, that had to be opened for the transfer
+    values[TIMING_REUSED] = connects == 0;
+
+    jsize length = (*env) -> GetArrayLength(env, out);
+
+    if (length > TIMING_COUNT) {
+        length = TIMING_COUNT;
+    }
+
+    (*env) -> SetLongArrayRegion(env, out, 0, length, values);
+
+    RELEASE(ctrl->busy);
+
+    return length;
+}
+
 JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_setOptionInt(JNIEnv *env, jclass type, jlong curlPtr, jlong value, jint option) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
@@ -2068,11 +4510,17 @@ JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_setOptionInt(JNIEnv *env, jclass
             curl_easy_setopt(ctrl->curl, CURLOPT_EXPECT_100_TIMEOUT_MS, capped);
             break;
         case CONN_CACHE_SIZE:
-            curl_easy_setopt(ctrl->curl, CURLMOPT_MAXCONNECTS, capped);
+            curl_easy_setopt(ctrl->curl, CURLOPT_MAXCONNECTS, capped);
             break;
         case MAX_REDIRECT_COUNT:
             curl_easy_setopt(ctrl->curl, CURLOPT_MAXREDIRS, capped);
             break;
+        case RECV_BUFFER_SIZE:
+            resizeBuffer(env, ctrl, capped, true);
+            break;
+        case SEND_BUFFER_SIZE:
+            resizeBuffer(env, ctrl, capped, false);
+            break;
     }
 
     RELEASE(ctrl->busy);
@@ -2096,6 +4544,110 @@ JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_clearHeaders(JNIEnv *env, jclass
     RELEASE(ctrl->busy);
 }
 
+JNIEXPORT jlong JNICALL Java_net_sf_chttpc_Curl_nativeCreateHeaderSet(JNIEnv *env, jclass type, jobjectArray pairs, jint count) {
+    size_t textLength = 0;
+
+    for (jint i = 0; i < count * 2; ++i) {
+        jstring str = (*env) -> GetObjectArrayElement(env, pairs, i);
+
+        if (str != NULL) {
+            textLength += (*env) -> GetStringLength(env, str);
+
+            (*env) -> DeleteLocalRef(env, str);
+        }
+    }
+
+    // separator and terminating null
+    textLength += (size_t) count * 2;
+
+    struct header_set* set = malloc(sizeof(struct header_set) + count * sizeof(struct curl_slist) + textLength);
+    if (unlikely(set == NULL)) {
+        oomThrow(env);
+        return 0;
+    }
+
+    set->refs = 1;
+    set->count = (uint32_t) count;
+
+    char* text = (char*) &set->list[count];
+
+    for (jint i = 0; i < count; ++i) {
+        jstring key = (*env) -> GetObjectArrayElement(env, pairs, i * 2);
+        jstring value = (*env) -> GetObjectArrayElement(env, pairs, i * 2 + 1);
+
+        jint keyLength = (*env) -> GetStringLength(env, key);
+
+        set->list[i].data = text;
+        set->list[i].next = i + 1 < count ? &set->list[i + 1] : NULL;
+
+        asciiDecode(env, key, text, keyLength);
+
+        text += keyLength;
+
+        if (value == NULL) {
+            // disable the header, that curl adds by default
+            *text++ = ':';
+        } else {
+            jint valueLength = (*env) -> GetStringLength(env, value);
+
+            if (valueLength == 0) {
+                *text++ = ';';
+            } else {
+                *text++ = ':';
+
+                asciiDecode(env, value, text, valueLength);
+
+                text += valueLength;
+            }
+
+            (*env) -> DeleteLocalRef(env, value);
+        }
+
+        *text++ = '\0';
+
+        (*env) -> DeleteLocalRef(env, key);
+    }
+
+    return (jlong) (intptr_t) set;
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_releaseHeaderSet(JNIEnv *env, jclass type, jlong setPtr) {
+    headerSetRelease((struct header_set*) (intptr_t) setPtr);
+}
+
+JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_setHeaderSet(JNIEnv *env, jclass type, jlong curlPtr, jlong setPtr) {
+    struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
+
+    if (!ACQUIRE(ctrl->busy)) {
+        throwThreadingException(env);
+        return;
+    }
+
+    struct header_set* set = (struct header_set*) (intptr_t) setPtr;
+
+    pthread_mutex_lock(&loop.lock);
+
+    if (ctrl->state & (STATE_ATTACHED | STATE_QUEUED)) {
+        pthread_mutex_unlock(&loop.lock);
+
+        throwOther(env, "Can not change headers during transfer", ERROR_ILLEGAL_STATE);
+        goto enough;
+    }
+
+    if (set != NULL) {
+        __atomic_add_fetch(&set->refs, 1, __ATOMIC_RELAXED);
+    }
+
+    headerSetRelease(ctrl->headerSet);
+
+    ctrl->headerSet = set;
+
+    pthread_mutex_unlock(&loop.lock);
+
+enough:
+    RELEASE(ctrl->busy);
+}
+
 JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_getLastFd(JNIEnv *env, jclass type, jlong curlPtr, jint fd) {
     struct curl_data* ctrl = (struct curl_data*) (intptr_t) curlPtr;
 
@@ -2103,8 +4655,12 @@ JNIEXPORT void JNICALL Java_net_sf_chttpc_Curl_getLastFd(JNIEnv *env, jclass typ
     s[0] = CURL_SOCKET_BAD;
     s[1] = CURL_SOCKET_BAD;
 
+    pthread_mutex_lock(&loop.lock);
+
     multi_getsock(ctrl->curl, s, 2);
 
+    pthread_mutex_unlock(&loop.lock);
+
     if (s[0] == CURL_SOCKET_BAD || s[1] != CURL_SOCKET_BAD) {
         (*env) -> ThrowNew(env, ioException, "Unable to obtain socket");
         return;
@@ -0,0 +1,479 @@
+#include "tls_cache.h"
+#include <string.h>
+#include <strings.h>
+#include <mbedtls/version.h>
+
+#if MBEDTLS_VERSION_NUMBER >= 0x02120000
+#define TLS_CACHE_CAN_SERIALIZE 1
+#endif
+
+#define TLS_CACHE_MAGIC "CHTS"
+#define TLS_CACHE_FORMAT 1
+
+static inline uint32_t keyHash(const char* key) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+
+    for (; *key != '\0'; ++key) {
+        h ^= (unsigned char) *key;
+        h *= 16777619u;
+    }
+
+    return h;
+}
+
+static inline void unlinkEntry(TlsCache* cache, TlsCacheEntry* entry) {
+    if (entry->prev != NULL) {
+        entry->prev->next = entry->next;
+    } else {
+        cache->head = entry->next;
+    }
+
+    if (entry->next != NULL) {
+        entry->next->prev = entry->prev;
+    } else {
+        cache->tail = entry->prev;
+    }
+
+    entry->prev = NULL;
+    entry->next = NULL;
+}
+
+static inline void linkFirst(TlsCache* cache, TlsCacheEntry* entry) {
+    entry->prev = NULL;
+    entry->next = cache->head;
+
+    if (cache->head != NULL) {
+        cache->head->prev = entry;
+    } else {
+        cache->tail = entry;
+    }
+
+    cache->head = entry;
+}
+
+static TlsCacheEntry* findEntry(TlsCache* cache, const char* key, uint32_t hash) {
+    for (TlsCacheEntry* entry = cache->head; entry != NULL; entry = entry->next) {
+        if (entry->hash == hash && strcmp(entry->key, key) == 0) {
+            return entry;
+        }
+    }
+
+    return NULL;
+}
+
+static void freeEntry(TlsCacheEntry* entry) {
+    mbedtls_ssl_session_free(&entry->session);
+
+    free(entry);
+}
+
+static TlsCacheEntry* newEntry(const char* key, time_t expires) {
+    TlsCacheEntry* entry = malloc(sizeof(TlsCacheEntry));
+
+    if (entry == NULL) {
+        return NULL;
+    }
+
+    mbedtls_ssl_session_init(&entry->session);
+
+    entry->hash = keyHash(key);
+    entry->expires = expires;
+
+    strncpy(entry->key, key, sizeof(entry->key) - 1);
+
+    entry->key[sizeof(entry->key) - 1] = '\0';
+
+    return entry;
+}
+
+// takes ownership of the entry, replacing the old entry with same key, if any
+static void insertEntry(TlsCache* cache, TlsCacheEntry* entry) {
+    TlsCacheEntry* evicted = NULL;
+
+    pthread_mutex_lock(&cache->lock);
+
+    TlsCacheEntry* old = findEntry(cache, entry->key, entry->hash);
+
+    if (old != NULL) {
+        unlinkEntry(cache, old);
+
+        --cache->size;
+    } else if (cache->size >= cache->capacity) {
+        evicted = cache->tail;
+
+        unlinkEntry(cache, evicted);
+
+        --cache->size;
+    }
+
+    linkFirst(cache, entry);
+
+    ++cache->size;
+
+    pthread_mutex_unlock(&cache->lock);
+
+    ++cache->generation;
+
+    if (old != NULL) {
+        freeEntry(old);
+    }
+
+    if (evicted != NULL) {
+        ++cache->evictions;
+
+        freeEntry(evicted);
+    }
+}
+
+static time_t sessionLifetime(const mbedtls_ssl_session* session) {
+#if defined(MBEDTLS_SSL_SESSION_TICKETS)
+    if (session->ticket != NULL && session->ticket_lifetime != 0) {
+        return session->ticket_lifetime < TLS_SESSION_MAX_AGE ? session->ticket_lifetime : TLS_SESSION_MAX_AGE;
+    }
+#endif
+
+    return TLS_SESSION_MAX_AGE;
+}
+
+void tlsCacheInit(TlsCache* cache, size_t capacity) {
+    memset(cache, 0, sizeof(TlsCache));
+
+    pthread_mutex_init(&cache->lock, NULL);
+
+    cache->capacity = capacity;
+}
+
+bool tlsCacheKey(const char* url, char* key, size_t keySize) {
+    if (strncasecmp(url, "https://", 8) != 0) {
+        return false;
+    }
+
+    const char* authority = url + 8;
+    const char* end = authority + strcspn(authority, "/?#");
+
+    // skip credentials
+    for (const char* c = end; c > authority; --c) {
+        if (c[-1] == '@') {
+            authority = c;
+            break;
+        }
+    }
+
+    const char* hostEnd = end;
+
+    if (*authority == '[') {
+        const char* bracket = memchr(authority, ']', end - authority);
+
+        if (bracket == NULL) {
+            return false;
+        }
+
+        hostEnd = bracket + 1;
+    } else {
+        const char* colon = memchr(authority, ':', end - authority);
+
+        if (colon != NULL) {
+            hostEnd = colon;
+        }
+    }
+
+    size_t hostLen = hostEnd - authority;
+
+    if (hostLen == 0) {
+        return false;
+    }
+
+    const char* port = "443";
+    size_t portLen = 3;
+
+    if (hostEnd + 1 < end && *hostEnd == ':') {
+        port = hostEnd + 1;
+        portLen = end - port;
+    }
+
+    if (hostLen + portLen + 2 > keySize) {
+        return false;
+    }
+
+    for (size_t i = 0; i < hostLen; ++i) {
+        char c = authority[i];
+
+        key[i] = (c >= 'A' && c <= 'Z') ? (char) (c | 0x20) : c;
+    }
+
+    key[hostLen] = ':';
+
+    memcpy(key + hostLen + 1, port, portLen);
+
+    key[hostLen + 1 + portLen] = '\0';
+
+    return true;
+}
+
+bool tlsCacheRestore(TlsCache* cache, const char* key, mbedtls_ssl_context* ssl) {
+    uint32_t hash = keyHash(key);
+
+    bool found = false;
+
+    TlsCacheEntry* expired = NULL;
+
+    pthread_mutex_lock(&cache->lock);
+
+    TlsCacheEntry* entry = findEntry(cache, key, hash);
+
+    if (entry != NULL) {
+        unlinkEntry(cache, entry);
+
+        if (entry->expires <= time(NULL)) {
+            expired = entry;
+
+            --cache->size;
+        } else {
+            linkFirst(cache, entry);
+
+            found = mbedtls_ssl_set_session(ssl, &entry->session) == 0;
+        }
+    }
+
+    pthread_mutex_unlock(&cache->lock);
+
+    if (expired != NULL) {
+        ++cache->generation;
+
+        freeEntry(expired);
+    }
+
+    if (found) {
+        ++cache->hits;
+    } else {
+        ++cache->misses;
+    }
+
+    return found;
+}
+
+bool tlsCacheStore(TlsCache* cache, const char* key, const mbedtls_ssl_context* ssl) {
+    if (cache->capacity == 0) {
+        return true;
+    }
+
+    TlsCacheEntry* entry = newEntry(key, 0);
+
+    if (entry == NULL) {
+        return false;
+    }
+
+    if (mbedtls_ssl_get_session(ssl, &entry->session) != 0) {
+        freeEntry(entry);
+
+        return false;
+    }
+
+    entry->expires = time(NULL) + sessionLifetime(&entry->session);
+
+    insertEntry(cache, entry);
+
+    return true;
+}
+
+uint64_t tlsSessionFingerprint(const mbedtls_ssl_context* ssl, bool established) {
+    const mbedtls_ssl_session* session = established ? ssl->session : ssl->session_negotiate;
+
+    if (session == NULL) {
+        return 0;
+    }
+
+    uint64_t fingerprint;
+
+    memcpy(&fingerprint, session->master, sizeof(fingerprint));
+
+    return fingerprint;
+}
+
+void tlsCacheClear(TlsCache* cache) {
+    pthread_mutex_lock(&cache->lock);
+
+    TlsCacheEntry* entry = cache->head;
+
+    cache->head = NULL;
+    cache->tail = NULL;
+    cache->size = 0;
+
+    pthread_mutex_unlock(&cache->lock);
+
+    ++cache->generation;
+
+    while (entry != NULL) {
+        TlsCacheEntry* next = entry->next;
+
+        freeEntry(entry);
+
+        entry = next;
+    }
+}
+
+static inline void putBytes(unsigned char** dest, const void* data, size_t size) {
+    memcpy(*dest, data, size);
+
+    *dest += size;
+}
+
+static inline bool getBytes(const unsigned char** src, const unsigned char* end, void* data, size_t size) {
+    if ((size_t) (end - *src) < size) {
+        return false;
+    }
+
+    memcpy(data, *src, size);
+
+    *src += size;
+
+    return true;
+}
+
+unsigned char* tlsCacheExport(TlsCache* cache, size_t* length) {
+    size_t capacity = 4096;
+    size_t used = sizeof(TLS_CACHE_MAGIC);
+
+    unsigned char* buffer = malloc(capacity);
+
+    if (buffer == NULL) {
+        return NULL;
+    }
+
+    unsigned char* p = buffer;
+
+    putBytes(&p, TLS_CACHE_MAGIC, sizeof(TLS_CACHE_MAGIC) - 1);
+
+    *p++ = TLS_CACHE_FORMAT;
+
+#ifdef TLS_CACHE_CAN_SERIALIZE
+    time_t now = time(NULL);
+
+    pthread_mutex_lock(&cache->lock);
+
+    // least recently used first, so that importing restores the order
+    for (TlsCacheEntry* entry = cache->tail; entry != NULL; entry = entry->prev) {
+        if (entry->expires <= now) {
+            continue;
+        }
+
+        size_t sessionLen = 0;
+
+        mbedtls_ssl_session_save(&entry->session, NULL, 0, &sessionLen);
+
+        uint16_t keyLen = (uint16_t) strlen(entry->key);
+        uint32_t blobLen = (uint32_t) sessionLen;
+        int64_t expires = entry->expires;
+
+        size_t needed = sizeof(keyLen) + keyLen + sizeof(expires) + sizeof(blobLen) + sessionLen;
+
+        if (used + needed > capacity) {
+            while (used + needed > capacity) {
+                capacity *= 2;
+            }
+
+            unsigned char* newBuffer = realloc(buffer, capacity);
+
+            if (newBuffer == NULL) {
+                pthread_mutex_unlock(&cache->lock);
+
+                free(buffer);
+
+                return NULL;
+            }
+
+            buffer = newBuffer;
+        }
+
+        p = buffer + used;
+
+        putBytes(&p, &keyLen, sizeof(keyLen));
+        putBytes(&p, entry->key, keyLen);
+        putBytes(&p, &expires, sizeof(expires));
+        putBytes(&p, &blobLen, sizeof(blobLen));
+
+        if (mbedtls_ssl_session_save(&entry->session, p, sessionLen, &sessionLen) != 0) {
+            // skip the entry
+            continue;
+        }
+
+        used += needed;
+    }
+
+    pthread_mutex_unlock(&cache->lock);
+#endif
+
+    *length = used;
+
+    return buffer;
+}
+
+int tlsCacheImport(TlsCache* cache, const unsigned char* data, size_t length) {
+    const unsigned char* end = data + length;
+
+    char magic[sizeof(TLS_CACHE_MAGIC)];
+
+    if (!getBytes(&data, end, magic, sizeof(magic)) || memcmp(magic, TLS_CACHE_MAGIC, sizeof(magic) - 1) != 0) {
+        return -1;
+    }
+
+    if (magic[sizeof(magic) - 1] != TLS_CACHE_FORMAT) {
+        // written by different version, ignore
+        return 0;
+    }
+
+    int imported = 0;
+
+#ifdef TLS_CACHE_CAN_SERIALIZE
+    time_t now = time(NULL);
+
+    while (data != end) {
+        uint16_t keyLen;
+        uint32_t blobLen;
+        int64_t expires;
+
+        char key[TLS_CACHE_KEY_MAX];
+
+        if (!getBytes(&data, end, &keyLen, sizeof(keyLen)) || keyLen >= sizeof(key)) {
+            return -1;
+        }
+
+        if (!getBytes(&data, end, key, keyLen)
+                || !getBytes(&data, end, &expires, sizeof(expires))
+                || !getBytes(&data, end, &blobLen, sizeof(blobLen))
+                || (size_t) (end - data) < blobLen) {
+            return -1;
+        }
+
+        key[keyLen] = '\0';
+
+        const unsigned char* blob = data;
+
+        data += blobLen;
+
+        if (expires <= now || cache->capacity == 0) {
+            continue;
+        }
+
+        TlsCacheEntry* entry = newEntry(key, (time_t) expires);
+
+        if (entry == NULL) {
+            break;
+        }
+
+        if (mbedtls_ssl_session_load(&entry->session, blob, blobLen) != 0) {
+            // most likely saved by mbedTLS with different configuration
+            freeEntry(entry);
+
+            continue;
+        }
+
+        insertEntry(cache, entry);
+
+        ++imported;
+    }
+#endif
+
+    return imported;
+}
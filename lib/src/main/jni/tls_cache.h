@@ -0,0 +1,96 @@
+#ifndef __TLS_CACHE_H
+#define __TLS_CACHE_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <pthread.h>
+#include <time.h>
+#include <mbedtls/ssl.h>
+
+// "host:port" of TLS server, the host part is lowercased
+#define TLS_CACHE_KEY_MAX 264
+
+// how long to keep sessions without explicit lifetime (same as mbedTLS server-side cache)
+#define TLS_SESSION_MAX_AGE 86400
+
+struct TlsCacheEntry {
+    struct TlsCacheEntry* prev;
+    struct TlsCacheEntry* next;
+    uint32_t hash;
+    time_t expires;
+    mbedtls_ssl_session session;
+    char key[TLS_CACHE_KEY_MAX];
+};
+
+typedef struct TlsCacheEntry TlsCacheEntry;
+
+struct TlsCache {
+    pthread_mutex_t lock;
+    // most recently used entry first
+    TlsCacheEntry* head;
+    TlsCacheEntry* tail;
+    size_t size;
+    size_t capacity;
+    volatile _Atomic uint64_t hits;
+    volatile _Atomic uint64_t misses;
+    volatile _Atomic uint64_t evictions;
+    // incremented on each change of cache contents
+    volatile _Atomic uint64_t generation;
+};
+
+/** A size-bound LRU cache of TLS sessions. */
+typedef struct TlsCache TlsCache;
+
+/**
+ * Initializes the cache. The capacity of 0 disables caching, but lookups are still counted.
+ */
+void tlsCacheInit(TlsCache* cache, size_t capacity);
+
+/**
+ * Builds the cache key from URL. Returns false if the URL does not use TLS.
+ */
+bool tlsCacheKey(const char* url, char* key, size_t keySize);
+
+/**
+ * Looks up the session for given key and loads it into the SSL context, which
+ * must not have started the handshake yet. Expired sessions are dropped. Returns true on cache hit.
+ */
+bool tlsCacheRestore(TlsCache* cache, const char* key, mbedtls_ssl_context* ssl);
+
+/**
+ * Stores the session of SSL context, which has completed the handshake, evicting the least
+ * recently used session if the cache is full.
+ *
+ * If memory allocation fails, this function returns false and the cache is left unchanged.
+ */
+bool tlsCacheStore(TlsCache* cache, const char* key, const mbedtls_ssl_context* ssl);
+
+/**
+ * Returns fingerprint of the master secret of session, which is being negotiated (before the
+ * handshake) or has been established (after it). Resumed sessions keep the master secret of
+ * the original one, so equal fingerprints before and after the handshake mean, that the session
+ * was resumed. Returns 0 if there is no session.
+ */
+uint64_t tlsSessionFingerprint(const mbedtls_ssl_context* ssl, bool established);
+
+/**
+ * Drops all cached sessions. Counters are left intact.
+ */
+void tlsCacheClear(TlsCache* cache);
+
+/**
+ * Serializes all unexpired sessions. Returns a buffer, that must be released with free(),
+ * or NULL if memory allocation fails.
+ *
+ * Serialization requires mbedTLS 2.18 or newer, with older versions the result contains no sessions.
+ */
+unsigned char* tlsCacheExport(TlsCache* cache, size_t* length);
+
+/**
+ * Adds unexpired sessions from buffer, created by tlsCacheExport, to the cache. Returns number of
+ * imported sessions or -1 if the buffer is malformed.
+ */
+int tlsCacheImport(TlsCache* cache, const unsigned char* data, size_t length);
+
+#endif